@@ -0,0 +1,63 @@
+
+package com.googamaphone.compat;
+
+import java.util.concurrent.Executor;
+
+import android.annotation.TargetApi;
+import android.os.AsyncTask;
+import android.os.Build;
+
+/**
+ * Runs tasks off the serial executor that {@link AsyncTask#execute} uses from
+ * Honeycomb onward, so that a long-running task doesn't hold up every other
+ * task in the process. Before Honeycomb, {@link AsyncTask#execute} already
+ * runs tasks in parallel.
+ */
+public class AsyncTaskCompatUtils {
+    /**
+     * Executes a task on the shared thread pool.
+     *
+     * @param task The task to execute.
+     * @param params The parameters of the task.
+     */
+    @SuppressWarnings("unchecked")
+    public static <Params> void executeInParallel(AsyncTask<Params, ?, ?> task,
+            Params... params) {
+        if (Build.VERSION.SDK_INT >= 11) {
+            executeOnThreadPool(task, params);
+        } else {
+            task.execute(params);
+        }
+    }
+
+    /**
+     * Executes a task on the specified executor.
+     *
+     * @param task The task to execute.
+     * @param executor The executor to run the task on.
+     * @param params The parameters of the task.
+     */
+    @SuppressWarnings("unchecked")
+    public static <Params> void executeOnExecutor(AsyncTask<Params, ?, ?> task,
+            Executor executor, Params... params) {
+        if (Build.VERSION.SDK_INT >= 11) {
+            executeOnExecutorInternal(task, executor, params);
+        } else {
+            task.execute(params);
+        }
+    }
+
+    @TargetApi(11)
+    @SuppressWarnings("unchecked")
+    private static <Params> void executeOnThreadPool(AsyncTask<Params, ?, ?> task,
+            Params... params) {
+        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, params);
+    }
+
+    @TargetApi(11)
+    @SuppressWarnings("unchecked")
+    private static <Params> void executeOnExecutorInternal(AsyncTask<Params, ?, ?> task,
+            Executor executor, Params... params) {
+        task.executeOnExecutor(executor, params);
+    }
+}
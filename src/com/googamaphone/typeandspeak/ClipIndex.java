@@ -0,0 +1,96 @@
+
+package com.googamaphone.typeandspeak;
+
+import java.io.File;
+
+import com.googamaphone.typeandspeak.utils.OutputFormat;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+/**
+ * Maps a hash of the synthesis inputs to the saved file that was produced
+ * from them, so identical speech is only saved once.
+ */
+public class ClipIndex extends SQLiteOpenHelper {
+    private static final String DATABASE_NAME = "clips.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE_CLIPS = "clips";
+
+    // Column names.
+    private static final String COLUMN_HASH = "hash";
+    private static final String COLUMN_FORMAT = "format";
+    private static final String COLUMN_PATH = "path";
+
+    private static final String[] PATH_COLUMNS = new String[] {
+            COLUMN_PATH
+    };
+
+    public ClipIndex(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_CLIPS + " (" + COLUMN_HASH + " TEXT, "
+                + COLUMN_FORMAT + " TEXT, " + COLUMN_PATH + " TEXT, PRIMARY KEY (" + COLUMN_HASH
+                + ", " + COLUMN_FORMAT + "))");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_CLIPS);
+        onCreate(db);
+    }
+
+    /**
+     * Returns the saved file for a hash. Entries for files that have been
+     * deleted are removed.
+     *
+     * @param hash The hash of the synthesis inputs.
+     * @param format The format of the saved file.
+     * @return The path of the saved file, or {@code null} if there isn't one.
+     */
+    public String get(String hash, OutputFormat format) {
+        final String selection = COLUMN_HASH + " = ? AND " + COLUMN_FORMAT + " = ?";
+        final String[] selectionArgs = new String[] {
+                hash, format.extension
+        };
+        final Cursor cursor = getReadableDatabase().query(TABLE_CLIPS, PATH_COLUMNS,
+                selection, selectionArgs, null, null, null);
+        final String path;
+
+        try {
+            path = cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+
+        if ((path != null) && !new File(path).exists()) {
+            getWritableDatabase().delete(TABLE_CLIPS, selection, selectionArgs);
+            return null;
+        }
+
+        return path;
+    }
+
+    /**
+     * Records the saved file for a hash, replacing any previous entry.
+     *
+     * @param hash The hash of the synthesis inputs.
+     * @param format The format of the saved file.
+     * @param path The path of the saved file.
+     */
+    public void put(String hash, OutputFormat format, String path) {
+        final ContentValues values = new ContentValues(3);
+        values.put(COLUMN_HASH, hash);
+        values.put(COLUMN_FORMAT, format.extension);
+        values.put(COLUMN_PATH, path);
+
+        getWritableDatabase().replace(TABLE_CLIPS, null, values);
+    }
+}
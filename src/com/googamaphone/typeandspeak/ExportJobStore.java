@@ -0,0 +1,365 @@
+
+package com.googamaphone.typeandspeak;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Locale;
+
+import com.googamaphone.typeandspeak.utils.OutputFormat;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.text.TextUtils;
+
+/**
+ * Persists queued export jobs so that they survive the process being killed.
+ * Jobs are run in the order they were added. The text of a
+ * {@link #SOURCE_TEXT} job is kept in its own file rather than in the
+ * database, since it may be too large for a single row.
+ */
+public class ExportJobStore extends SQLiteOpenHelper {
+    private static final String DATABASE_NAME = "exports.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE_JOBS = "jobs";
+
+    /** Directory that the text of {@link #SOURCE_TEXT} jobs is kept in. */
+    private static final String TEXT_DIRECTORY = "exports";
+    private static final String TEXT_EXTENSION = ".txt";
+
+    // Column names.
+    private static final String COLUMN_ID = "_id";
+    private static final String COLUMN_SOURCE_TYPE = "source_type";
+    private static final String COLUMN_SOURCE = "source";
+    private static final String COLUMN_LOCALE = "locale";
+    private static final String COLUMN_PITCH = "pitch";
+    private static final String COLUMN_RATE = "rate";
+    private static final String COLUMN_FILENAME = "filename";
+    private static final String COLUMN_FORMAT = "format";
+    private static final String COLUMN_STATE = "state";
+
+    /** The source is the text to synthesize. */
+    public static final int SOURCE_TEXT = 0;
+
+    /** The source is the path of a text file to synthesize. */
+    public static final int SOURCE_FILE = 1;
+
+    // Job states.
+    public static final int STATE_PENDING = 0;
+    public static final int STATE_RUNNING = 1;
+    public static final int STATE_COMPLETED = 2;
+    public static final int STATE_FAILED = 3;
+    public static final int STATE_CANCELED = 4;
+
+    private static final String[] JOB_COLUMNS = new String[] {
+            COLUMN_ID, COLUMN_SOURCE_TYPE, COLUMN_SOURCE, COLUMN_LOCALE, COLUMN_PITCH,
+            COLUMN_RATE, COLUMN_FILENAME, COLUMN_FORMAT
+    };
+
+    private static ExportJobStore sInstance;
+
+    private final File mTextDirectory;
+
+    /**
+     * Returns the process-wide store, so that all users share a single
+     * database connection. The store is never closed.
+     *
+     * @param context The parent context.
+     * @return The shared store.
+     */
+    public static synchronized ExportJobStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ExportJobStore(context.getApplicationContext());
+        }
+
+        return sInstance;
+    }
+
+    private ExportJobStore(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+
+        mTextDirectory = new File(context.getFilesDir(), TEXT_DIRECTORY);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_JOBS + " (" + COLUMN_ID
+                + " INTEGER PRIMARY KEY AUTOINCREMENT, " + COLUMN_SOURCE_TYPE + " INTEGER, "
+                + COLUMN_SOURCE + " TEXT, " + COLUMN_LOCALE + " TEXT, " + COLUMN_PITCH
+                + " INTEGER, " + COLUMN_RATE + " INTEGER, " + COLUMN_FILENAME + " TEXT, "
+                + COLUMN_FORMAT + " TEXT, " + COLUMN_STATE + " INTEGER)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_JOBS);
+        onCreate(db);
+    }
+
+    /**
+     * Adds a pending job to the end of the queue. The text of a
+     * {@link #SOURCE_TEXT} job is written to {@link #getTextFile(long)}.
+     *
+     * @param job The job to add.
+     * @return The ID of the new job, or {@code -1} if it couldn't be added.
+     */
+    public long add(ExportJob job) {
+        final boolean isText = (job.sourceType == SOURCE_TEXT);
+        final ContentValues values = new ContentValues(8);
+        values.put(COLUMN_SOURCE_TYPE, job.sourceType);
+        values.put(COLUMN_SOURCE, isText ? null : job.source);
+        values.put(COLUMN_LOCALE, (job.locale == null) ? null : job.locale.toString());
+        values.put(COLUMN_PITCH, job.pitch);
+        values.put(COLUMN_RATE, job.rate);
+        values.put(COLUMN_FILENAME, job.filename);
+        values.put(COLUMN_FORMAT, job.format.extension);
+        values.put(COLUMN_STATE, STATE_PENDING);
+
+        final SQLiteDatabase db = getWritableDatabase();
+
+        // Don't let the job be loaded until its text has been written.
+        db.beginTransaction();
+
+        try {
+            final long id = db.insert(TABLE_JOBS, null, values);
+
+            if ((id >= 0) && isText) {
+                try {
+                    writeText(getTextFile(id), job.source);
+                } catch (final IOException e) {
+                    getTextFile(id).delete();
+                    throw e;
+                }
+            }
+
+            db.setTransactionSuccessful();
+
+            return id;
+        } catch (final IOException e) {
+            e.printStackTrace();
+            return -1;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @param id The ID of a {@link #SOURCE_TEXT} job.
+     * @return The UTF-8 file containing the text of the job.
+     */
+    public File getTextFile(long id) {
+        return new File(mTextDirectory, id + TEXT_EXTENSION);
+    }
+
+    private void writeText(File file, String text) throws IOException {
+        mTextDirectory.mkdirs();
+
+        final Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+
+        try {
+            out.write(text);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Returns the oldest pending job. The job may still be canceled until
+     * it's {@link #claim claimed}. The source of a {@link #SOURCE_TEXT} job
+     * isn't loaded; its text is in {@link #getTextFile(long)}.
+     *
+     * @return The oldest pending job, or {@code null} if there isn't one.
+     */
+    public ExportJob getNextPending() {
+        final Cursor cursor = getReadableDatabase().query(TABLE_JOBS, JOB_COLUMNS,
+                COLUMN_STATE + " = " + STATE_PENDING, null, null, null, COLUMN_ID, "1");
+
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+
+            final ExportJob job = new ExportJob(cursor.getInt(1), cursor.getString(2),
+                    parseLocale(cursor.getString(3)), cursor.getInt(4), cursor.getInt(5),
+                    cursor.getString(6), OutputFormat.fromPath(cursor.getString(7)));
+            job.id = cursor.getLong(0);
+
+            return job;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return The number of jobs that are pending or running.
+     */
+    public int getRemainingCount() {
+        final Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT COUNT(*) FROM " + TABLE_JOBS + " WHERE " + COLUMN_STATE + " <= "
+                        + STATE_RUNNING, null);
+
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Updates the state of a job. The text of a job that has finished is
+     * deleted.
+     *
+     * @param id The ID of the job.
+     * @param state The new state.
+     */
+    public void setState(long id, int state) {
+        final ContentValues values = new ContentValues(1);
+        values.put(COLUMN_STATE, state);
+
+        getWritableDatabase().update(TABLE_JOBS, values, COLUMN_ID + " = " + id, null);
+
+        if (state > STATE_RUNNING) {
+            getTextFile(id).delete();
+        }
+    }
+
+    /**
+     * Marks a job as running if it's still pending. This is a single update,
+     * so a job can't be both canceled and claimed.
+     *
+     * @param id The ID of the job.
+     * @return Whether the job was pending.
+     */
+    public boolean claim(long id) {
+        return updatePending(id, STATE_RUNNING);
+    }
+
+    /**
+     * Cancels a job if it hasn't started yet.
+     *
+     * @param id The ID of the job.
+     * @return Whether the job was pending.
+     */
+    public boolean cancelPending(long id) {
+        if (!updatePending(id, STATE_CANCELED)) {
+            return false;
+        }
+
+        getTextFile(id).delete();
+
+        return true;
+    }
+
+    private boolean updatePending(long id, int state) {
+        final ContentValues values = new ContentValues(1);
+        values.put(COLUMN_STATE, state);
+
+        return getWritableDatabase().update(TABLE_JOBS, values,
+                COLUMN_ID + " = " + id + " AND " + COLUMN_STATE + " = " + STATE_PENDING, null) > 0;
+    }
+
+    /**
+     * Returns jobs that were running when the process died to the queue and
+     * removes finished jobs and their text.
+     */
+    public void recover() {
+        final SQLiteDatabase db = getWritableDatabase();
+        final ContentValues values = new ContentValues(1);
+        values.put(COLUMN_STATE, STATE_PENDING);
+
+        db.update(TABLE_JOBS, values, COLUMN_STATE + " = " + STATE_RUNNING, null);
+        db.delete(TABLE_JOBS, COLUMN_STATE + " > " + STATE_RUNNING, null);
+
+        deleteOrphanedText(db);
+    }
+
+    /**
+     * Deletes text files that don't belong to a remaining job.
+     */
+    private void deleteOrphanedText(SQLiteDatabase db) {
+        final File[] files = mTextDirectory.listFiles();
+
+        if (files == null) {
+            return;
+        }
+
+        final HashSet<String> names = new HashSet<String>();
+        final Cursor cursor = db.query(TABLE_JOBS, new String[] {
+            COLUMN_ID
+        }, null, null, null, null, null);
+
+        try {
+            while (cursor.moveToNext()) {
+                names.add(cursor.getLong(0) + TEXT_EXTENSION);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        for (File file : files) {
+            if (!names.contains(file.getName())) {
+                file.delete();
+            }
+        }
+    }
+
+    private static Locale parseLocale(String locale) {
+        if (TextUtils.isEmpty(locale)) {
+            return null;
+        }
+
+        final String[] langCountryVariant = locale.split("_", 3);
+
+        if (langCountryVariant.length == 1) {
+            return new Locale(langCountryVariant[0]);
+        } else if (langCountryVariant.length == 2) {
+            return new Locale(langCountryVariant[0], langCountryVariant[1]);
+        }
+
+        return new Locale(langCountryVariant[0], langCountryVariant[1], langCountryVariant[2]);
+    }
+
+    /**
+     * A request to save text as speech.
+     */
+    public static class ExportJob {
+        /** The ID assigned by the store, or {@code -1} if not yet added. */
+        public long id = -1;
+
+        public final int sourceType;
+        public final String source;
+        public final Locale locale;
+        public final int pitch;
+        public final int rate;
+        public final String filename;
+        public final OutputFormat format;
+
+        /**
+         * @param sourceType Either {@link #SOURCE_TEXT} or {@link #SOURCE_FILE}.
+         * @param source The text, or the path of a text file. This is
+         *            {@code null} for text jobs read from the store.
+         * @param locale The speech locale, or {@code null} for the default.
+         * @param pitch The speech pitch, as used in preferences.
+         * @param rate The speech rate, as used in preferences.
+         * @param filename The output file name, without a directory.
+         * @param format The output format.
+         */
+        public ExportJob(int sourceType, String source, Locale locale, int pitch, int rate,
+                String filename, OutputFormat format) {
+            this.sourceType = sourceType;
+            this.source = source;
+            this.locale = locale;
+            this.pitch = pitch;
+            this.rate = rate;
+            this.filename = filename;
+            this.format = format;
+        }
+    }
+}
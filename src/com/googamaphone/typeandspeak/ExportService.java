@@ -0,0 +1,524 @@
+
+package com.googamaphone.typeandspeak;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.googamaphone.compat.AsyncTaskCompatUtils;
+import com.googamaphone.typeandspeak.ExportJobStore.ExportJob;
+import com.googamaphone.typeandspeak.FileSynthesizer.FileSynthesizerListener;
+import com.googamaphone.typeandspeak.utils.AudioCache;
+import com.googamaphone.typeandspeak.utils.MappedCharSequence;
+import com.googamaphone.typeandspeak.utils.OutputFormat;
+import com.googamaphone.typeandspeak.utils.SpeechMetrics;
+import com.googamaphone.typeandspeak.utils.TextToSpeechPool;
+
+import android.annotation.TargetApi;
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.IBinder;
+import android.os.PowerManager;
+import android.os.PowerManager.WakeLock;
+import android.provider.MediaStore.MediaColumns;
+import android.provider.Settings;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.content.LocalBroadcastManager;
+
+/**
+ * Runs queued export jobs back-to-back without any user interface. Jobs are
+ * persisted by {@link ExportJobStore}, so the queue continues if the process
+ * is killed. Progress and results are sent as local broadcasts. Engines are
+ * leased from the shared {@link TextToSpeechPool}, so saving doesn't
+ * interfere with speech in the main activity.
+ */
+public class ExportService extends Service {
+    private static final String TAG = ExportService.class.getSimpleName();
+
+    private static final String PACKAGE = "com.googamaphone.typeandspeak";
+
+    // Service actions.
+    private static final String ACTION_START = PACKAGE + ".action.START_EXPORTS";
+    private static final String ACTION_CANCEL = PACKAGE + ".action.CANCEL_EXPORT";
+
+    // Queue events, sent through the local broadcast manager.
+    public static final String EVENT_PROGRESS = PACKAGE + ".event.EXPORT_PROGRESS";
+    public static final String EVENT_COMPLETED = PACKAGE + ".event.EXPORT_COMPLETED";
+    public static final String EVENT_FAILED = PACKAGE + ".event.EXPORT_FAILED";
+    public static final String EVENT_CANCELED = PACKAGE + ".event.EXPORT_CANCELED";
+
+    // Event extras.
+    public static final String EXTRA_JOB_ID = "job_id";
+    public static final String EXTRA_SEGMENTS_DONE = "segments_done";
+    public static final String EXTRA_SEGMENT_COUNT = "segment_count";
+    public static final String EXTRA_CHARACTERS_DONE = "characters_done";
+    public static final String EXTRA_CHARACTER_COUNT = "character_count";
+    public static final String EXTRA_REMAINING_MILLIS = "remaining_millis";
+    public static final String EXTRA_PATH = "path";
+    public static final String EXTRA_REUSED = "reused";
+    public static final String EXTRA_ERROR = "error";
+    public static final String EXTRA_FILENAME = "filename";
+
+    /** File extension of text files converted by {@link #enqueueFolder}. */
+    private static final String TEXT_EXTENSION = ".txt";
+
+    private static final int NOTIFICATION_ID = 1;
+
+    /** Adds jobs off the main thread, in the order they were requested. */
+    private static final ExecutorService sEnqueueExecutor = Executors.newSingleThreadExecutor();
+
+    private ExportJobStore mStore;
+    private TextToSpeechPool mTtsPool;
+    private FileSynthesizer mSynth;
+    private LocalBroadcastManager mBroadcastManager;
+    private NotificationManager mNotificationManager;
+    private NotificationCompat.Builder mNotificationBuilder;
+    private WakeLock mWakeLock;
+    private String mTtsEngine;
+
+    /** The job being loaded or synthesized, or {@code null} if idle. */
+    private ExportJob mCurrentJob;
+
+    /** Whether the next job is being loaded. */
+    private boolean mLoading;
+
+    /** A job that was canceled while it was being loaded. */
+    private long mCanceledJobId = -1;
+
+    /** The most recent start request. */
+    private int mLastStartId;
+
+    /** Whether jobs left running by a killed process have been requeued. */
+    private boolean mRecovered;
+
+    /**
+     * Adds a job to the queue on a background thread and starts the service.
+     * Must be called on the main thread.
+     *
+     * @param context The parent context.
+     * @param job The job to add.
+     * @param listener The listener to notify once the job has been added.
+     */
+    public static void enqueue(Context context, final ExportJob job,
+            final OnEnqueuedListener listener) {
+        final Context appContext = context.getApplicationContext();
+
+        AsyncTaskCompatUtils.executeOnExecutor(new EnqueueTask(appContext, listener) {
+            @Override
+            protected Integer doInBackground(Void... params) {
+                job.id = ExportJobStore.getInstance(appContext).add(job);
+                mLastJobId = job.id;
+
+                return (job.id >= 0) ? 1 : 0;
+            }
+        }, sEnqueueExecutor);
+    }
+
+    /**
+     * Adds a job for every text file in a folder on a background thread and
+     * starts the service. Each file is saved under its own name. Must be
+     * called on the main thread.
+     *
+     * @param context The parent context.
+     * @param folder The folder containing text files.
+     * @param locale The speech locale, or {@code null} for the default.
+     * @param pitch The speech pitch, as used in preferences.
+     * @param rate The speech rate, as used in preferences.
+     * @param format The output format.
+     * @param listener The listener to notify once the jobs have been added.
+     */
+    public static void enqueueFolder(Context context, final File folder, final Locale locale,
+            final int pitch, final int rate, final OutputFormat format,
+            final OnEnqueuedListener listener) {
+        final Context appContext = context.getApplicationContext();
+
+        AsyncTaskCompatUtils.executeOnExecutor(new EnqueueTask(appContext, listener) {
+            @Override
+            protected Integer doInBackground(Void... params) {
+                final File[] files = folder.listFiles(TEXT_FILE_FILTER);
+
+                if ((files == null) || (files.length == 0)) {
+                    return 0;
+                }
+
+                Arrays.sort(files);
+
+                final ExportJobStore store = ExportJobStore.getInstance(appContext);
+                int count = 0;
+
+                for (File file : files) {
+                    final String name = file.getName();
+                    final String filename = name.substring(0,
+                            name.length() - TEXT_EXTENSION.length());
+                    final ExportJob job = new ExportJob(ExportJobStore.SOURCE_FILE,
+                            file.getAbsolutePath(), locale, pitch, rate, filename, format);
+
+                    job.id = store.add(job);
+
+                    if (job.id >= 0) {
+                        mLastJobId = job.id;
+                        count++;
+                    }
+                }
+
+                return count;
+            }
+        }, sEnqueueExecutor);
+    }
+
+    /**
+     * Cancels a queued or running job.
+     *
+     * @param context The parent context.
+     * @param jobId The ID of the job to cancel.
+     */
+    public static void cancel(Context context, long jobId) {
+        final Intent intent = new Intent(ACTION_CANCEL, null, context, ExportService.class);
+        intent.putExtra(EXTRA_JOB_ID, jobId);
+
+        context.startService(intent);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        mStore = ExportJobStore.getInstance(this);
+
+        mBroadcastManager = LocalBroadcastManager.getInstance(this);
+        mTtsEngine = Settings.Secure.getString(getContentResolver(),
+                Settings.Secure.TTS_DEFAULT_SYNTH);
+        mTtsPool = TextToSpeechPool.open(this);
+
+        mSynth = new FileSynthesizer(this, mTtsPool);
+        mSynth.setListener(mSynthesizerListener);
+        mSynth.setAudioCache(AudioCache.getInstance(this), mTtsEngine);
+
+        final PowerManager pm = (PowerManager) getSystemService(POWER_SERVICE);
+        mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        mWakeLock.acquire();
+
+        final Intent libraryIntent = new Intent(this, LibraryActivity.class);
+
+        mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+
+        mNotificationBuilder = new NotificationCompat.Builder(this)
+                .setSmallIcon(R.drawable.icon).setOngoing(true)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentIntent(PendingIntent.getActivity(this, 0, libraryIntent, 0));
+
+        startForegroundCompat(mNotificationBuilder.build());
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void onStart(Intent intent, int startId) {
+        // Only called before API 5, where the service can't be sticky.
+        handleStart(intent, startId);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        handleStart(intent, startId);
+
+        // Restart after being killed so that the queue is resumed.
+        return START_STICKY;
+    }
+
+    private void handleStart(Intent intent, int startId) {
+        mLastStartId = startId;
+
+        // The intent is null when the service is restarted after being killed.
+        if ((intent != null) && ACTION_CANCEL.equals(intent.getAction())) {
+            onCancelJob(intent.getLongExtra(EXTRA_JOB_ID, -1));
+        }
+
+        startNextJob();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        mTtsPool.close();
+        mWakeLock.release();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @TargetApi(5)
+    private void startForegroundCompat(Notification notification) {
+        if (Build.VERSION.SDK_INT >= 5) {
+            startForeground(NOTIFICATION_ID, notification);
+        }
+    }
+
+    private void onCancelJob(long jobId) {
+        if ((mCurrentJob != null) && (mCurrentJob.id == jobId)) {
+            mSynth.cancel();
+        } else if (mStore.cancelPending(jobId)) {
+            sendJobEvent(EVENT_CANCELED, jobId);
+        } else if (mLoading) {
+            mCanceledJobId = jobId;
+        }
+    }
+
+    /**
+     * Loads and starts the next pending job if the service is idle, or stops
+     * the service if there are no more jobs.
+     */
+    private void startNextJob() {
+        if (mLoading || (mCurrentJob != null)) {
+            return;
+        }
+
+        mLoading = true;
+
+        AsyncTaskCompatUtils.executeInParallel(new LoadJobTask());
+    }
+
+    private void onJobLoaded(ExportJob job, CharSequence text) {
+        mLoading = false;
+
+        if (job == null) {
+            // Jobs may have been added while loading.
+            if (mStore.getRemainingCount() > 0) {
+                startNextJob();
+            } else {
+                stopSelf(mLastStartId);
+            }
+
+            return;
+        }
+
+        mCurrentJob = job;
+
+        if (job.id == mCanceledJobId) {
+            sendJobEvent(EVENT_CANCELED, job.id);
+            onJobFinished(ExportJobStore.STATE_CANCELED);
+            return;
+        }
+
+        if (text == null) {
+            sendFailedEvent(job.id, FileSynthesizer.ERROR_SYNTHESIS, job.filename);
+            onJobFinished(ExportJobStore.STATE_FAILED);
+            return;
+        }
+
+        updateNotification(0, text.length());
+
+        mSynth.setMetrics(SpeechMetrics.get(mTtsEngine, job.locale, job.rate));
+        mSynth.setOutputFormat(job.format);
+
+        if (!mSynth.writeInput(text, job.locale, job.pitch, job.rate, job.filename)
+                && (mCurrentJob == job)) {
+            // The file name was empty, so the synthesizer didn't report it.
+            sendFailedEvent(job.id, FileSynthesizer.ERROR_NO_WRITE, job.filename);
+            onJobFinished(ExportJobStore.STATE_FAILED);
+        }
+    }
+
+    /**
+     * Records the final state of the current job and moves on to the next.
+     */
+    private void onJobFinished(int state) {
+        mStore.setState(mCurrentJob.id, state);
+        mCurrentJob = null;
+
+        startNextJob();
+    }
+
+    private void updateNotification(int progress, int max) {
+        final String message = getString(R.string.saving_message, mCurrentJob.filename
+                + mCurrentJob.format.extension);
+
+        mNotificationBuilder.setContentText(message).setProgress(max, progress, false);
+        mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+    }
+
+    private void sendJobEvent(String event, long jobId) {
+        final Intent intent = new Intent(event);
+        intent.putExtra(EXTRA_JOB_ID, jobId);
+
+        mBroadcastManager.sendBroadcast(intent);
+    }
+
+    private void sendFailedEvent(long jobId, int error, String filename) {
+        final Intent intent = new Intent(EVENT_FAILED);
+        intent.putExtra(EXTRA_JOB_ID, jobId);
+        intent.putExtra(EXTRA_ERROR, error);
+        intent.putExtra(EXTRA_FILENAME, filename);
+
+        mBroadcastManager.sendBroadcast(intent);
+    }
+
+    /**
+     * Loads the next pending job and its text.
+     */
+    private class LoadJobTask extends AsyncTask<Void, Void, ExportJob> {
+        private CharSequence mText;
+
+        @Override
+        protected ExportJob doInBackground(Void... params) {
+            // Only one load runs at a time, so this isn't racy.
+            if (!mRecovered) {
+                mStore.recover();
+                mRecovered = true;
+            }
+
+            ExportJob job = mStore.getNextPending();
+
+            // The job may be canceled after it's read, so claim it atomically
+            // and skip it if it's no longer pending.
+            while ((job != null) && !mStore.claim(job.id)) {
+                job = mStore.getNextPending();
+            }
+
+            if (job == null) {
+                // Nothing is left to resume, so any journals are orphaned.
+                if (mStore.getRemainingCount() == 0) {
+                    FileSynthesizer.discardJournals();
+                }
+
+                return null;
+            }
+
+            final File file = (job.sourceType == ExportJobStore.SOURCE_FILE) ? new File(
+                    job.source) : mStore.getTextFile(job.id);
+
+            // Map the file rather than reading it, since it may be a book.
+            try {
+                mText = MappedCharSequence.open(file);
+            } catch (final IOException e) {
+                e.printStackTrace();
+                mText = null;
+            }
+
+            return job;
+        }
+
+        @Override
+        protected void onPostExecute(ExportJob result) {
+            onJobLoaded(result, mText);
+        }
+    }
+
+    /**
+     * Adds jobs to the store, then starts the service and notifies the
+     * listener on the main thread.
+     */
+    private static abstract class EnqueueTask extends AsyncTask<Void, Void, Integer> {
+        private final Context mContext;
+        private final OnEnqueuedListener mListener;
+
+        /** The ID of the last job added, or {@code -1} if none were added. */
+        protected long mLastJobId = -1;
+
+        public EnqueueTask(Context context, OnEnqueuedListener listener) {
+            mContext = context;
+            mListener = listener;
+        }
+
+        @Override
+        protected void onPostExecute(Integer count) {
+            if (count > 0) {
+                mContext.startService(new Intent(ACTION_START, null, mContext,
+                        ExportService.class));
+            }
+
+            if (mListener != null) {
+                mListener.onEnqueued(mLastJobId, count);
+            }
+        }
+    }
+
+    /**
+     * Listener for jobs having been added to the queue.
+     */
+    public interface OnEnqueuedListener {
+        /**
+         * Called on the main thread once jobs have been added.
+         *
+         * @param lastJobId The ID of the last job added, or {@code -1} if
+         *            none could be added.
+         * @param count The number of jobs added.
+         */
+        public void onEnqueued(long lastJobId, int count);
+    }
+
+    private final FileSynthesizerListener mSynthesizerListener = new FileSynthesizerListener() {
+        @Override
+        public void onFileSynthesisProgress(int segmentsDone, int segmentCount,
+                int charactersDone, int characterCount, long remainingMillis) {
+            final Intent intent = new Intent(EVENT_PROGRESS);
+            intent.putExtra(EXTRA_JOB_ID, mCurrentJob.id);
+            intent.putExtra(EXTRA_SEGMENTS_DONE, segmentsDone);
+            intent.putExtra(EXTRA_SEGMENT_COUNT, segmentCount);
+            intent.putExtra(EXTRA_CHARACTERS_DONE, charactersDone);
+            intent.putExtra(EXTRA_CHARACTER_COUNT, characterCount);
+            intent.putExtra(EXTRA_REMAINING_MILLIS, remainingMillis);
+
+            mBroadcastManager.sendBroadcast(intent);
+
+            updateNotification(charactersDone, characterCount);
+        }
+
+        @Override
+        public void onFileSynthesized(ContentValues contentValues) {
+            final Intent intent = new Intent(EVENT_COMPLETED);
+            intent.putExtra(EXTRA_JOB_ID, mCurrentJob.id);
+            intent.putExtra(EXTRA_PATH, contentValues.getAsString(MediaColumns.DATA));
+
+            mBroadcastManager.sendBroadcast(intent);
+
+            onJobFinished(ExportJobStore.STATE_COMPLETED);
+        }
+
+        @Override
+        public void onFileReused(String path) {
+            final Intent intent = new Intent(EVENT_COMPLETED);
+            intent.putExtra(EXTRA_JOB_ID, mCurrentJob.id);
+            intent.putExtra(EXTRA_PATH, path);
+            intent.putExtra(EXTRA_REUSED, true);
+
+            mBroadcastManager.sendBroadcast(intent);
+
+            onJobFinished(ExportJobStore.STATE_COMPLETED);
+        }
+
+        @Override
+        public void onFileSynthesisFailed(int error, String filename) {
+            sendFailedEvent(mCurrentJob.id, error, filename);
+
+            onJobFinished(ExportJobStore.STATE_FAILED);
+        }
+
+        @Override
+        public void onFileSynthesisCanceled() {
+            sendJobEvent(EVENT_CANCELED, mCurrentJob.id);
+
+            onJobFinished(ExportJobStore.STATE_CANCELED);
+        }
+    };
+
+    private static final FileFilter TEXT_FILE_FILTER = new FileFilter() {
+        @Override
+        public boolean accept(File file) {
+            return file.isFile() && file.getName().toLowerCase().endsWith(TEXT_EXTENSION);
+        }
+    };
+}
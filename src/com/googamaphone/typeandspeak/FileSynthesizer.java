@@ -2,48 +2,101 @@
 package com.googamaphone.typeandspeak;
 
 import java.io.File;
+import java.io.IOException;
+import java.text.BreakIterator;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Locale;
 
-import com.googamaphone.typeandspeak.utils.ReferencedHandler;
+import com.googamaphone.compat.AsyncTaskCompatUtils;
+import com.googamaphone.typeandspeak.utils.AudioCache;
+import com.googamaphone.typeandspeak.utils.AudioEncoder;
+import com.googamaphone.typeandspeak.utils.ChunkUtils;
+import com.googamaphone.typeandspeak.utils.OutputFormat;
+import com.googamaphone.typeandspeak.utils.SegmentIndex;
+import com.googamaphone.typeandspeak.utils.SegmentJournal;
+import com.googamaphone.typeandspeak.utils.SpeechMetrics;
+import com.googamaphone.typeandspeak.utils.TextToSpeechPool;
+import com.googamaphone.typeandspeak.utils.WavHeader;
 
-import android.app.AlertDialog;
-import android.app.AlertDialog.Builder;
-import android.app.ProgressDialog;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
-import android.content.DialogInterface;
-import android.content.DialogInterface.OnCancelListener;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Environment;
-import android.os.Message;
+import android.os.SystemClock;
 import android.provider.MediaStore.Audio.AudioColumns;
 import android.provider.MediaStore.Audio.Media;
 import android.provider.MediaStore.MediaColumns;
 import android.speech.tts.TextToSpeech;
 import android.speech.tts.TextToSpeech.Engine;
-
+import android.util.Log;
+
+/**
+ * Writes text to an audio file. The text is split into segments that are
+ * synthesized one at a time and passed through an {@link AudioEncoder} into
+ * the output file, so no single engine request is too long. A segment that
+ * fails is attempted again, and if it still fails the export fails rather
+ * than writing a file with a gap in it.
+ * <p>
+ * The synthesizer has no user interface. Results are reported to a
+ * {@link FileSynthesizerListener} on the main thread.
+ * <p>
+ * Synthesized segments are kept in a {@link SegmentJournal} until the file is
+ * complete. If the process dies, saving the same text to the same file again
+ * only synthesizes the segments that weren't finished.
+ * <p>
+ * Saved files are recorded in a {@link ClipIndex}. Saving text that has
+ * already been saved with the same settings reuses the existing file.
+ */
 public class FileSynthesizer {
+    private static final String TAG = FileSynthesizer.class.getSimpleName();
+
+    /** The output file already exists. */
+    public static final int ERROR_EXISTS = 1;
+
+    /** The output directory could not be created. */
+    public static final int ERROR_NO_WRITE = 2;
+
+    /** The engine did not produce audio for some or all of the text. */
+    public static final int ERROR_SYNTHESIS = 3;
+
+    /** Number of times a segment is attempted before the export fails. */
+    private static final int MAX_SEGMENT_ATTEMPTS = 2;
+
+    /** Longest time to wait for the engine to synthesize a segment. */
+    private static final long SEGMENT_TIMEOUT_MILLIS = 60000;
+
     private static final String UTTERANCE_ID = "synthesize";
-    private static final int UTTERANCE_COMPLETED = 1;
 
     private final ContentValues mContentValues = new ContentValues(10);
     private final HashMap<String, String> mSpeechParams = new HashMap<String, String>();
 
     private final Context mContext;
-    private final TextToSpeech mTts;
+    private final TextToSpeechPool mPool;
     private final String mArtistValue;
     private final String mAlbumValue;
 
-    private ProgressDialog mProgressDialog;
     private FileSynthesizerListener mListener;
+    private SpeechMetrics mMetrics;
+    private AudioCache mAudioCache;
+    private String mEngine;
+    private OutputFormat mOutputFormat = OutputFormat.WAV;
+
+    /** Workers that are synthesizing segments, guarded by itself. */
+    private final ArrayList<SegmentWorker> mWorkers = new ArrayList<SegmentWorker>();
 
-    private boolean mCanceled = false;
+    private volatile boolean mCanceled = false;
 
-    public FileSynthesizer(Context context, TextToSpeech tts) {
+    /**
+     * @param context The parent context.
+     * @param pool The pool to lease engines from. Segments are synthesized
+     *            on as many engines as the pool allows.
+     */
+    public FileSynthesizer(Context context, TextToSpeechPool pool) {
         mContext = context;
-        mTts = tts;
+        mPool = pool;
 
         mArtistValue = mContext.getString(R.string.app_name);
         mAlbumValue = mContext.getString(R.string.album_name);
@@ -55,39 +108,94 @@ public class FileSynthesizer {
         mListener = listener;
     }
 
-    @SuppressWarnings("deprecation")
-    private void onUtteranceCompleted(String utteranceId) {
-        mTts.setOnUtteranceCompletedListener(null);
+    /**
+     * Sets the metrics to record synthesis timings into.
+     *
+     * @param metrics The metrics to record into, or {@code null} to stop
+     *            recording.
+     */
+    public void setMetrics(SpeechMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Sets the format used for saved files.
+     *
+     * @param format The output format.
+     */
+    public void setOutputFormat(OutputFormat format) {
+        mOutputFormat = format;
+    }
+
+    /**
+     * Sets the cache used to avoid synthesizing the same text twice. Each
+     * synthesized segment is added to the cache, and segments that are
+     * already cached are copied instead of being synthesized again.
+     *
+     * @param cache The cache to use, or {@code null} to disable caching.
+     * @param engine The package name of the speech engine.
+     */
+    public void setAudioCache(AudioCache cache, String engine) {
+        mAudioCache = cache;
+        mEngine = engine;
+    }
+
+    /**
+     * @return The directory that saved speech is written to.
+     */
+    public static File getOutputDirectory() {
+        return new File(Environment.getExternalStorageDirectory(), "typeandspeak");
+    }
+
+    /**
+     * @return The directory that journals for unfinished files are kept in.
+     */
+    private static File getJournalDirectory() {
+        return new File(getOutputDirectory(), ".journal");
+    }
+
+    /**
+     * Deletes the journals of all unfinished files. Should only be called
+     * when no files will be resumed.
+     */
+    public static void discardJournals() {
+        SegmentJournal.deleteDirectory(getJournalDirectory());
+    }
+
+    /**
+     * Cancels the save operation in progress, if any. The listener is
+     * notified once the partial file has been deleted.
+     */
+    public void cancel() {
+        mCanceled = true;
 
-        if (mCanceled) {
-            onWriteCanceled();
-        } else {
-            onWriteCompleted();
+        synchronized (mWorkers) {
+            for (SegmentWorker worker : mWorkers) {
+                worker.cancel();
+            }
         }
     }
 
     /**
      * Inserts media information into the database after a successful save
-     * operation.
+     * operation and records the file in the clip index.
      *
-     * @param contentValues The media descriptor values.
+     * @param inputHash The hash of the synthesis inputs.
+     * @param format The format of the saved file.
      */
-    private void onWriteCompleted() {
+    private void onWriteCompleted(String inputHash, OutputFormat format) {
         final ContentResolver resolver = mContext.getContentResolver();
         final String path = mContentValues.getAsString(MediaColumns.DATA);
         final Uri uriForPath = Media.getContentUriForPath(path);
 
         resolver.insert(uriForPath, mContentValues);
 
-        // Clears last queue element to avoid deletion on exit.
-        mTts.speak("", TextToSpeech.QUEUE_FLUSH, null);
+        final ClipIndex index = new ClipIndex(mContext);
 
         try {
-            if (mProgressDialog.isShowing()) {
-                mProgressDialog.dismiss();
-            }
-        } catch (final IllegalArgumentException e) {
-            e.printStackTrace();
+            index.put(inputHash, format, path);
+        } finally {
+            index.close();
         }
 
         if (mListener != null) {
@@ -98,141 +206,686 @@ public class FileSynthesizer {
     }
 
     /**
-     * Deletes the partially completed file after a canceled save operation.
-     *
-     * @param values The media descriptor values.
+     * Reports an error after a save operation that failed to synthesize some
+     * or all of the text.
      */
-    private void onWriteCanceled() {
-        try {
-            final String path = mContentValues.getAsString(MediaColumns.DATA);
-            new File(path).delete();
-        } catch (final Exception e) {
-            e.printStackTrace();
-        }
-
-        final String title = mContext.getString(R.string.canceled_title);
-        final String message = mContext.getString(R.string.canceled_message);
-        final AlertDialog alert = new Builder(mContext).setTitle(title).setMessage(message)
-                .setPositiveButton(android.R.string.ok, null).create();
+    private void onWriteFailed() {
+        final String path = mContentValues.getAsString(MediaColumns.DATA);
 
-        mTts.stop();
+        mContentValues.clear();
 
-        try {
-            alert.show();
-        } catch (final RuntimeException e) {
-            e.printStackTrace();
+        if (mListener != null) {
+            mListener.onFileSynthesisFailed(ERROR_SYNTHESIS, new File(path).getName());
         }
+    }
 
+    /**
+     * Reports a canceled save operation.
+     */
+    private void onWriteCanceled() {
         mContentValues.clear();
+
+        if (mListener != null) {
+            mListener.onFileSynthesisCanceled();
+        }
     }
 
-    @SuppressWarnings("deprecation")
-    public void writeInput(String text, Locale locale, int pitch, int rate, String filename) {
+    /**
+     * Starts writing text to a file in the {@link #getOutputDirectory()
+     * output directory}. Must be called on the main thread, and only once the
+     * previous save operation has finished. The text is only read, so it may
+     * be a
+     * {@link com.googamaphone.typeandspeak.utils.MappedCharSequence} backed by
+     * a large file. Hashing and segmenting the text happen on a background
+     * thread, so the listener is told whether an existing file was reused
+     * once that's done.
+     *
+     * @return Whether the save operation was started. If not, and the file
+     *         name was not empty, the listener has already been notified of
+     *         the error.
+     */
+    public boolean writeInput(CharSequence text, Locale locale, int pitch, int rate,
+            String filename) {
         mCanceled = false;
 
-        if (filename.toLowerCase().endsWith(".wav")) {
-            filename = filename.substring(0, filename.length() - 4);
-        }
+        final OutputFormat format = mOutputFormat;
 
-        filename = filename.trim();
+        filename = OutputFormat.removeExtension(filename).trim();
 
         if (filename.length() <= 0) {
-            return;
+            return false;
         }
 
-        final String directory = Environment.getExternalStorageDirectory().getPath()
-                + "/typeandspeak";
-
-        final File outdir = new File(directory);
-        final File outfile = new File(directory + "/" + filename + ".wav");
-
-        final String message;
-        final AlertDialog alert;
+        final File outdir = getOutputDirectory();
+        final String outname = filename + format.extension;
+        final File outfile = new File(outdir, outname);
 
         if (outfile.exists()) {
-            message = mContext.getString(R.string.exists_message, filename);
-            alert = new Builder(mContext).setTitle(R.string.exists_title).setMessage(message)
-                    .setPositiveButton(android.R.string.ok, null).create();
+            if (mListener != null) {
+                mListener.onFileSynthesisFailed(ERROR_EXISTS, outname);
+            }
+
+            return false;
         } else if (!outdir.exists() && !outdir.mkdirs()) {
-            message = mContext.getString(R.string.no_write_message, filename);
-            alert = new Builder(mContext).setTitle(R.string.no_write_title).setMessage(message)
-                    .setPositiveButton(android.R.string.ok, null).create();
-        } else {
-            // Attempt to set the locale.
-            if (locale != null) {
-                mTts.setLanguage(locale);
-            }
-
-            // Populate content values for the media provider.
-            mContentValues.clear();
-            mContentValues.put(MediaColumns.DISPLAY_NAME, filename);
-            mContentValues.put(MediaColumns.TITLE, filename);
-            mContentValues.put(AudioColumns.ARTIST, mArtistValue);
-            mContentValues.put(AudioColumns.ALBUM, mAlbumValue);
-            mContentValues.put(AudioColumns.IS_ALARM, true);
-            mContentValues.put(AudioColumns.IS_RINGTONE, true);
-            mContentValues.put(AudioColumns.IS_NOTIFICATION, true);
-            mContentValues.put(AudioColumns.IS_MUSIC, true);
-            mContentValues.put(MediaColumns.MIME_TYPE, "audio/wav");
-            mContentValues.put(MediaColumns.DATA, outfile.getAbsolutePath());
-
-            mTts.setPitch(pitch / 50.0f);
-            mTts.setSpeechRate(rate / 50.0f);
-            mTts.setOnUtteranceCompletedListener(mOnUtteranceCompletedListener);
-            mTts.synthesizeToFile(text, mSpeechParams, outfile.getAbsolutePath());
-
-            message = mContext.getString(R.string.saving_message, filename);
-
-            mProgressDialog = new ProgressDialog(mContext);
-            mProgressDialog.setCancelable(true);
-            mProgressDialog.setTitle(R.string.saving_title);
-            mProgressDialog.setMessage(message);
-            mProgressDialog.setIndeterminate(true);
-            mProgressDialog.setOnCancelListener(mOnCancelListener);
-
-            alert = mProgressDialog;
+            if (mListener != null) {
+                mListener.onFileSynthesisFailed(ERROR_NO_WRITE, outname);
+            }
+
+            return false;
+        }
+
+        // Populate content values for the media provider.
+        mContentValues.clear();
+        mContentValues.put(MediaColumns.DISPLAY_NAME, filename);
+        mContentValues.put(MediaColumns.TITLE, filename);
+        mContentValues.put(AudioColumns.ARTIST, mArtistValue);
+        mContentValues.put(AudioColumns.ALBUM, mAlbumValue);
+        mContentValues.put(AudioColumns.IS_ALARM, true);
+        mContentValues.put(AudioColumns.IS_RINGTONE, true);
+        mContentValues.put(AudioColumns.IS_NOTIFICATION, true);
+        mContentValues.put(AudioColumns.IS_MUSIC, true);
+        mContentValues.put(MediaColumns.MIME_TYPE, format.mimeType);
+        mContentValues.put(MediaColumns.DATA, outfile.getAbsolutePath());
+
+        // Exports take minutes, so keep them off the serial executor.
+        AsyncTaskCompatUtils.executeInParallel(new ExportTask(text, outfile, format, locale,
+                pitch, rate));
+
+        return true;
+    }
+
+    /**
+     * Reports that an existing file was reused instead of synthesizing.
+     *
+     * @param path The path of the existing file.
+     */
+    private void onWriteReused(String path) {
+        mContentValues.clear();
+
+        if (mListener != null) {
+            mListener.onFileReused(path);
         }
+    }
+
+    /**
+     * @return The path of a saved file with the same inputs and format, or
+     *         {@code null} if there isn't one.
+     */
+    private String findClip(String inputHash, OutputFormat format) {
+        final ClipIndex index = new ClipIndex(mContext);
 
         try {
-            alert.show();
-        } catch (final RuntimeException e) {
-            e.printStackTrace();
+            return index.get(inputHash, format);
+        } finally {
+            index.close();
         }
     }
-    
-    private SynthesizerHandler mHandler = new SynthesizerHandler(this);
 
-    private final TextToSpeech.OnUtteranceCompletedListener mOnUtteranceCompletedListener = new TextToSpeech.OnUtteranceCompletedListener() {
+    /**
+     * Notifies the listener of progress.
+     *
+     * @param segmentsDone The number of segments written.
+     * @param segmentCount The total number of segments.
+     * @param charactersDone The number of characters written.
+     * @param characterCount The total number of characters.
+     * @param remainingMillis The estimated time remaining, or {@code -1} if
+     *            unknown.
+     */
+    private void onWriteProgress(int segmentsDone, int segmentCount, int charactersDone,
+            int characterCount, long remainingMillis) {
+        if (mListener != null) {
+            mListener.onFileSynthesisProgress(segmentsDone, segmentCount, charactersDone,
+                    characterCount, remainingMillis);
+        }
+    }
+
+    /**
+     * Synthesizes each segment of the text and appends it to the output file.
+     * Segments are synthesized on engines leased from the pool and appended
+     * in order. Segments that are already journaled or cached
+     * are appended without synthesizing them again.
+     * <p>
+     * The text is hashed, looked up in the clip index, and segmented on the
+     * background thread, since it may be as long as a book.
+     */
+    private class ExportTask extends AsyncTask<Void, Integer, Boolean> {
+        /** Number of segments that may be synthesized ahead of the encoder. */
+        private static final int SEGMENTS_PER_WORKER = 2;
+
+        private final CharSequence mText;
+        private final File mOutfile;
+        private final OutputFormat mFormat;
+        private final Locale mLocale;
+        private final int mPitch;
+        private final int mRate;
+        private final AudioCache mCache;
+
+        // The following are set on the background thread before any workers
+        // are started.
+
+        private SegmentIndex mSegments;
+        private SegmentJournal mJournal;
+        private String mInputHash;
+
+        /** The path of an existing file with the same inputs, if any. */
+        private String mReusedPath;
+
+        /** Segments that may be synthesized ahead of the encoder. */
+        private int mLookahead;
+
+        /** Synthesized audio by segment, guarded by {@code this}. */
+        private File[] mSegmentAudio;
+
+        /** Which segments have been attempted, guarded by {@code this}. */
+        private boolean[] mSegmentDone;
+
+        /** The next segment to synthesize, guarded by {@code this}. */
+        private int mNextSegment = 0;
+
+        /** The number of segments appended, guarded by {@code this}. */
+        private int mSegmentsAppended = 0;
+
+        /** Whether workers should stop, guarded by {@code this}. */
+        private boolean mFinished = false;
+
+        /** Time at which the first segment started. */
+        private long mStartTime;
+
+        public ExportTask(CharSequence text, File outfile, OutputFormat format, Locale locale,
+                int pitch, int rate) {
+            mText = text;
+            mOutfile = outfile;
+            mFormat = format;
+            mLocale = locale;
+            mPitch = pitch;
+            mRate = rate;
+            mCache = mAudioCache;
+        }
+
         @Override
-        public void onUtteranceCompleted(String utteranceId) {
-            mHandler.obtainMessage(UTTERANCE_COMPLETED, utteranceId).sendToTarget();
+        protected Boolean doInBackground(Void... params) {
+            mInputHash = AudioCache.getKey(mText, mLocale, mPitch, mRate, mEngine);
+            mReusedPath = findClip(mInputHash, mFormat);
+
+            if (mReusedPath != null) {
+                return true;
+            }
+
+            final Locale segmentLocale = (mLocale != null) ? mLocale : Locale.getDefault();
+
+            mSegments = SegmentIndex.build(mText,
+                    BreakIterator.getSentenceInstance(segmentLocale),
+                    ChunkUtils.DEFAULT_MAX_LENGTH);
+            mSegmentAudio = new File[mSegments.size()];
+            mSegmentDone = new boolean[mSegments.size()];
+
+            // The journal is only resumed for the same text and settings.
+            final String signature = mInputHash + " " + mSegments.size();
+            mJournal = new SegmentJournal(new File(getJournalDirectory(), mOutfile.getName()),
+                    signature);
+
+            mStartTime = SystemClock.elapsedRealtime();
+            publishProgress(0, 0, 0);
+
+            final boolean[] journaled;
+
+            try {
+                journaled = openJournal();
+            } catch (final IOException e) {
+                e.printStackTrace();
+                mJournal.delete();
+                return false;
+            }
+
+            final int workerCount = Math.min(mPool.getBackgroundCapacity(), mSegments.size());
+            final Thread[] workers = new Thread[workerCount];
+
+            mLookahead = (workerCount * SEGMENTS_PER_WORKER);
+
+            for (int i = 0; i < workerCount; i++) {
+                workers[i] = new SegmentWorker(this);
+                workers[i].start();
+            }
+
+            boolean success = false;
+            boolean failed = false;
+
+            try {
+                final File partial = mJournal.getOutputFile();
+                final AudioEncoder writer = mFormat.createEncoder(partial);
+                int charactersSynthesized = 0;
+
+                try {
+                    for (int i = 0; (i < mSegments.size()) && !mCanceled; i++) {
+                        final File segment = waitForSegment(i);
+
+                        if (mCanceled) {
+                            break;
+                        } else if (segment == null) {
+                            // Don't write a file with a gap in it.
+                            Log.e(TAG, "Failed to synthesize segment " + i);
+                            failed = true;
+                            break;
+                        }
+
+                        writer.append(segment, WavHeader.read(segment));
+
+                        synchronized (this) {
+                            mSegmentsAppended = (i + 1);
+                            notifyAll();
+                        }
+
+                        if (!journaled[i]) {
+                            charactersSynthesized += mSegments.getEnd(i) - mSegments.getStart(i);
+                        }
+
+                        publishProgress(i + 1, mSegments.getEnd(i), charactersSynthesized);
+                    }
+                } finally {
+                    writer.close();
+                }
+
+                if (!mCanceled && !failed && writer.hasData()) {
+                    if (!partial.renameTo(mOutfile)) {
+                        AudioCache.copy(partial, mOutfile);
+                    }
+
+                    success = true;
+                }
+            } catch (final IOException e) {
+                e.printStackTrace();
+            } finally {
+                finishWorkers(workers);
+
+                // Keep the journal only if the process dies.
+                mJournal.delete();
+            }
+
+            return success;
         }
-    };
 
-    private final DialogInterface.OnCancelListener mOnCancelListener = new OnCancelListener() {
         @Override
-        public void onCancel(DialogInterface dialog) {
-            mCanceled = true;
-            mTts.stop();
+        protected void onProgressUpdate(Integer... values) {
+            final int segmentsDone = values[0];
+            final int charactersDone = values[1];
+            final int charactersSynthesized = values[2];
+            final int characterCount = mText.length();
+            final long elapsed = (SystemClock.elapsedRealtime() - mStartTime);
+
+            // Assume the remaining text is synthesized at the rate so far.
+            // Journaled segments take no time, so they're not counted.
+            final long remainingMillis = (charactersSynthesized > 0)
+                    ? ((elapsed * (characterCount - charactersDone)) / charactersSynthesized)
+                    : -1;
+
+            onWriteProgress(segmentsDone, mSegments.size(), charactersDone, characterCount,
+                    remainingMillis);
         }
-    };
-    
-    private static class SynthesizerHandler extends ReferencedHandler<FileSynthesizer> {
-        public SynthesizerHandler(FileSynthesizer parent) {
-            super(parent);
+
+        @Override
+        protected void onPostExecute(Boolean result) {
+            if (mCanceled) {
+                onWriteCanceled();
+            } else if (mReusedPath != null) {
+                onWriteReused(mReusedPath);
+            } else if (result) {
+                onWriteCompleted(mInputHash, mFormat);
+            } else {
+                onWriteFailed();
+            }
+        }
+
+        /**
+         * Blocks until a segment has been attempted.
+         *
+         * @return The audio for the segment, or {@code null} if it couldn't
+         *         be synthesized or the export was canceled.
+         */
+        private synchronized File waitForSegment(int index) {
+            while (!mSegmentDone[index] && !mCanceled) {
+                try {
+                    wait();
+                } catch (final InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            return mSegmentAudio[index];
+        }
+
+        /**
+         * Opens the journal and marks segments that were completed by a
+         * previous attempt as done.
+         *
+         * @return Which segments were restored from the journal.
+         */
+        private boolean[] openJournal() throws IOException {
+            final File directory = getJournalDirectory();
+
+            // Keep journaled segments out of the media library.
+            directory.mkdirs();
+            new File(directory, ".nomedia").createNewFile();
+
+            final boolean[] journaled = mJournal.open(mSegments.size());
+
+            synchronized (this) {
+                for (int i = 0; i < journaled.length; i++) {
+                    if (journaled[i]) {
+                        mSegmentAudio[i] = mJournal.getSegmentFile(i);
+                        mSegmentDone[i] = true;
+                    }
+                }
+            }
+
+            return journaled;
+        }
+
+        /**
+         * Stops the workers and waits for them to finish.
+         */
+        private void finishWorkers(Thread[] workers) {
+            synchronized (this) {
+                mFinished = true;
+                notifyAll();
+            }
+
+            for (Thread worker : workers) {
+                try {
+                    worker.join();
+                } catch (final InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Claims the next segment to synthesize, blocking while the workers
+         * are too far ahead of the encoder. Called from worker threads.
+         *
+         * @return The index of the segment, or {@code -1} if there are no more
+         *         segments to synthesize.
+         */
+        private synchronized int nextSegment() {
+            while (true) {
+                // Skip segments restored from the journal.
+                while ((mNextSegment < mSegments.size()) && mSegmentDone[mNextSegment]) {
+                    mNextSegment++;
+                }
+
+                if (mFinished || mCanceled || (mNextSegment >= mSegments.size())) {
+                    return -1;
+                }
+
+                if (mNextSegment < (mSegmentsAppended + mLookahead)) {
+                    return mNextSegment++;
+                }
+
+                try {
+                    wait();
+                } catch (final InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Stores the result of synthesizing a segment. Called from worker
+         * threads.
+         */
+        private synchronized void onSegmentDone(int index, File audio) {
+            mSegmentAudio[index] = audio;
+            mSegmentDone[index] = true;
+            notifyAll();
+        }
+
+        /**
+         * Returns the audio for a segment, synthesizing it into the journal
+         * if it isn't cached.
+         *
+         * @return The audio for a segment, or {@code null} if it couldn't be
+         *         synthesized.
+         */
+        private File getSegmentAudio(int index, SegmentWorker worker) throws IOException {
+            final String text = mText.subSequence(mSegments.getStart(index),
+                    mSegments.getEnd(index)).toString();
+            final AudioCache cache = mCache;
+            final String key = (cache == null) ? null
+                    : AudioCache.getKey(text, mLocale, mPitch, mRate, mEngine);
+
+            if (cache != null) {
+                final File cached = cache.get(key);
+
+                if (cached != null) {
+                    return cached;
+                }
+            }
+
+            final File output = mJournal.getSegmentFile(index);
+            final long startTime = SystemClock.elapsedRealtime();
+
+            if (!worker.synthesize(text, output, mLocale, mPitch, mRate)) {
+                output.delete();
+                return null;
+            }
+
+            if (mMetrics != null) {
+                mMetrics.onSynthesized(SystemClock.elapsedRealtime() - startTime,
+                        WavHeader.read(output).getDurationMillis());
+            }
+
+            mJournal.commit(index);
+
+            if (cache != null) {
+                final File temp = cache.getTempFile(key);
+
+                try {
+                    AudioCache.copy(output, temp);
+                    cache.put(key, temp);
+                } catch (final IOException e) {
+                    e.printStackTrace();
+                    temp.delete();
+                }
+            }
+
+            return output;
+        }
+    }
+
+    /**
+     * Synthesizes segments for an export task on engines leased from the
+     * pool. Each segment is synthesized on a fresh lease, so interactive
+     * speech can hold off synthesis between segments.
+     */
+    private class SegmentWorker extends Thread
+            implements TextToSpeech.OnUtteranceCompletedListener {
+        private final ExportTask mTask;
+
+        /** The current lease, guarded by {@code this}. */
+        private TextToSpeechPool.Lease mLease;
+
+        /** Whether the engine has finished the current segment. */
+        private boolean mSegmentDone;
+
+        public SegmentWorker(ExportTask task) {
+            super(TAG);
+
+            mTask = task;
         }
 
         @Override
-        protected void handleMessage(Message msg, FileSynthesizer parent) {
-            switch (msg.what) {
-                case UTTERANCE_COMPLETED:
-                    parent.onUtteranceCompleted((String) msg.obj);
-                    break;
+        public void run() {
+            synchronized (mWorkers) {
+                mWorkers.add(this);
+            }
+
+            try {
+                int index;
+
+                while ((index = mTask.nextSegment()) >= 0) {
+                    File audio = null;
+
+                    for (int i = 0; (audio == null) && (i < MAX_SEGMENT_ATTEMPTS)
+                            && !mCanceled; i++) {
+                        try {
+                            audio = mTask.getSegmentAudio(index, this);
+                        } catch (final IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+
+                    mTask.onSegmentDone(index, audio);
+                }
+            } finally {
+                synchronized (mWorkers) {
+                    mWorkers.remove(this);
+                }
+            }
+        }
+
+        /**
+         * Synthesizes a single segment to a file, blocking until the engine
+         * is done.
+         *
+         * @return Whether the engine reported success.
+         */
+        @SuppressWarnings("deprecation")
+        public boolean synthesize(String text, File outfile, Locale locale, int pitch, int rate) {
+            final TextToSpeechPool.Lease lease;
+
+            try {
+                lease = mPool.acquire();
+            } catch (final InterruptedException e) {
+                // Canceled while waiting for an engine.
+                Thread.currentThread().interrupt();
+                return false;
+            }
+
+            if (lease == null) {
+                return false;
+            }
+
+            try {
+                final TextToSpeech tts = lease.getTextToSpeech();
+
+                synchronized (this) {
+                    mLease = lease;
+                    mSegmentDone = false;
+                }
+
+                // Leased engines keep the settings of their previous holder.
+                if (locale != null) {
+                    tts.setLanguage(locale);
+                }
+
+                tts.setPitch(pitch / 50.0f);
+                tts.setSpeechRate(rate / 50.0f);
+                tts.setOnUtteranceCompletedListener(this);
+
+                if (mCanceled || (tts.synthesizeToFile(text, mSpeechParams,
+                        outfile.getAbsolutePath()) != TextToSpeech.SUCCESS)) {
+                    return false;
+                }
+
+                final long deadline = (SystemClock.elapsedRealtime() + SEGMENT_TIMEOUT_MILLIS);
+
+                synchronized (this) {
+                    while (!mSegmentDone && !mCanceled) {
+                        final long remaining = (deadline - SystemClock.elapsedRealtime());
+
+                        if (remaining <= 0) {
+                            break;
+                        }
+
+                        try {
+                            wait(remaining);
+                        } catch (final InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return false;
+                        }
+                    }
+
+                    if (!mSegmentDone && !mCanceled) {
+                        // The engine may have crashed or dropped the request,
+                        // so give up and let the caller retry.
+                        Log.e(TAG, "Timed out waiting for segment synthesis");
+                        tts.stop();
+                        return false;
+                    }
+                }
+
+                return !mCanceled && outfile.exists();
+            } finally {
+                synchronized (this) {
+                    mLease = null;
+                }
+
+                lease.release();
+            }
+        }
+
+        /**
+         * Stops the current segment, if any, or stops waiting for an engine.
+         */
+        public synchronized void cancel() {
+            if (mLease != null) {
+                mLease.getTextToSpeech().stop();
+            }
+
+            interrupt();
+            notifyAll();
+        }
+
+        @Override
+        public void onUtteranceCompleted(String utteranceId) {
+            if (!UTTERANCE_ID.equals(utteranceId)) {
+                return;
+            }
+
+            synchronized (this) {
+                mSegmentDone = true;
+                notifyAll();
             }
         }
     }
 
     public interface FileSynthesizerListener {
+        /**
+         * Called after each segment is written.
+         *
+         * @param segmentsDone The number of segments written.
+         * @param segmentCount The total number of segments.
+         * @param charactersDone The number of characters written.
+         * @param characterCount The total number of characters.
+         * @param remainingMillis The estimated time remaining, or {@code -1}
+         *            if unknown.
+         */
+        public void onFileSynthesisProgress(int segmentsDone, int segmentCount,
+                int charactersDone, int characterCount, long remainingMillis);
+
         public void onFileSynthesized(ContentValues contentValues);
+
+        /**
+         * Called instead of synthesizing when identical speech has already
+         * been saved.
+         *
+         * @param path The path of the existing file.
+         */
+        public void onFileReused(String path);
+
+        /**
+         * Called when a save operation fails.
+         *
+         * @param error One of {@link FileSynthesizer#ERROR_EXISTS},
+         *            {@link FileSynthesizer#ERROR_NO_WRITE}, or
+         *            {@link FileSynthesizer#ERROR_SYNTHESIS}.
+         * @param filename The name of the output file.
+         */
+        public void onFileSynthesisFailed(int error, String filename);
+
+        /**
+         * Called after a save operation is canceled and the partial file has
+         * been deleted.
+         */
+        public void onFileSynthesisCanceled();
     }
 }
@@ -1,6 +1,8 @@
 
 package com.googamaphone.typeandspeak;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Locale;
 
 import android.content.Context;
@@ -12,7 +14,8 @@ import android.widget.TextView;
 
 /**
  * An implementation of {@link ArrayAdapter} that displays locales with their
- * proper display names and flags.
+ * proper display names and flags. Locales are kept sorted by display name,
+ * and each display name is only computed once.
  */
 public class LanguageAdapter extends ArrayAdapter<Locale> {
     public static final Locale LOCALE_ADD_MORE = new Locale("addmore");
@@ -20,6 +23,9 @@ public class LanguageAdapter extends ArrayAdapter<Locale> {
     private final int mTextId;
     private final int mImageId;
 
+    /** Display names of locales, used for both sorting and binding. */
+    private final HashMap<Locale, String> mDisplayNames = new HashMap<Locale, String>();
+
     public LanguageAdapter(Context context, int layoutId, int textId, int imageId) {
         super(context, layoutId, textId);
 
@@ -27,6 +33,112 @@ public class LanguageAdapter extends ArrayAdapter<Locale> {
         mImageId = imageId;
     }
 
+    /**
+     * Adds locales in display name order, skipping any that are already in
+     * the adapter.
+     *
+     * @param locales The locales to add.
+     */
+    public void addLocales(Collection<Locale> locales) {
+        setNotifyOnChange(false);
+
+        for (Locale locale : locales) {
+            final int position = search(locale);
+
+            if (position < 0) {
+                insert(locale, -(position + 1));
+            }
+        }
+
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Removes the locales that aren't in the specified collection.
+     *
+     * @param locales The locales to keep.
+     */
+    public void retainLocales(Collection<Locale> locales) {
+        setNotifyOnChange(false);
+
+        for (int i = (getCount() - 1); i >= 0; i--) {
+            final Locale locale = getItem(i);
+
+            if (!locales.contains(locale)) {
+                remove(locale);
+            }
+        }
+
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Returns the position of a locale, matching on its string
+     * representation without regard to case.
+     *
+     * @param locale The locale to find.
+     * @return The position of the locale, or {@code -1} if it isn't present.
+     */
+    public int getPositionForLocale(Locale locale) {
+        if (locale == null) {
+            return -1;
+        }
+
+        final String name = locale.toString();
+
+        for (int i = 0; i < getCount(); i++) {
+            if (getItem(i).toString().equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Binary searches for a locale by display name.
+     *
+     * @return The position of the locale if it's present, otherwise
+     *         {@code -(insertion point + 1)}.
+     */
+    private int search(Locale locale) {
+        final String name = getDisplayName(locale);
+        int low = 0;
+        int high = (getCount() - 1);
+
+        while (low <= high) {
+            final int mid = ((low + high) >>> 1);
+            final Locale other = getItem(mid);
+            int result = getDisplayName(other).compareTo(name);
+
+            if (result == 0) {
+                // Different locales may share a display name.
+                result = other.toString().compareTo(locale.toString());
+            }
+
+            if (result < 0) {
+                low = (mid + 1);
+            } else if (result > 0) {
+                high = (mid - 1);
+            } else {
+                return mid;
+            }
+        }
+
+        return -(low + 1);
+    }
+
+    private String getDisplayName(Locale locale) {
+        String name = mDisplayNames.get(locale);
+
+        if (name == null) {
+            name = getDisplayNameForLocale(getContext(), locale).toString();
+            mDisplayNames.put(locale, name);
+        }
+
+        return name;
+    }
+
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
         final View view = super.getView(position, convertView, parent);
@@ -56,8 +168,7 @@ public class LanguageAdapter extends ArrayAdapter<Locale> {
         final int drawableId = getFlagForLocale(locale);
 
         final TextView textView = (TextView) view.findViewById(mTextId);
-        final CharSequence displayName = getDisplayNameForLocale(getContext(), locale);
-        textView.setText(displayName);
+        textView.setText(getDisplayName(locale));
 
         final ImageView imageView = (ImageView) view.findViewById(mImageId);
         if (drawableId <= 0) {
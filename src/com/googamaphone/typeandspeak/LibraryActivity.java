@@ -3,6 +3,7 @@ package com.googamaphone.typeandspeak;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
 
 import android.annotation.TargetApi;
@@ -22,6 +23,7 @@ import android.provider.MediaStore.Audio.AudioColumns;
 import android.provider.MediaStore.Audio.Media;
 import android.text.format.DateFormat;
 import android.view.LayoutInflater;
+import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
@@ -33,6 +35,8 @@ import android.widget.TextView;
 
 import com.googamaphone.PinnedDialog;
 import com.googamaphone.PinnedDialogManager;
+import com.googamaphone.compat.AsyncTaskCompatUtils;
+import com.googamaphone.typeandspeak.utils.OutputFormat;
 
 public class LibraryActivity extends ListActivity {
     private static final String[] FROM = new String[] {
@@ -48,14 +52,21 @@ public class LibraryActivity extends ListActivity {
 
     private static final String KEY_POSITION = "position";
 
+    private static final int OPTION_PLAY_ALL = 1;
+
     private CursorAdapter mCursorAdapter;
 
+    /** Shared by every playback dialog, so players are reused between clips. */
+    private PlaybackSession mPlaybackSession;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
         setContentView(R.layout.library);
 
+        mPlaybackSession = new PlaybackSession();
+
         if (Build.VERSION.SDK_INT > 11) {
             new SetupActionBar().run();
         }
@@ -74,12 +85,29 @@ public class LibraryActivity extends ListActivity {
             }
         };
 
-        loadMediaTask.execute();
+        AsyncTaskCompatUtils.executeInParallel(loadMediaTask);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        mPlaybackSession.release();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        menu.add(Menu.NONE, OPTION_PLAY_ALL, Menu.NONE, R.string.play_all);
+
+        return super.onCreateOptionsMenu(menu);
     }
 
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
+            case OPTION_PLAY_ALL:
+                playAll();
+                return true;
             case android.R.id.home:
                 final Intent intent = new Intent(this, TypeAndSpeak.class);
                 intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
@@ -90,6 +118,38 @@ public class LibraryActivity extends ListActivity {
         }
     }
 
+    /**
+     * Plays every clip in the library, in the order they're listed.
+     */
+    private void playAll() {
+        if (mCursorAdapter == null) {
+            return;
+        }
+
+        final Cursor cursor = mCursorAdapter.getCursor();
+        final int dataIndex = cursor.getColumnIndex(AudioColumns.DATA);
+        final ArrayList<String> paths = new ArrayList<String>(cursor.getCount());
+
+        if (cursor.moveToFirst()) {
+            do {
+                paths.add(cursor.getString(dataIndex));
+            } while (cursor.moveToNext());
+        }
+
+        if (paths.isEmpty()) {
+            return;
+        }
+
+        final PlaybackDialog playback = new PlaybackDialog(this, true, mPlaybackSession);
+
+        try {
+            playback.setQueue(paths, 0);
+            playback.show();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     @TargetApi(11)
     class SetupActionBar implements Runnable {
         @Override
@@ -219,7 +279,7 @@ public class LibraryActivity extends ListActivity {
                     final Intent shareIntent = new Intent();
                     shareIntent.setAction(Intent.ACTION_SEND);
                     shareIntent.putExtra(Intent.EXTRA_STREAM, Uri.parse(dataPath));
-                    shareIntent.setType("audio/wav");
+                    shareIntent.setType(OutputFormat.fromPath(dataPath).mimeType);
 
                     final Intent chooserIntent = Intent.createChooser(shareIntent,
                             getString(R.string.share_to));
@@ -247,7 +307,8 @@ public class LibraryActivity extends ListActivity {
                     cursor.moveToPosition(position);
 
                     final String data = cursor.getString(dataIndex);
-                    final PlaybackDialog playback = new PlaybackDialog(LibraryActivity.this, true);
+                    final PlaybackDialog playback = new PlaybackDialog(LibraryActivity.this, true,
+                            mPlaybackSession);
 
                     try {
                         playback.setFile(data);
@@ -0,0 +1,112 @@
+
+package com.googamaphone.typeandspeak;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.text.TextUtils;
+
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers the locales supported by each speech engine, so that the language
+ * list can be shown without waiting for the engine's voice data check. Entries
+ * are keyed on the engine's package name and version code, so updating the
+ * engine invalidates its entry.
+ */
+public class LocaleCache {
+    private static final String PREFS_NAME = "locale_cache";
+
+    private final SharedPreferences mPrefs;
+    private final PackageManager mPackageManager;
+
+    public LocaleCache(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mPackageManager = context.getPackageManager();
+    }
+
+    /**
+     * Returns the cached locales for the installed version of an engine.
+     *
+     * @param engine The package name of the engine.
+     * @return The cached locales, or {@code null} if there isn't an entry for
+     *         the installed version.
+     */
+    public Set<Locale> get(String engine) {
+        final String key = getKey(engine);
+
+        if (key == null) {
+            return null;
+        }
+
+        final String value = mPrefs.getString(key, null);
+
+        if (value == null) {
+            return null;
+        }
+
+        final LinkedHashSet<Locale> locales = new LinkedHashSet<Locale>();
+
+        for (String locale : TextUtils.split(value, ",")) {
+            final String[] parts = locale.split("_", -1);
+
+            if (parts.length == 1) {
+                locales.add(new Locale(parts[0]));
+            } else if (parts.length == 2) {
+                locales.add(new Locale(parts[0], parts[1]));
+            } else if (parts.length == 3) {
+                locales.add(new Locale(parts[0], parts[1], parts[2]));
+            }
+        }
+
+        return locales;
+    }
+
+    /**
+     * Stores the locales for the installed version of an engine, replacing
+     * entries for other versions. This writes to disk, so it shouldn't be
+     * called on the main thread.
+     *
+     * @param engine The package name of the engine.
+     * @param locales The locales the engine supports.
+     */
+    public void put(String engine, Set<Locale> locales) {
+        final String key = getKey(engine);
+
+        if (key == null) {
+            return;
+        }
+
+        final SharedPreferences.Editor editor = mPrefs.edit();
+        final String prefix = engine + ":";
+
+        for (Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                editor.remove(entry.getKey());
+            }
+        }
+
+        editor.putString(key, TextUtils.join(",", locales));
+        editor.commit();
+    }
+
+    /**
+     * @return The key for the installed version of an engine, or
+     *         {@code null} if it isn't installed.
+     */
+    private String getKey(String engine) {
+        if (engine == null) {
+            return null;
+        }
+
+        try {
+            return engine + ":" + mPackageManager.getPackageInfo(engine, 0).versionCode;
+        } catch (final NameNotFoundException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+
+package com.googamaphone.typeandspeak;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import com.googamaphone.typeandspeak.utils.SpeechMetrics;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Environment;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+import android.widget.Toast;
+
+/**
+ * Debug screen that shows the speech latency metrics recorded during this
+ * process and allows saving them to a file.
+ */
+public class MetricsActivity extends Activity {
+    // Options menu identifiers.
+    private static final int OPTION_SAVE = 1;
+    private static final int OPTION_RESET = 2;
+
+    private TextView mMetricsText;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        setContentView(R.layout.metrics);
+
+        if (Build.VERSION.SDK_INT > 11) {
+            new SetupActionBar().run();
+        }
+
+        mMetricsText = (TextView) findViewById(R.id.metrics);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+
+        refresh();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        menu.add(Menu.NONE, OPTION_SAVE, Menu.NONE, R.string.save);
+        menu.add(Menu.NONE, OPTION_RESET, Menu.NONE, R.string.reset);
+
+        return super.onCreateOptionsMenu(menu);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case android.R.id.home:
+                finish();
+                return true;
+            case OPTION_SAVE:
+                save();
+                return true;
+            case OPTION_RESET:
+                SpeechMetrics.resetAll();
+                refresh();
+                return true;
+        }
+
+        return super.onOptionsItemSelected(item);
+    }
+
+    private void refresh() {
+        final String metrics = dumpMetrics();
+
+        if (metrics.length() == 0) {
+            mMetricsText.setText(R.string.no_metrics);
+        } else {
+            mMetricsText.setText(metrics);
+        }
+    }
+
+    /**
+     * Writes the current metrics to a timestamped file alongside saved speech.
+     */
+    private void save() {
+        final String directory = Environment.getExternalStorageDirectory().getPath()
+                + "/typeandspeak";
+        final File outdir = new File(directory);
+        final File outfile = new File(outdir, "metrics-" + System.currentTimeMillis() + ".txt");
+
+        PrintWriter writer = null;
+
+        try {
+            if (!outdir.exists() && !outdir.mkdirs()) {
+                throw new IOException("Unable to create " + directory);
+            }
+
+            writer = new PrintWriter(new FileWriter(outfile));
+            writer.print(dumpMetrics());
+
+            if (writer.checkError()) {
+                throw new IOException("Unable to write " + outfile);
+            }
+
+            Toast.makeText(this, getString(R.string.metrics_saved, outfile.getAbsolutePath()),
+                    Toast.LENGTH_SHORT).show();
+        } catch (final IOException e) {
+            e.printStackTrace();
+
+            Toast.makeText(this, R.string.metrics_not_saved, Toast.LENGTH_SHORT).show();
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+
+    private static String dumpMetrics() {
+        final StringWriter output = new StringWriter();
+        final PrintWriter writer = new PrintWriter(output);
+
+        SpeechMetrics.dumpAll(writer);
+        writer.flush();
+
+        return output.toString();
+    }
+
+    @TargetApi(11)
+    class SetupActionBar implements Runnable {
+        @Override
+        public void run() {
+            getActionBar().setDisplayHomeAsUpEnabled(true);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+
+package com.googamaphone.typeandspeak;
+
+import com.googamaphone.typeandspeak.utils.ParagraphIndex;
+
+import android.content.Context;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.style.BackgroundColorSpan;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+import android.widget.TextView.BufferType;
+
+/**
+ * Displays a long text as a list of paragraphs, so that only the visible
+ * paragraphs are decoded and laid out. The unit being spoken is highlighted
+ * by moving a single span, which only invalidates the paragraph that
+ * contains it.
+ */
+public class ParagraphAdapter extends BaseAdapter {
+    private final LayoutInflater mInflater;
+    private final ParagraphIndex mIndex;
+
+    /** The span marking the highlighted unit, shared by every paragraph. */
+    private final BackgroundColorSpan mHighlightSpan;
+
+    private float mTextSize;
+
+    private int mHighlightStart = -1;
+    private int mHighlightEnd = -1;
+
+    /** The paragraph containing the highlight, or {@code -1}. */
+    private int mHighlightParagraph = -1;
+
+    public ParagraphAdapter(Context context, ParagraphIndex index) {
+        mInflater = LayoutInflater.from(context);
+        mIndex = index;
+        mHighlightSpan = new BackgroundColorSpan(context.getResources().getColor(
+                R.color.reader_highlight));
+    }
+
+    /**
+     * @return The paragraphs displayed by this adapter.
+     */
+    public ParagraphIndex getIndex() {
+        return mIndex;
+    }
+
+    /**
+     * Sets the text size for paragraph views.
+     *
+     * @param size The text size in scaled pixels.
+     */
+    public void setTextSize(float size) {
+        mTextSize = size;
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Highlights a range of the text, and scrolls the list to it if it isn't
+     * visible. Only the paragraphs that contain the previous and new
+     * highlights are bound again.
+     *
+     * @param listView The list view displaying this adapter.
+     * @param start The start offset of the range, or {@code -1} to clear it.
+     * @param end The end offset of the range.
+     */
+    public void setHighlight(AbsListView listView, int start, int end) {
+        final int previous = mHighlightParagraph;
+
+        mHighlightStart = start;
+        mHighlightEnd = end;
+        mHighlightParagraph = (start >= 0) ? mIndex.indexAt(start) : -1;
+
+        rebindVisible(listView, previous);
+
+        if (mHighlightParagraph < 0) {
+            return;
+        }
+
+        if (mHighlightParagraph != previous) {
+            rebindVisible(listView, mHighlightParagraph);
+        }
+
+        final int first = listView.getFirstVisiblePosition();
+        final int last = listView.getLastVisiblePosition();
+
+        if ((mHighlightParagraph < first) || (mHighlightParagraph >= last)) {
+            listView.setSelection(mHighlightParagraph);
+        }
+    }
+
+    private void rebindVisible(AbsListView listView, int position) {
+        final int first = listView.getFirstVisiblePosition();
+
+        if ((position < first) || (position >= (first + listView.getChildCount()))) {
+            return;
+        }
+
+        bindView(listView.getChildAt(position - first), position);
+    }
+
+    @Override
+    public int getCount() {
+        return mIndex.getCount();
+    }
+
+    @Override
+    public Object getItem(int position) {
+        return mIndex.getParagraph(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        final View view;
+
+        if (convertView == null) {
+            view = mInflater.inflate(R.layout.paragraph, parent, false);
+        } else {
+            view = convertView;
+        }
+
+        final TextView textView = (TextView) view;
+
+        if (mTextSize > 0) {
+            textView.setTextSize(mTextSize);
+        }
+
+        // Recycled views may still hold a previous paragraph.
+        if (!Integer.valueOf(position).equals(view.getTag())) {
+            view.setTag(position);
+            textView.setText(mIndex.getParagraph(position), BufferType.SPANNABLE);
+        }
+
+        bindView(view, position);
+
+        return view;
+    }
+
+    /**
+     * Adds or removes the highlight on a paragraph view.
+     */
+    private void bindView(View view, int position) {
+        final Spannable text = (Spannable) ((TextView) view).getText();
+
+        if (position != mHighlightParagraph) {
+            text.removeSpan(mHighlightSpan);
+            return;
+        }
+
+        // The displayed text omits leading line breaks, so map the offsets.
+        final int paragraphStart = mIndex.getStart(position);
+        final int paragraphEnd = mIndex.getEnd(position);
+        final int leading = countLeadingBreaks(paragraphStart, paragraphEnd);
+        final int length = text.length();
+        final int start = clamp(mHighlightStart - paragraphStart - leading, 0, length);
+        final int end = clamp(mHighlightEnd - paragraphStart - leading, start, length);
+
+        text.setSpan(mHighlightSpan, start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+    }
+
+    private int countLeadingBreaks(int start, int end) {
+        final CharSequence text = mIndex.getText();
+        int count = 0;
+
+        while (((start + count) < end) && (text.charAt(start + count) == '\n')) {
+            count++;
+        }
+
+        return count;
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
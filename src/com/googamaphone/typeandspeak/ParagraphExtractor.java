@@ -0,0 +1,331 @@
+
+package com.googamaphone.typeandspeak;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import com.googamaphone.typeandspeak.utils.ExtractionCache;
+
+import de.l3s.boilerpipe.document.TextBlock;
+import de.l3s.boilerpipe.filters.english.NumWordsRulesClassifier;
+import de.l3s.boilerpipe.sax.BoilerpipeHTMLContentHandler;
+import de.l3s.boilerpipe.sax.BoilerpipeHTMLParser;
+
+/**
+ * Extracts the main text of a web page one paragraph at a time, while the
+ * page is still being downloaded and parsed.
+ * <p>
+ * Each text block is classified as soon as the block after it has been
+ * parsed, using boilerpipe's word count and link density rules. Unlike
+ * {@link de.l3s.boilerpipe.extractors.ArticleExtractor}, which needs the whole
+ * document, this never waits for the end of the page.
+ * <p>
+ * If a cache is set, extracted text is stored along with the page's
+ * validators. Fresh entries are used without a request, and stale entries
+ * are revalidated with a conditional request, so an unchanged page is never
+ * parsed twice.
+ */
+public class ParagraphExtractor {
+    private static final Pattern CHARSET_PATTERN = Pattern.compile(
+            "charset\\s*=\\s*\"?([^\\s;\"]+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern MAX_AGE_PATTERN = Pattern.compile("max-age\\s*=\\s*(\\d+)",
+            Pattern.CASE_INSENSITIVE);
+
+    private final ParagraphListener mListener;
+
+    private ExtractionCache mCache;
+
+    private int mConnectTimeout;
+    private int mReadTimeout;
+
+    /** The connection being read, if any. */
+    private volatile URLConnection mConnection;
+
+    private volatile boolean mCanceled;
+
+    /**
+     * @param listener The listener to send paragraphs to. It's called on the
+     *            thread running {@link #extract(URL)}.
+     */
+    public ParagraphExtractor(ParagraphListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets the cache to read and store extracted text in.
+     *
+     * @param cache The cache to use, or {@code null} to always parse pages.
+     */
+    public void setCache(ExtractionCache cache) {
+        mCache = cache;
+    }
+
+    /**
+     * Sets the timeouts for connecting to the host and for each read from
+     * it. A value of zero waits indefinitely.
+     *
+     * @param connectTimeout The connection timeout in milliseconds.
+     * @param readTimeout The read timeout in milliseconds.
+     */
+    public void setTimeouts(int connectTimeout, int readTimeout) {
+        mConnectTimeout = connectTimeout;
+        mReadTimeout = readTimeout;
+    }
+
+    /**
+     * Stops a running extraction. If the page is still being downloaded, the
+     * connection is closed so that a blocked read fails immediately. Since
+     * closing the connection may perform network I/O, this shouldn't be
+     * called on the main thread.
+     */
+    public void cancel() {
+        mCanceled = true;
+
+        final URLConnection connection = mConnection;
+
+        if (connection instanceof HttpURLConnection) {
+            ((HttpURLConnection) connection).disconnect();
+        }
+    }
+
+    /**
+     * Downloads a page and sends its paragraphs to the listener as they're
+     * found. Blocks until the page has been parsed or the extraction is
+     * canceled.
+     *
+     * @param url The page to extract text from.
+     * @throws IOException If the page can't be downloaded.
+     * @throws SAXException If the page can't be parsed.
+     */
+    public void extract(URL url) throws IOException, SAXException {
+        final String spec = url.toString();
+        final ExtractionCache.Entry cached = (mCache != null) ? mCache.get(spec) : null;
+
+        if ((cached != null) && cached.isFresh()) {
+            publish(cached.paragraphs);
+            return;
+        }
+
+        final URLConnection connection = url.openConnection();
+        connection.setConnectTimeout(mConnectTimeout);
+        connection.setReadTimeout(mReadTimeout);
+
+        mConnection = connection;
+
+        if (mCanceled) {
+            return;
+        }
+
+        if (cached != null) {
+            if (cached.etag != null) {
+                connection.setRequestProperty("If-None-Match", cached.etag);
+            }
+
+            if (cached.lastModified != null) {
+                connection.setRequestProperty("If-Modified-Since", cached.lastModified);
+            }
+        }
+
+        if ((cached != null) && cached.hasValidators() && isNotModified(connection)) {
+            // The response may carry new validators or a new lifetime.
+            final String etag = connection.getHeaderField("ETag");
+            final String lastModified = connection.getHeaderField("Last-Modified");
+
+            mCache.put(new ExtractionCache.Entry(spec, (etag != null) ? etag : cached.etag,
+                    (lastModified != null) ? lastModified : cached.lastModified,
+                    getExpires(connection), cached.paragraphs));
+            ((HttpURLConnection) connection).disconnect();
+            publish(cached.paragraphs);
+            return;
+        }
+
+        final InputStream in = connection.getInputStream();
+
+        try {
+            final InputSource source = new InputSource(in);
+            final String charset = getCharset(connection.getContentType());
+
+            // Otherwise the parser detects the encoding from the page itself.
+            if (charset != null) {
+                source.setEncoding(charset);
+            }
+
+            final StreamingContentHandler handler = new StreamingContentHandler();
+
+            try {
+                new BoilerpipeHTMLParser(handler).parse(source);
+            } catch (final CanceledException e) {
+                return;
+            } catch (final SAXException e) {
+                if (mCanceled) {
+                    return;
+                }
+
+                throw e;
+            }
+
+            handler.finish();
+
+            if ((mCache != null) && !mCanceled && !isNoStore(connection)) {
+                mCache.put(new ExtractionCache.Entry(spec, connection.getHeaderField("ETag"),
+                        connection.getHeaderField("Last-Modified"), getExpires(connection),
+                        handler.getParagraphs()));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void publish(List<String> paragraphs) {
+        for (String paragraph : paragraphs) {
+            if (mCanceled) {
+                return;
+            }
+
+            mListener.onParagraphExtracted(paragraph);
+        }
+    }
+
+    private static boolean isNotModified(URLConnection connection) throws IOException {
+        return (connection instanceof HttpURLConnection)
+                && (((HttpURLConnection) connection).getResponseCode()
+                        == HttpURLConnection.HTTP_NOT_MODIFIED);
+    }
+
+    private static boolean isNoStore(URLConnection connection) {
+        final String cacheControl = connection.getHeaderField("Cache-Control");
+
+        return (cacheControl != null) && cacheControl.toLowerCase().contains("no-store");
+    }
+
+    /**
+     * @return The time until which the response may be used without
+     *         revalidating it, or {@code 0} if it must always be revalidated.
+     */
+    private static long getExpires(URLConnection connection) {
+        final String cacheControl = connection.getHeaderField("Cache-Control");
+
+        if (cacheControl != null) {
+            if (cacheControl.toLowerCase().contains("no-cache")) {
+                return 0;
+            }
+
+            final Matcher matcher = MAX_AGE_PATTERN.matcher(cacheControl);
+
+            if (matcher.find()) {
+                try {
+                    return System.currentTimeMillis() + (Long.parseLong(matcher.group(1)) * 1000);
+                } catch (final NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+
+        return connection.getExpiration();
+    }
+
+    private static String getCharset(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+
+        final Matcher matcher = CHARSET_PATTERN.matcher(contentType);
+
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    /**
+     * Classifies text blocks as the parser produces them. A block is
+     * classified once the block that follows it is available.
+     */
+    private class StreamingContentHandler extends BoilerpipeHTMLContentHandler {
+        private final StreamingClassifier mClassifier = new StreamingClassifier();
+
+        /** Content paragraphs found so far, if they're being cached. */
+        private final ArrayList<String> mParagraphs = new ArrayList<String>();
+
+        private TextBlock mPrevious = TextBlock.EMPTY_START;
+        private TextBlock mCurrent;
+
+        @Override
+        protected void addTextBlock(TextBlock block) {
+            super.addTextBlock(block);
+
+            if (mCanceled) {
+                throw new CanceledException();
+            }
+
+            if (mCurrent != null) {
+                classify(block);
+            }
+
+            mCurrent = block;
+        }
+
+        /**
+         * @return The content paragraphs found so far.
+         */
+        public List<String> getParagraphs() {
+            return mParagraphs;
+        }
+
+        /**
+         * Classifies the last block. Called once the document has been
+         * parsed.
+         */
+        public void finish() {
+            if (mCurrent != null) {
+                classify(TextBlock.EMPTY_END);
+                mCurrent = null;
+            }
+        }
+
+        private void classify(TextBlock next) {
+            if (mClassifier.isContent(mPrevious, mCurrent, next) && !mCanceled) {
+                final String paragraph = mCurrent.getText();
+
+                if (mCache != null) {
+                    mParagraphs.add(paragraph);
+                }
+
+                mListener.onParagraphExtracted(paragraph);
+            }
+
+            mPrevious = mCurrent;
+        }
+    }
+
+    private static class StreamingClassifier extends NumWordsRulesClassifier {
+        public boolean isContent(TextBlock previous, TextBlock current, TextBlock next) {
+            classify(previous, current, next);
+
+            return current.isContent();
+        }
+    }
+
+    /**
+     * Thrown from the content handler to stop parsing.
+     */
+    private static class CanceledException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    public interface ParagraphListener {
+        /**
+         * Called for each paragraph of main text, in document order.
+         *
+         * @param paragraph The text of the paragraph.
+         */
+        public void onParagraphExtracted(String paragraph);
+    }
+}
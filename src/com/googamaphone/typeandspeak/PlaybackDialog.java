@@ -3,15 +3,18 @@ package com.googamaphone.typeandspeak;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 
+import android.annotation.TargetApi;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.media.AudioManager;
-import android.media.MediaPlayer;
 import android.net.Uri;
-import android.os.Message;
+import android.os.Build;
+import android.os.SystemClock;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.widget.ImageButton;
@@ -19,10 +22,19 @@ import android.widget.SeekBar;
 import android.widget.SeekBar.OnSeekBarChangeListener;
 
 import com.googamaphone.compat.AudioManagerCompatUtils;
-import com.googamaphone.typeandspeak.utils.ReferencedHandler;
-
-public class PlaybackDialog extends AlertDialog {
-    private final MediaPlayer mMediaPlayer;
+import com.googamaphone.typeandspeak.utils.OutputFormat;
+
+/**
+ * Plays a saved file, or a queue of saved files, through a
+ * {@link PlaybackSession}. Files are prepared asynchronously, and the progress
+ * bar is advanced once per display frame while the dialog is visible and
+ * playing.
+ */
+public class PlaybackDialog extends AlertDialog implements PlaybackSession.PlaybackListener {
+    /** Delay between progress updates on platforms without frame callbacks. */
+    private static final long FRAME_DELAY_MILLIS = 16;
+
+    private final PlaybackSession mSession;
     private final View mContentView;
     private final SeekBar mProgress;
     private final ImageButton mPlayButton;
@@ -31,26 +43,51 @@ public class PlaybackDialog extends AlertDialog {
 
     private final boolean mFromLibrary;
 
+    /** Whether the session was created by this dialog. */
+    private final boolean mOwnsSession;
+
     private File mSavedFile;
 
     private boolean mAdvanceSeekBar;
-    private boolean mMediaPlayerReleased;
-    private boolean mMediaPlayerPrepared;
+    private boolean mStopped;
+    private boolean mPrepared;
+    private boolean mProgressScheduled;
+
+    /** Duration of the file, read once it's prepared. */
+    private int mDuration;
+
+    /** Playback position at {@link #mAnchorTime}. */
+    private int mAnchorPosition;
+
+    /** Uptime at which playback reached {@link #mAnchorPosition}. */
+    private long mAnchorTime;
 
     public PlaybackDialog(Context context, boolean fromLibrary) {
+        this(context, fromLibrary, null);
+    }
+
+    /**
+     * @param context The parent context.
+     * @param fromLibrary Whether the dialog was opened from the library.
+     * @param session A shared session to play through, or {@code null} to
+     *            create one for this dialog. A shared session is stopped,
+     *            but not released, when the dialog closes.
+     */
+    public PlaybackDialog(Context context, boolean fromLibrary, PlaybackSession session) {
         super(context);
 
         mFromLibrary = fromLibrary;
         mAdvanceSeekBar = true;
+        mOwnsSession = (session == null);
 
-        mMediaPlayer = new MediaPlayer();
-        mMediaPlayer.setOnPreparedListener(mOnPreparedListener);
-        mMediaPlayer.setOnCompletionListener(mOnCompletionListener);
+        mSession = mOwnsSession ? new PlaybackSession() : session;
+        mSession.setListener(this);
 
         mContentView = LayoutInflater.from(context).inflate(R.layout.playback, null);
 
         mPlayButton = (ImageButton) mContentView.findViewById(R.id.play);
         mPlayButton.setOnClickListener(mViewClickListener);
+        mPlayButton.setEnabled(false);
 
         mShareButton = (ImageButton) mContentView.findViewById(R.id.share);
         mShareButton.setOnClickListener(mViewClickListener);
@@ -76,14 +113,30 @@ public class PlaybackDialog extends AlertDialog {
 
     @Override
     public void onStop() {
-        mPoller.stopPolling();
-        mMediaPlayer.release();
+        stopProgressUpdates();
+        mSession.setListener(null);
+
+        if (mOwnsSession) {
+            mSession.release();
+        } else {
+            mSession.stop();
+        }
+
+        mStopped = true;
 
-        mMediaPlayerReleased = true;
-        
         manageAudioFocus(false);
     }
 
+    @Override
+    public void onWindowFocusChanged(boolean hasFocus) {
+        super.onWindowFocusChanged(hasFocus);
+
+        // Progress updates stop while the window is hidden.
+        if (hasFocus && !mStopped && mSession.isPlaying()) {
+            scheduleProgressUpdate();
+        }
+    }
+
     private void manageAudioFocus(boolean gain) {
         if (gain) {
             AudioManagerCompatUtils.requestAudioFocus(mAudioManager, null,
@@ -93,9 +146,16 @@ public class PlaybackDialog extends AlertDialog {
         }
     }
 
+    /**
+     * Sets the file to play and starts preparing it. The play button is
+     * enabled once the file is ready.
+     *
+     * @param path The path of the file.
+     * @throws IOException If the file can't be opened.
+     */
     public void setFile(String path) throws IOException {
-        if (mMediaPlayerReleased) {
-            throw new IOException("Media player was already released!");
+        if (mStopped) {
+            throw new IOException("Playback dialog was already stopped!");
         }
 
         if (!mFromLibrary) {
@@ -103,25 +163,142 @@ public class PlaybackDialog extends AlertDialog {
         }
 
         mSavedFile = new File(path);
+        mSession.setQueue(Collections.singletonList(mSavedFile.getAbsolutePath()), 0, false);
+    }
+
+    /**
+     * Sets a queue of files to play in order, starting playback as soon as
+     * the first file is ready. Must be called before the dialog is shown.
+     *
+     * @param paths The paths of the files.
+     * @param index The index of the first file to play.
+     * @throws IOException If the first file can't be opened.
+     */
+    public void setQueue(List<String> paths, int index) throws IOException {
+        if (mStopped) {
+            throw new IOException("Playback dialog was already stopped!");
+        }
 
-        mMediaPlayer.setDataSource(mSavedFile.getAbsolutePath());
-        mMediaPlayer.prepare();
+        mSavedFile = new File(paths.get(index));
+        setTitle(getTitle(mSavedFile));
+
+        mSession.setQueue(paths, index, true);
     }
 
-    private final MediaPoller mPoller = new MediaPoller(this);
+    private static String getTitle(File file) {
+        final String name = file.getName();
+        final int extension = name.lastIndexOf('.');
 
-    private final MediaPlayer.OnCompletionListener mOnCompletionListener = new MediaPlayer.OnCompletionListener() {
+        return (extension > 0) ? name.substring(0, extension) : name;
+    }
+
+    /**
+     * Records the current playback position, from which the position during
+     * playback is extrapolated without querying the session.
+     *
+     * @param position The current playback position.
+     */
+    private void setAnchor(int position) {
+        mAnchorPosition = position;
+        mAnchorTime = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * @return The estimated playback position.
+     */
+    private int getPlaybackPosition() {
+        final long position = mAnchorPosition + (SystemClock.uptimeMillis() - mAnchorTime);
+
+        return (int) Math.min(position, mDuration);
+    }
+
+    private void scheduleProgressUpdate() {
+        if (mProgressScheduled) {
+            return;
+        }
+
+        mProgressScheduled = true;
+
+        if (Build.VERSION.SDK_INT >= 16) {
+            postOnAnimation(mProgressUpdater);
+        } else {
+            mProgress.postDelayed(mProgressUpdater, FRAME_DELAY_MILLIS);
+        }
+    }
+
+    @TargetApi(16)
+    private void postOnAnimation(Runnable action) {
+        mProgress.postOnAnimation(action);
+    }
+
+    private void stopProgressUpdates() {
+        mProgress.removeCallbacks(mProgressUpdater);
+        mProgressScheduled = false;
+    }
+
+    private final Runnable mProgressUpdater = new Runnable() {
         @Override
-        public void onCompletion(MediaPlayer mp) {
-            manageAudioFocus(false);
-            mp.seekTo(0);
+        public void run() {
+            mProgressScheduled = false;
 
-            mProgress.setProgress(0);
-            mPlayButton.setImageResource(android.R.drawable.ic_media_play);
-            mPoller.stopPolling();
+            if (mStopped || !mSession.isPlaying()) {
+                return;
+            }
+
+            // Resumed from onWindowFocusChanged() when the window is shown.
+            if (mProgress.getWindowVisibility() != View.VISIBLE) {
+                return;
+            }
+
+            if (mAdvanceSeekBar) {
+                mProgress.setProgress(getPlaybackPosition());
+            }
+
+            scheduleProgressUpdate();
         }
     };
 
+    @Override
+    public void onFilePrepared(int index, int duration) {
+        mPrepared = true;
+        mDuration = duration;
+        mSavedFile = new File(mSession.getPath(index));
+
+        if (mSession.getQueueSize() > 1) {
+            setTitle(getTitle(mSavedFile));
+        }
+
+        mProgress.setMax(mDuration);
+        mProgress.setProgress(0);
+        mPlayButton.setEnabled(true);
+
+        if (mSession.isPlaying()) {
+            mPlayButton.setImageResource(android.R.drawable.ic_media_pause);
+            manageAudioFocus(true);
+            setAnchor(0);
+            scheduleProgressUpdate();
+        }
+    }
+
+    @Override
+    public void onQueueCompleted() {
+        manageAudioFocus(false);
+
+        mProgress.setProgress(0);
+        mPlayButton.setImageResource(android.R.drawable.ic_media_play);
+        stopProgressUpdates();
+    }
+
+    @Override
+    public void onPlaybackError() {
+        // Leave the play button disabled rather than calling onQueueCompleted().
+        stopProgressUpdates();
+        mPlayButton.setImageResource(android.R.drawable.ic_media_play);
+        mPlayButton.setEnabled(false);
+        mPrepared = false;
+        manageAudioFocus(false);
+    }
+
     private final View.OnClickListener mViewClickListener = new View.OnClickListener() {
         @Override
         public void onClick(View v) {
@@ -129,18 +306,19 @@ public class PlaybackDialog extends AlertDialog {
                 case R.id.play: {
                     final ImageButton button = (ImageButton) v;
 
-                    if (!mMediaPlayerPrepared) {
-                        // The media player isn't ready yet, do nothing.
-                    } else if (mMediaPlayer.isPlaying()) {
+                    if (!mPrepared) {
+                        // The session isn't ready yet, do nothing.
+                    } else if (mSession.isPlaying()) {
                         button.setImageResource(android.R.drawable.ic_media_play);
-                        mMediaPlayer.pause();
+                        mSession.pause();
                         manageAudioFocus(false);
-                        mPoller.stopPolling();
+                        stopProgressUpdates();
                     } else {
                         button.setImageResource(android.R.drawable.ic_media_pause);
-                        mMediaPlayer.start();
+                        mSession.start();
                         manageAudioFocus(true);
-                        mPoller.startPolling();
+                        setAnchor(mSession.getCurrentPosition());
+                        scheduleProgressUpdate();
                     }
 
                     break;
@@ -149,7 +327,7 @@ public class PlaybackDialog extends AlertDialog {
                     final Intent shareIntent = new Intent();
                     shareIntent.setAction(Intent.ACTION_SEND);
                     shareIntent.putExtra(Intent.EXTRA_STREAM, Uri.fromFile(mSavedFile));
-                    shareIntent.setType("audio/wav");
+                    shareIntent.setType(OutputFormat.fromPath(mSavedFile.getName()).mimeType);
 
                     final Context context = getContext();
                     final Intent chooserIntent = Intent.createChooser(shareIntent,
@@ -174,21 +352,15 @@ public class PlaybackDialog extends AlertDialog {
 
         @Override
         public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
-            if (!mMediaPlayerPrepared) {
-                // The media player isn't ready yet, do nothing.
+            if (!mPrepared) {
+                // The session isn't ready yet, do nothing.
             } else if (fromUser) {
-                mMediaPlayer.seekTo(progress);
+                mSession.seekTo(progress);
+                setAnchor(progress);
             }
         }
     };
 
-    private final MediaPlayer.OnPreparedListener mOnPreparedListener = new MediaPlayer.OnPreparedListener() {
-        @Override
-        public void onPrepared(MediaPlayer mp) {
-            mMediaPlayerPrepared = true;
-        }
-    };
-
     private final DialogInterface.OnClickListener mDialogClickListener = new DialogInterface.OnClickListener() {
         @Override
         public void onClick(DialogInterface dialog, int which) {
@@ -201,42 +373,4 @@ public class PlaybackDialog extends AlertDialog {
             }
         }
     };
-
-    private static class MediaPoller extends ReferencedHandler<PlaybackDialog> {
-        private static final int MSG_CHECK_PROGRESS = 1;
-
-        private boolean mStopPolling;
-
-        public MediaPoller(PlaybackDialog parent) {
-            super(parent);
-        }
-
-        @Override
-        protected void handleMessage(Message msg, PlaybackDialog parent) {
-            switch (msg.what) {
-                case MSG_CHECK_PROGRESS:
-                    if (!mStopPolling && parent.mMediaPlayer.isPlaying()) {
-                        if (parent.mAdvanceSeekBar) {
-                            parent.mProgress.setMax(parent.mMediaPlayer.getDuration());
-                            parent.mProgress.setProgress(parent.mMediaPlayer.getCurrentPosition());
-                        }
-
-                        startPolling();
-                    }
-
-                    break;
-            }
-        }
-
-        public void stopPolling() {
-            mStopPolling = true;
-            removeMessages(MSG_CHECK_PROGRESS);
-        }
-
-        public void startPolling() {
-            mStopPolling = false;
-            removeMessages(MSG_CHECK_PROGRESS);
-            sendEmptyMessageDelayed(MSG_CHECK_PROGRESS, 200);
-        }
-    }
 }
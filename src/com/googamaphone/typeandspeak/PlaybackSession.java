@@ -0,0 +1,339 @@
+
+package com.googamaphone.typeandspeak;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.annotation.TargetApi;
+import android.media.MediaPlayer;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Plays a queue of saved files using two reusable media players. While one
+ * file plays, the next is prepared on the other player and chained with
+ * {@link MediaPlayer#setNextMediaPlayer(MediaPlayer)}, so transitions are
+ * gapless on Android 4.1 and later. On earlier releases the next player is
+ * started from the completion callback.
+ * <p>
+ * All methods must be called on the main thread.
+ */
+public class PlaybackSession {
+    private static final String TAG = PlaybackSession.class.getSimpleName();
+
+    /** The player for the current file. */
+    private MediaPlayer mCurrent;
+
+    /** The player for the next file, or a spare if there isn't one. */
+    private MediaPlayer mNext;
+
+    private final ArrayList<String> mQueue = new ArrayList<String>();
+
+    private PlaybackListener mListener;
+
+    private int mIndex;
+    private int mNextIndex = -1;
+
+    private boolean mCurrentPrepared;
+    private boolean mNextPrepared;
+    private boolean mStartWhenPrepared;
+    private boolean mChained;
+    private boolean mReleased;
+
+    public PlaybackSession() {
+        mCurrent = createPlayer();
+        mNext = createPlayer();
+    }
+
+    private MediaPlayer createPlayer() {
+        final MediaPlayer player = new MediaPlayer();
+        player.setOnPreparedListener(mOnPreparedListener);
+        player.setOnCompletionListener(mOnCompletionListener);
+        player.setOnErrorListener(mOnErrorListener);
+
+        return player;
+    }
+
+    /**
+     * Sets the listener to notify of playback events, replacing any previous
+     * listener.
+     *
+     * @param listener The listener, or {@code null} to remove it.
+     */
+    public void setListener(PlaybackListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Replaces the queue and starts preparing a file from it. The listener is
+     * notified when the file is ready.
+     *
+     * @param paths The paths of the files to play.
+     * @param index The index of the first file to play.
+     * @param start Whether to start playing once the file is ready.
+     * @throws IOException If the file can't be opened.
+     */
+    public void setQueue(List<String> paths, int index, boolean start) throws IOException {
+        if (mReleased) {
+            throw new IOException("Playback session was already released!");
+        }
+
+        mQueue.clear();
+        mQueue.addAll(paths);
+
+        load(index, start);
+    }
+
+    /**
+     * @return The number of files in the queue.
+     */
+    public int getQueueSize() {
+        return mQueue.size();
+    }
+
+    /**
+     * @return The path of a file in the queue.
+     */
+    public String getPath(int index) {
+        return mQueue.get(index);
+    }
+
+    /**
+     * @return Whether the current file is ready to play.
+     */
+    public boolean isPrepared() {
+        return mCurrentPrepared;
+    }
+
+    public boolean isPlaying() {
+        return mCurrentPrepared && mCurrent.isPlaying();
+    }
+
+    public void start() {
+        if (mCurrentPrepared) {
+            mCurrent.start();
+        }
+    }
+
+    public void pause() {
+        if (mCurrentPrepared) {
+            mCurrent.pause();
+        }
+    }
+
+    public void seekTo(int position) {
+        if (mCurrentPrepared) {
+            mCurrent.seekTo(position);
+        }
+    }
+
+    public int getCurrentPosition() {
+        return mCurrentPrepared ? mCurrent.getCurrentPosition() : 0;
+    }
+
+    /**
+     * Stops playback and clears the queue, keeping both players for reuse.
+     */
+    public void stop() {
+        if (mReleased) {
+            return;
+        }
+
+        resetNext();
+
+        mCurrent.reset();
+        mCurrentPrepared = false;
+        mStartWhenPrepared = false;
+        mQueue.clear();
+    }
+
+    /**
+     * Releases both players. The session can't be used afterward.
+     */
+    public void release() {
+        if (mReleased) {
+            return;
+        }
+
+        mReleased = true;
+        mCurrent.release();
+        mNext.release();
+        mQueue.clear();
+    }
+
+    private void load(int index, boolean start) throws IOException {
+        resetNext();
+
+        mIndex = index;
+        mCurrentPrepared = false;
+        mStartWhenPrepared = start;
+
+        mCurrent.reset();
+        mCurrent.setDataSource(mQueue.get(index));
+        mCurrent.prepareAsync();
+    }
+
+    /**
+     * Starts preparing the file after the current one, if there is one.
+     */
+    private void prepareNext() {
+        final int index = mIndex + 1;
+
+        if (index >= mQueue.size()) {
+            return;
+        }
+
+        try {
+            mNext.setDataSource(mQueue.get(index));
+            mNext.prepareAsync();
+            mNextIndex = index;
+        } catch (final IOException e) {
+            // The file will be opened again when the current one completes.
+            e.printStackTrace();
+            mNext.reset();
+        }
+    }
+
+    private void resetNext() {
+        if (mChained) {
+            setNextMediaPlayer(mCurrent, null);
+            mChained = false;
+        }
+
+        mNext.reset();
+        mNextPrepared = false;
+        mNextIndex = -1;
+    }
+
+    /**
+     * Makes the next player current. The previous player becomes the spare.
+     */
+    private void advance() {
+        final MediaPlayer previous = mCurrent;
+
+        mCurrent = mNext;
+        mNext = previous;
+        mIndex = mNextIndex;
+        mCurrentPrepared = true;
+        mChained = false;
+
+        mNext.reset();
+        mNextPrepared = false;
+        mNextIndex = -1;
+
+        if (mListener != null) {
+            mListener.onFilePrepared(mIndex, mCurrent.getDuration());
+        }
+
+        prepareNext();
+    }
+
+    @TargetApi(16)
+    private static void setNextMediaPlayer(MediaPlayer player, MediaPlayer next) {
+        player.setNextMediaPlayer(next);
+    }
+
+    private final MediaPlayer.OnPreparedListener mOnPreparedListener = new MediaPlayer.OnPreparedListener() {
+        @Override
+        public void onPrepared(MediaPlayer mp) {
+            if (mp == mCurrent) {
+                mCurrentPrepared = true;
+
+                if (mStartWhenPrepared) {
+                    mStartWhenPrepared = false;
+                    mp.start();
+                }
+
+                if (mListener != null) {
+                    mListener.onFilePrepared(mIndex, mp.getDuration());
+                }
+
+                prepareNext();
+            } else if (mp == mNext) {
+                mNextPrepared = true;
+
+                if (Build.VERSION.SDK_INT >= 16) {
+                    setNextMediaPlayer(mCurrent, mNext);
+                    mChained = true;
+                }
+            }
+        }
+    };
+
+    private final MediaPlayer.OnCompletionListener mOnCompletionListener = new MediaPlayer.OnCompletionListener() {
+        @Override
+        public void onCompletion(MediaPlayer mp) {
+            if (mp != mCurrent) {
+                return;
+            }
+
+            if (mNextPrepared) {
+                // A chained player has already started on its own.
+                if (!mChained) {
+                    mNext.start();
+                }
+
+                advance();
+            } else if ((mIndex + 1) < mQueue.size()) {
+                try {
+                    load(mIndex + 1, true);
+                } catch (final IOException e) {
+                    e.printStackTrace();
+                    mCurrentPrepared = false;
+
+                    if (mListener != null) {
+                        mListener.onPlaybackError();
+                    }
+                }
+            } else {
+                mp.seekTo(0);
+
+                if (mListener != null) {
+                    mListener.onQueueCompleted();
+                }
+            }
+        }
+    };
+
+    private final MediaPlayer.OnErrorListener mOnErrorListener = new MediaPlayer.OnErrorListener() {
+        @Override
+        public boolean onError(MediaPlayer mp, int what, int extra) {
+            Log.e(TAG, "Playback error " + what + " (" + extra + ")");
+
+            if (mp == mNext) {
+                // Drop the next file and load it again when the current one completes.
+                resetNext();
+            } else if (mp == mCurrent) {
+                mCurrentPrepared = false;
+
+                if (mListener != null) {
+                    mListener.onPlaybackError();
+                }
+            }
+
+            return true;
+        }
+    };
+
+    public interface PlaybackListener {
+        /**
+         * Called when a file from the queue is ready, either after it was
+         * loaded or when playback advanced to it.
+         *
+         * @param index The index of the file in the queue.
+         * @param duration The duration of the file in milliseconds.
+         */
+        public void onFilePrepared(int index, int duration);
+
+        /**
+         * Called when the last file in the queue has finished playing.
+         */
+        public void onQueueCompleted();
+
+        /**
+         * Called when the current file can't be played.
+         */
+        public void onPlaybackError();
+    }
+}
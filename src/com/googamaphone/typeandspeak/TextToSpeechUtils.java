@@ -11,30 +11,42 @@ import android.util.Log;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.LinkedHashSet;
 import java.util.Locale;
 import java.util.Set;
-import java.util.TreeSet;
 
 public class TextToSpeechUtils {
-    public static Set<Locale> loadTtsLanguages(TextToSpeech tts, Intent data) {
+    /**
+     * Finds the locales supported by an engine. If the voice data check
+     * didn't return a list of voices, every system locale is checked with the
+     * engine, so this shouldn't be called on the main thread.
+     *
+     * @param tts The engine to check.
+     * @param data The result of the engine's voice data check.
+     * @param listener The listener to send each locale to as it's confirmed,
+     *            or {@code null} for none.
+     * @return The supported locales, unsorted.
+     */
+    public static Set<Locale> loadTtsLanguages(TextToSpeech tts, Intent data,
+            LocaleListener listener) {
         if (data == null) {
             LogUtils.log(TextToSpeechUtils.class, Log.ERROR, "Received null intent");
             return Collections.emptySet();
         }
 
-        final TreeSet<Locale> availableLangs = new TreeSet<Locale>(LOCALE_COMPARATOR);
+        final LinkedHashSet<Locale> availableLangs = new LinkedHashSet<Locale>();
 
-        if (getAvailableVoicesICS(availableLangs, data)
-                || getAvailableVoicesFallback(availableLangs, data)
-                || getAvailableVoicesBruteForce(availableLangs, tts)) {
+        if (getAvailableVoicesICS(availableLangs, data, listener)
+                || getAvailableVoicesFallback(availableLangs, data, listener)
+                || getAvailableVoicesBruteForce(availableLangs, tts, listener)) {
             return availableLangs;
         }
 
         return Collections.emptySet();
     }
 
-    private static boolean getAvailableVoicesICS(TreeSet<Locale> supportedLocales, Intent intent) {
+    private static boolean getAvailableVoicesICS(Set<Locale> supportedLocales, Intent intent,
+            LocaleListener listener) {
         final ArrayList<String> availableLangs = intent
                 .getStringArrayListExtra(TextToSpeech.Engine.EXTRA_AVAILABLE_VOICES);
         if (availableLangs == null) {
@@ -47,13 +59,14 @@ public class TextToSpeechUtils {
                 continue;
             }
 
-            supportedLocales.add(locale);
+            addLocale(supportedLocales, locale, listener);
         }
 
         return (!supportedLocales.isEmpty());
     }
 
-    private static boolean getAvailableVoicesFallback(TreeSet<Locale> langsList, Intent extras) {
+    private static boolean getAvailableVoicesFallback(Set<Locale> langsList, Intent extras,
+            LocaleListener listener) {
         final String root = extras.getStringExtra(Engine.EXTRA_VOICE_DATA_ROOT_DIRECTORY);
         final String[] files = extras.getStringArrayExtra(Engine.EXTRA_VOICE_DATA_FILES);
         final String[] langs = extras.getStringArrayExtra(Engine.EXTRA_VOICE_DATA_FILES_INFO);
@@ -77,13 +90,14 @@ public class TextToSpeechUtils {
                 continue;
             }
 
-            langsList.add(locale);
+            addLocale(langsList, locale, listener);
         }
 
         return (!langsList.isEmpty());
     }
 
-    private static boolean getAvailableVoicesBruteForce(TreeSet<Locale> langsList, TextToSpeech tts) {
+    private static boolean getAvailableVoicesBruteForce(Set<Locale> langsList, TextToSpeech tts,
+            LocaleListener listener) {
         final Locale[] systemLocales = Locale.getAvailableLocales();
 
         // Check every language supported by the system against the TTS.
@@ -95,12 +109,18 @@ public class TextToSpeechUtils {
                 continue;
             }
 
-            langsList.add(systemLocale);
+            addLocale(langsList, systemLocale, listener);
         }
 
         return (!langsList.isEmpty());
     }
 
+    private static void addLocale(Set<Locale> locales, Locale locale, LocaleListener listener) {
+        if (locales.add(locale) && (listener != null)) {
+            listener.onLocaleFound(locale);
+        }
+    }
+
     private static Locale parseLocale(String language) {
         final String[] langCountryVariant = language.split("-");
 
@@ -115,10 +135,13 @@ public class TextToSpeechUtils {
         return null;
     }
 
-    private static final Comparator<Locale> LOCALE_COMPARATOR = new Comparator<Locale>() {
-        @Override
-        public int compare(Locale lhs, Locale rhs) {
-            return lhs.getDisplayName().compareTo(rhs.getDisplayName());
-        }
-    };
+    public interface LocaleListener {
+        /**
+         * Called on the loading thread once an engine is known to support a
+         * locale.
+         *
+         * @param locale The supported locale.
+         */
+        public void onLocaleFound(Locale locale);
+    }
 }
@@ -4,48 +4,64 @@ package com.googamaphone.typeandspeak;
 import com.googamaphone.GoogamaphoneActivity;
 import com.googamaphone.PinnedDialog;
 import com.googamaphone.PinnedDialogManager;
+import com.googamaphone.compat.AsyncTaskCompatUtils;
 import com.googamaphone.compat.AudioManagerCompatUtils;
-import com.googamaphone.typeandspeak.FileSynthesizer.FileSynthesizerListener;
-import com.googamaphone.typeandspeak.utils.CharSequenceIterator;
+import com.googamaphone.typeandspeak.ExportJobStore.ExportJob;
+import com.googamaphone.typeandspeak.utils.AudioCache;
+import com.googamaphone.typeandspeak.utils.BufferedTextToSpeech;
+import com.googamaphone.typeandspeak.utils.DraftStore;
+import com.googamaphone.typeandspeak.utils.ExtractionCache;
 import com.googamaphone.typeandspeak.utils.GranularTextToSpeech;
+import com.googamaphone.typeandspeak.utils.GranularTextToSpeech.OnQueueStateChangedListener;
 import com.googamaphone.typeandspeak.utils.GranularTextToSpeech.SingAlongListener;
+import com.googamaphone.typeandspeak.utils.MappedCharSequence;
+import com.googamaphone.typeandspeak.utils.OutputFormat;
+import com.googamaphone.typeandspeak.utils.ParagraphIndex;
 import com.googamaphone.typeandspeak.utils.ReferencedHandler;
+import com.googamaphone.typeandspeak.utils.SpeechMetrics;
+import com.googamaphone.typeandspeak.utils.TextToSpeechPool;
+import com.googamaphone.typeandspeak.utils.TypingEcho;
 
-import de.l3s.boilerpipe.extractors.ArticleExtractor;
-
+import android.app.AlertDialog;
 import android.app.AlertDialog.Builder;
 import android.app.Dialog;
 import android.app.ProgressDialog;
 import android.content.ActivityNotFoundException;
+import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
+import android.database.DataSetObserver;
 import android.media.AudioManager;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Environment;
 import android.os.Message;
-import android.provider.MediaStore.MediaColumns;
 import android.provider.Settings;
 import android.speech.tts.TextToSpeech;
 import android.speech.tts.TextToSpeech.Engine;
+import android.support.v4.content.LocalBroadcastManager;
 import android.text.Editable;
 import android.text.TextUtils;
 import android.text.TextWatcher;
+import android.text.format.DateUtils;
 import android.view.KeyEvent;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.WindowManager.LayoutParams;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
-import android.widget.ArrayAdapter;
 import android.widget.CheckBox;
 import android.widget.CompoundButton;
 import android.widget.CompoundButton.OnCheckedChangeListener;
@@ -55,13 +71,21 @@ import android.widget.SeekBar;
 import android.widget.SeekBar.OnSeekBarChangeListener;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
-import java.text.BreakIterator;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class TypeAndSpeak extends GoogamaphoneActivity {
     private static final String TAG = TypeAndSpeak.class.getSimpleName();
@@ -71,16 +95,32 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
 
     // Preference keys.
     private static final String PREF_TEXT = "PREF_TEXT";
+    private static final String PREF_DOCUMENT = "PREF_DOCUMENT";
     private static final String PREF_LOCALE = "PREF_LOCALE";
     private static final String PREF_PITCH = "PREF_PITCH";
     private static final String PREF_SPEED = "PREF_SPEED";
     private static final String PREF_SPEAK_WHILE_TYPING = "PREF_SPEAK_WHILE_TYPING";
+    private static final String PREF_ECHO_CHARACTERS = "PREF_ECHO_CHARACTERS";
     private static final String PREF_USE_LARGER_FONT = "PREF_USE_LARGER_FONT";
+    private static final String PREF_GAPLESS_PLAYBACK = "PREF_GAPLESS_PLAYBACK";
+    private static final String PREF_SAVE_AS_FLAC = "PREF_SAVE_AS_FLAC";
 
     // Dialog identifiers.
     private static final int DIALOG_INSTALL_DATA = 1;
     private static final int DIALOG_CANNOT_INSTALL_DATA = 2;
     private static final int DIALOG_EXTRACTING_TEXT = 3;
+    private static final int DIALOG_CONVERT_FOLDER = 4;
+
+    // Extraction status for each shared URL.
+    private static final int EXTRACTION_WAITING = 0;
+    private static final int EXTRACTION_LOADING = 1;
+    private static final int EXTRACTION_DONE = 2;
+    private static final int EXTRACTION_FAILED = 3;
+
+    private static final int[] EXTRACTION_STATUS_RES_IDS = new int[] {
+            R.string.extracting_waiting, R.string.extracting_loading, R.string.extracting_done,
+            R.string.extracting_failed
+    };
 
     // Pinned dialog identifiers.
     private static final int PINNED_PROPERTIES = 1;
@@ -92,10 +132,29 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
     // Activity request identifiers.
     private static final int REQUEST_CHECK_DATA = 1;
     private static final int REQUEST_INSTALL_DATA = 2;
+    private static final int REQUEST_OPEN_DOCUMENT = 3;
+
+    // Options menu identifiers.
+    private static final int OPTION_METRICS = 1;
+    private static final int OPTION_CONVERT_FOLDER = 2;
+    private static final int OPTION_OPEN_DOCUMENT = 3;
+    private static final int OPTION_CLOSE_DOCUMENT = 4;
 
     private static final float DEFAULT_FONT = 16;
     private static final float LARGER_FONT = 36;
 
+    /** Number of units to synthesize ahead during gapless playback. */
+    private static final int GAPLESS_LOOKAHEAD = 4;
+
+    /** Directory for imported documents, relative to the files directory. */
+    private static final String DOCUMENTS_DIR = "documents";
+
+    /**
+     * Discovers engine locales, which may take a while without a list of
+     * voices, without holding up the serial task executor.
+     */
+    private static final ExecutorService sLocaleExecutor = Executors.newSingleThreadExecutor();
+
     /** Speech parameters. */
     private final HashMap<String, String> mParams = new HashMap<String, String>();
 
@@ -105,17 +164,53 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
     /** Default text-to-speech engine. */
     private String mTtsEngine;
 
-    /** Text-to-speech service used for speaking. */
+    /** Pool of engines shared with background saving. */
+    private TextToSpeechPool mTtsPool;
+
+    /** Text-to-speech service used for speaking, reserved by the pool. */
     private TextToSpeech mTts;
 
     /** Audio manager used to gain audio focus. */
     private AudioManager mAudioManager;
 
+    /** Speaks words or characters while typing, if enabled. */
+    private TypingEcho mTypingEcho;
+
     /** Sing-along manager used to iterate through the edit text. */
     private GranularTextToSpeech mTtsWrapper;
 
-    /** Synthesizer for writing speech to file. Lazily initialized. */
-    private FileSynthesizer mSynth;
+    /** The export job started from the save dialog, or {@code -1}. */
+    private long mSaveJobId = -1;
+
+    /** Whether the save was canceled before its job had been added. */
+    private boolean mSaveCanceled;
+
+    /** Progress dialog for {@link #mSaveJobId}. */
+    private ProgressDialog mSaveProgressDialog;
+
+    /** Message shown above the save progress details. */
+    private String mSavingMessage;
+
+    /** Cache of synthesized speech used while speaking. */
+    private AudioCache mAudioCache;
+
+    /** Store that saves the edit text incrementally. */
+    private DraftStore mDraftStore;
+
+    /** Whether the saved text has been loaded into the edit text. */
+    private boolean mDraftLoaded;
+
+    /** Whether shared or restored text should replace the saved text. */
+    private boolean mTextReplacesDraft;
+
+    /** Locales supported by each engine, shown before the voice data check. */
+    private LocaleCache mLocaleCache;
+
+    /** Cache of text extracted from shared URLs. */
+    private ExtractionCache mExtractionCache;
+
+    /** Playback backend used for gapless playback, if enabled. */
+    private BufferedTextToSpeech mBufferedTts;
 
     // Interface components.
     private ViewGroup mSpeakControls;
@@ -125,23 +220,52 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
     private View mResumeButton;
     private View mSaveButton;
     private EditText mInputText;
-    private ArrayAdapter<Locale> mLanguagesAdapter;
+    private LanguageAdapter mLanguagesAdapter;
 
     // Speech properties.
     private Locale mLocale;
-    private int mLocalePosition;
     private int mPitch;
     private int mSpeed;
     private boolean mSpeakWhileTyping;
+    private boolean mEchoCharacters;
     private boolean mUseLargerFont;
+    private boolean mGaplessPlayback;
+    private boolean mSaveAsFlac;
+
+    /** Whether the engine has been initialized. */
+    private boolean mTtsReady;
+
+    /** Whether to start speaking once the engine is initialized. */
+    private boolean mSpeakWhenReady;
+
+    /** Finds the locales supported by the engine. */
+    private AsyncTask<Void, Locale, Set<Locale>> mLocaleTask;
 
     // Extraction task.
     private ExtractionTask mExtractionTask;
+    private ProgressDialog mExtractingDialog;
+
+    /** The open document, or {@code null} when speaking the edit text. */
+    private MappedCharSequence mDocument;
+
+    /** Task importing and indexing a document, if any. */
+    private AsyncTask<Void, Void, ParagraphIndex> mDocumentTask;
+
+    /** Paragraphs of the open document, shown in place of the edit text. */
+    private ParagraphAdapter mReaderAdapter;
+    private ListView mReaderView;
+
+    /** Offset of the paragraph selected in the reader, or {@code -1}. */
+    private int mReaderCursor = -1;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
+        // A recreated activity's edit text restores its own text, which is at
+        // least as new as the draft.
+        mTextReplacesDraft = (savedInstanceState != null);
+
         setContentView(R.layout.main);
         setupUserInterface();
 
@@ -159,15 +283,57 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
 
         mParams.put(Engine.KEY_PARAM_UTTERANCE_ID, TAG);
         mTtsEngine = Settings.Secure.getString(resolver, Settings.Secure.TTS_DEFAULT_SYNTH);
-        mTts = new TextToSpeech(this, initListener);
+        mTtsPool = TextToSpeechPool.open(this);
+        mTts = mTtsPool.getInteractiveEngine(initListener);
         mAudioManager = (AudioManager) getSystemService(AUDIO_SERVICE);
 
         final SharedPreferences prefs = getPreferences(MODE_PRIVATE);
-        mInputText.setText(prefs.getString(PREF_TEXT, ""));
         mInputText.addTextChangedListener(mTextWatcher);
 
+        mDraftStore = new DraftStore(new File(getFilesDir(), "draft"));
+
+        // Move text saved by earlier versions into the draft store.
+        final String legacyText = prefs.getString(PREF_TEXT, null);
+
+        if (legacyText != null) {
+            mDraftStore.replace(legacyText);
+            prefs.edit().remove(PREF_TEXT).commit();
+        }
+
+        // The draft is read in the background and shown when it's ready.
+        mDraftStore.load(new DraftStore.LoadListener() {
+            @Override
+            public void onDraftLoaded(String text) {
+                mHandler.transferOnDraftLoaded(text);
+            }
+        });
+
+        mLocaleCache = new LocaleCache(this);
+        mLanguagesAdapter = new LanguageAdapter(this, R.layout.language, R.id.text, R.id.image);
+        mLanguagesAdapter.setDropDownViewResource(R.layout.language_dropdown);
+        mAudioCache = AudioCache.getInstance(this);
+        mExtractionCache = new ExtractionCache(new File(getCacheDir(), "extracted"),
+                ExtractionCache.DEFAULT_MAX_SIZE);
+
         mTtsWrapper = new GranularTextToSpeech(this, mTts, mLocale);
         mTtsWrapper.setListener(mSingAlongListener);
+        mTtsWrapper.setOnQueueStateChangedListener(mQueueStateListener);
+
+        mTypingEcho = new TypingEcho(mTts);
+
+        // Documents are mapped again rather than stored in preferences.
+        final String document = prefs.getString(PREF_DOCUMENT, null);
+
+        if (document != null) {
+            openDocument(Uri.fromFile(new File(document)));
+        }
+
+        final IntentFilter exportFilter = new IntentFilter();
+        exportFilter.addAction(ExportService.EVENT_PROGRESS);
+        exportFilter.addAction(ExportService.EVENT_COMPLETED);
+        exportFilter.addAction(ExportService.EVENT_FAILED);
+        exportFilter.addAction(ExportService.EVENT_CANCELED);
+        LocalBroadcastManager.getInstance(this).registerReceiver(mExportReceiver, exportFilter);
 
         // Load text from intent.
         onNewIntent(getIntent());
@@ -180,7 +346,14 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
         setIntent(intent);
 
         if (Intent.ACTION_SEND.equals(intent.getAction())) {
-            restoreState(intent.getExtras(), true);
+            final Uri stream = intent.getParcelableExtra(Intent.EXTRA_STREAM);
+
+            // Shared files may be too large to pass as text.
+            if (stream != null) {
+                openDocument(stream);
+            } else {
+                restoreState(intent.getExtras(), true);
+            }
         }
     }
 
@@ -195,14 +368,19 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
         mPitch = prefs.getInt(PREF_PITCH, 50);
         mSpeed = prefs.getInt(PREF_SPEED, 50);
         mSpeakWhileTyping = prefs.getBoolean(PREF_SPEAK_WHILE_TYPING, false);
+        mEchoCharacters = prefs.getBoolean(PREF_ECHO_CHARACTERS, false);
         mUseLargerFont = prefs.getBoolean(PREF_USE_LARGER_FONT, false);
+        mGaplessPlayback = prefs.getBoolean(PREF_GAPLESS_PLAYBACK, false);
+        mSaveAsFlac = prefs.getBoolean(PREF_SAVE_AS_FLAC, false);
 
         // Never load the ADD_MORE locale as the default!
         if (LanguageAdapter.LOCALE_ADD_MORE.equals(mLocale)) {
             mLocale = Locale.getDefault();
         }
 
-        mInputText.setTextSize(mUseLargerFont ? LARGER_FONT : DEFAULT_FONT);
+        updateTextSize();
+        updateEchoMode();
+        setGaplessPlayback(mGaplessPlayback);
     }
 
     @Override
@@ -215,9 +393,18 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
         editor.putInt(PREF_PITCH, mPitch);
         editor.putInt(PREF_SPEED, mSpeed);
         editor.putBoolean(PREF_SPEAK_WHILE_TYPING, mSpeakWhileTyping);
+        editor.putBoolean(PREF_ECHO_CHARACTERS, mEchoCharacters);
         editor.putBoolean(PREF_USE_LARGER_FONT, mUseLargerFont);
+        editor.putBoolean(PREF_GAPLESS_PLAYBACK, mGaplessPlayback);
+        editor.putBoolean(PREF_SAVE_AS_FLAC, mSaveAsFlac);
         editor.putString(PREF_LOCALE, mLocale.toString());
-        editor.putString(PREF_TEXT, mInputText.getText().toString());
+
+        if (mDocument != null) {
+            editor.putString(PREF_DOCUMENT, mDocument.getFile().getPath());
+        } else {
+            editor.remove(PREF_DOCUMENT);
+        }
+
         editor.commit();
     }
 
@@ -225,7 +412,81 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
     protected void onDestroy() {
         super.onDestroy();
 
-        mTts.shutdown();
+        LocalBroadcastManager.getInstance(this).unregisterReceiver(mExportReceiver);
+
+        mDraftStore.close();
+
+        if (mExtractionTask != null) {
+            mExtractionTask.cancelExtraction();
+        }
+
+        if (mDocumentTask != null) {
+            mDocumentTask.cancel(false);
+        }
+
+        if (mLocaleTask != null) {
+            mLocaleTask.cancel(false);
+        }
+
+        if (mBufferedTts != null) {
+            mBufferedTts.shutdown();
+        }
+
+        // The pool may still be saving, but the interactive engine holds
+        // listeners that refer to this activity.
+        mTtsPool.releaseInteractiveEngine();
+        mTtsPool.close();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        menu.add(Menu.NONE, OPTION_OPEN_DOCUMENT, Menu.NONE, R.string.open_document);
+        menu.add(Menu.NONE, OPTION_CLOSE_DOCUMENT, Menu.NONE, R.string.close_document);
+        menu.add(Menu.NONE, OPTION_CONVERT_FOLDER, Menu.NONE, R.string.convert_folder);
+
+        // Metrics are only useful to developers.
+        if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
+            menu.add(Menu.NONE, OPTION_METRICS, Menu.NONE, R.string.speech_metrics);
+        }
+
+        return super.onCreateOptionsMenu(menu);
+    }
+
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        menu.findItem(OPTION_CLOSE_DOCUMENT).setVisible(mDocument != null);
+
+        return super.onPrepareOptionsMenu(menu);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case OPTION_METRICS:
+                startActivity(new Intent(this, MetricsActivity.class));
+                return true;
+            case OPTION_CONVERT_FOLDER:
+                showDialog(DIALOG_CONVERT_FOLDER);
+                return true;
+            case OPTION_OPEN_DOCUMENT: {
+                final Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+                intent.setType("text/plain");
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+
+                try {
+                    startActivityForResult(intent, REQUEST_OPEN_DOCUMENT);
+                } catch (final ActivityNotFoundException e) {
+                    e.printStackTrace();
+                }
+                return true;
+            }
+            case OPTION_CLOSE_DOCUMENT:
+                closeDocument();
+                return true;
+        }
+
+        return super.onOptionsItemSelected(item);
     }
 
     @SuppressWarnings("deprecation")
@@ -276,6 +537,7 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
             }
             case DIALOG_EXTRACTING_TEXT: {
                 final ProgressDialog progressDialog = new ProgressDialog(this);
+                mExtractingDialog = progressDialog;
                 progressDialog.setCancelable(true);
                 progressDialog.setTitle(R.string.extracting_title);
                 progressDialog.setMessage(getString(R.string.extracting_message));
@@ -284,12 +546,29 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
                     @Override
                     public void onCancel(DialogInterface dialog) {
                         if (mExtractionTask != null) {
-                            mExtractionTask.cancel(true);
+                            mExtractionTask.cancelExtraction();
                         }
                     }
                 });
                 return progressDialog;
             }
+            case DIALOG_CONVERT_FOLDER: {
+                final EditText folderText = new EditText(this);
+                folderText.setSingleLine();
+                folderText.setText(Environment.getExternalStorageDirectory().getPath());
+
+                final DialogInterface.OnClickListener clickListener = new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        convertFolder(new File(folderText.getText().toString().trim()));
+                    }
+                };
+
+                return new Builder(this).setTitle(R.string.convert_folder)
+                        .setMessage(R.string.convert_folder_message).setView(folderText)
+                        .setPositiveButton(R.string.save, clickListener)
+                        .setNegativeButton(android.R.string.cancel, null).create();
+            }
         }
 
         return super.onCreateDialog(id);
@@ -335,14 +614,21 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
                                 long id) {
                             final Locale selected = (Locale) parent.getItemAtPosition(position);
                             mLocale = selected;
-                            mLocalePosition = position;
                             dialog.dismiss();
                         }
                     };
 
-                    listView.setAdapter(mLanguagesAdapter);
                     listView.setOnItemClickListener(onItemClickListener);
 
+                    // The adapter has no stable ids, so the checked position
+                    // must follow the current locale as locales stream in.
+                    mLanguagesAdapter.registerDataSetObserver(new DataSetObserver() {
+                        @Override
+                        public void onChanged() {
+                            updateLanguageChecked(listView);
+                        }
+                    });
+
                     final View.OnClickListener onCLickListener = new View.OnClickListener() {
                         @Override
                         public void onClick(View v) {
@@ -366,8 +652,19 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
                             .setOnSeekBarChangeListener(mSeekListener);
                     ((CheckBox) dialog.findViewById(R.id.speak_while_typing))
                             .setOnCheckedChangeListener(mCheckBoxListener);
+                    ((CheckBox) dialog.findViewById(R.id.echo_characters))
+                            .setOnCheckedChangeListener(mCheckBoxListener);
                     ((CheckBox) dialog.findViewById(R.id.use_larger_font))
                             .setOnCheckedChangeListener(mCheckBoxListener);
+                    ((CheckBox) dialog.findViewById(R.id.gapless_playback))
+                            .setOnCheckedChangeListener(mCheckBoxListener);
+                    ((CheckBox) dialog.findViewById(R.id.save_as_flac))
+                            .setOnCheckedChangeListener(mCheckBoxListener);
+
+                    // FLAC playback is only supported on Android 3.1 and later.
+                    if (Build.VERSION.SDK_INT < 12) {
+                        dialog.findViewById(R.id.save_as_flac).setVisibility(View.GONE);
+                    }
 
                     return dialog;
                 }
@@ -400,8 +697,7 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
                             switch (v.getId()) {
                                 case R.id.confirm_save:
                                     final String filename = editText.getText().toString();
-                                    final String text = mInputText.getText().toString();
-                                    mSynth.writeInput(text, mLocale, mPitch, mSpeed, filename);
+                                    startSave(getSpokenText(), filename);
                                     dialog.dismiss();
                                     break;
                             }
@@ -423,16 +719,27 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
         protected void onPreparePinnedDialog(int id, PinnedDialog dialog, Bundle arguments) {
             switch (id) {
                 case PINNED_LANGUAGES: {
-                    ((ListView) dialog.findViewById(R.id.languages)).setSelection(mLocalePosition);
-                    ((ListView) dialog.findViewById(R.id.languages)).setItemChecked(
-                            mLocalePosition, true);
+                    final ListView listView = (ListView) dialog.findViewById(R.id.languages);
+                    final int position = mLanguagesAdapter.getPositionForLocale(mLocale);
+
+                    // Locales are still being added while the engine is checked.
+                    listView.setAdapter(mLanguagesAdapter);
+
+                    if (position >= 0) {
+                        listView.setSelection(position);
+                    }
+
+                    updateLanguageChecked(listView);
                     break;
                 }
                 case PINNED_PROPERTIES: {
                     ((SeekBar) dialog.findViewById(R.id.seekPitch)).setProgress(mPitch);
                     ((SeekBar) dialog.findViewById(R.id.seekSpeed)).setProgress(mSpeed);
                     ((CheckBox) dialog.findViewById(R.id.speak_while_typing)).setChecked(mSpeakWhileTyping);
+                    ((CheckBox) dialog.findViewById(R.id.echo_characters)).setChecked(mEchoCharacters);
                     ((CheckBox) dialog.findViewById(R.id.use_larger_font)).setChecked(mUseLargerFont);
+                    ((CheckBox) dialog.findViewById(R.id.gapless_playback)).setChecked(mGaplessPlayback);
+                    ((CheckBox) dialog.findViewById(R.id.save_as_flac)).setChecked(mSaveAsFlac);
                     break;
                 }
             }
@@ -448,6 +755,11 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
             case REQUEST_INSTALL_DATA:
                 onTtsInitialized(TextToSpeech.SUCCESS);
                 break;
+            case REQUEST_OPEN_DOCUMENT:
+                if ((resultCode == RESULT_OK) && (data != null) && (data.getData() != null)) {
+                    openDocument(data.getData());
+                }
+                break;
             default:
                 super.onActivityResult(requestCode, resultCode, data);
         }
@@ -497,6 +809,30 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
         findViewById(R.id.library).setOnClickListener(mOnClickListener);
 
         mInputText = (EditText) findViewById(R.id.input_text);
+
+        mReaderView = (ListView) findViewById(R.id.reader);
+        mReaderView.setOnItemClickListener(new OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                // Like the edit text cursor, this applies on the next start or resume.
+                mReaderCursor = mReaderAdapter.getIndex().getStart(position);
+            }
+        });
+    }
+
+    private void updateEchoMode() {
+        mTypingEcho.setMode(mEchoCharacters ? TypingEcho.MODE_CHARACTERS
+                : TypingEcho.MODE_WORDS);
+    }
+
+    private void updateTextSize() {
+        final float size = (mUseLargerFont ? LARGER_FONT : DEFAULT_FONT);
+
+        mInputText.setTextSize(size);
+
+        if (mReaderAdapter != null) {
+            mReaderAdapter.setTextSize(size);
+        }
     }
 
     /**
@@ -512,205 +848,1006 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
             return;
         }
 
+        mTextReplacesDraft = true;
+
+        closeDocument();
+
         // The extraction library depends on java.lang.String.getBytes(Charset),
         // which is only available in SDK 9 and above.
-        if ((Build.VERSION.SDK_INT >= 9) && fromIntent
-                && (text.startsWith("http://") || text.startsWith("https://"))) {
-            mExtractionTask = new ExtractionTask() {
+        final String[] urls = fromIntent ? getUrls(text) : null;
+
+        if ((Build.VERSION.SDK_INT >= 9) && (urls != null)) {
+            if (mExtractionTask != null) {
+                mExtractionTask.cancelExtraction();
+            }
+
+            // Paragraphs are appended and spoken as they're extracted.
+            mTtsWrapper.stop();
+            mInputText.setText("");
+            mTtsWrapper.setAwaitingText(true);
+
+            final int[] statuses = new int[urls.length];
+
+            mExtractionTask = new ExtractionTask(mExtractionCache) {
+                private boolean mReceivedText;
+
                 @Override
                 @SuppressWarnings("deprecation")
                 protected void onPreExecute() {
                     showDialog(DIALOG_EXTRACTING_TEXT);
+                    updateExtractingDialog(urls, statuses);
                 }
 
-                @SuppressWarnings("deprecation")
                 @Override
-                protected void onPostExecute(CharSequence result) {
-                    try {
-                        dismissDialog(DIALOG_EXTRACTING_TEXT);
-                    } catch (IllegalArgumentException e) {
-                        // Do nothing.
-                    }
-                    mInputText.setText(result);
-                }
-            };
-            mExtractionTask.execute(text);
-        } else {
-            mInputText.setText(text);
-        }
-    }
+                protected void onProgressUpdate(ExtractionUpdate... updates) {
+                    for (ExtractionUpdate update : updates) {
+                        if (update.paragraph == null) {
+                            statuses[update.index] = update.status;
+                            updateExtractingDialog(urls, statuses);
+                            continue;
+                        }
 
-    private static class ExtractionTask extends AsyncTask<String, Void, CharSequence> {
-        @Override
-        protected CharSequence doInBackground(String... params) {
-            final StringBuilder output = new StringBuilder();
-            final ArticleExtractor extractor = ArticleExtractor.getInstance();
+                        mInputText.append(update.paragraph + "\n");
 
-            try {
-                for (String param : params) {
-                    final URL url = new URL(param);
-                    final String extracted = extractor.getText(url);
+                        if (!mReceivedText) {
+                            mReceivedText = true;
+                            mInputText.setSelection(0);
+                            speakWhenReady();
 
-                    if (!TextUtils.isEmpty(extracted)) {
-                        output.append(extracted);
-                        output.append('\n');
+                            // Keep showing the status of a reading list.
+                            if (urls.length == 1) {
+                                dismissExtractingDialog();
+                            }
+                        }
                     }
                 }
-            } catch (final Exception e) {
-                e.printStackTrace();
-            }
 
-            return output;
+                @Override
+                protected void onPostExecute(Void result) {
+                    onExtractionFinished(this);
+                }
+
+                @Override
+                protected void onCancelled() {
+                    onExtractionFinished(this);
+                }
+            };
+            AsyncTaskCompatUtils.executeInParallel(mExtractionTask, urls);
+        } else {
+            mInputText.setText(text);
         }
     }
 
     /**
-     * Shows the media playback dialog for the given values.
+     * Finds the URLs in shared text. Text is treated as a link share if it
+     * starts or ends with a URL, which covers apps that share a title
+     * followed by a link.
      *
-     * @param contentValues The content values for the media.
-     * @param contentUri The URI for the media.
+     * @param text The shared text.
+     * @return The URLs, or {@code null} if the text isn't a link share.
      */
-    private void showPlaybackDialog(ContentValues contentValues) {
-        final PlaybackDialog playback = new PlaybackDialog(this, false);
+    private static String[] getUrls(String text) {
+        final String[] tokens = text.trim().split("\\s+");
 
-        try {
-            final String path = contentValues.getAsString(MediaColumns.DATA);
-            playback.setFile(path);
-            playback.show();
-        } catch (final IOException e) {
-            e.printStackTrace();
+        if (!isUrl(tokens[0]) && !isUrl(tokens[tokens.length - 1])) {
+            return null;
+        }
+
+        final ArrayList<String> urls = new ArrayList<String>();
+
+        for (String token : tokens) {
+            if (isUrl(token)) {
+                urls.add(token);
+            }
         }
+
+        return urls.toArray(new String[urls.size()]);
+    }
+
+    private static boolean isUrl(String token) {
+        return token.startsWith("http://") || token.startsWith("https://");
     }
 
     /**
-     * Speaks the current text aloud.
+     * Shows the status of each URL in the extraction progress dialog.
      */
-    private void speak() {
-        final CharSequence text = mInputText.getText();
-
-        if (TextUtils.isEmpty(text)) {
-            mPinnedDialogManager.showPinnedDialog(PINNED_NO_TEXT, mSpeakButton);
-            mHandler.dismissDialogDelayed(PINNED_NO_TEXT, 1000);
+    private void updateExtractingDialog(String[] urls, int[] statuses) {
+        if (mExtractingDialog == null) {
             return;
         }
 
-        mTtsWrapper.setLocale(mLocale);
+        final StringBuilder message = new StringBuilder();
 
-        if (mLocale != null) {
-            mTts.setLanguage(mLocale);
-        }
+        for (int i = 0; i < urls.length; i++) {
+            final String host = Uri.parse(urls[i]).getHost();
 
-        mTts.setPitch(mPitch / 50.0f);
-        mTts.setSpeechRate(mSpeed / 50.0f);
+            if (message.length() > 0) {
+                message.append('\n');
+            }
 
-        mTtsWrapper.setText(text);
-        mTtsWrapper.setSegmentFromCursor(mInputText.getSelectionStart());
-        mTtsWrapper.speak();
+            message.append(getString(R.string.extracting_status, (host != null) ? host : urls[i],
+                    getString(EXTRACTION_STATUS_RES_IDS[statuses[i]])));
+        }
+
+        mExtractingDialog.setMessage(message);
     }
 
-    private void manageAudioFocus(boolean gain) {
-        if (gain) {
-            AudioManagerCompatUtils.requestAudioFocus(mAudioManager, null,
-                    AudioManager.STREAM_MUSIC, AudioManagerCompatUtils.AUDIOFOCUS_GAIN_TRANSIENT);
-        } else {
-            AudioManagerCompatUtils.abandonAudioFocus(mAudioManager, null);
+    @SuppressWarnings("deprecation")
+    private void dismissExtractingDialog() {
+        try {
+            dismissDialog(DIALOG_EXTRACTING_TEXT);
+        } catch (IllegalArgumentException e) {
+            // Do nothing.
         }
     }
 
-    /**
-     * Writes the current text to file.
-     */
-    private void write(View pinnedView) {
-        final CharSequence text = mInputText.getText();
-
-        if (TextUtils.isEmpty(text)) {
-            mPinnedDialogManager.showPinnedDialog(PINNED_NO_TEXT, mSaveButton);
-            mHandler.dismissDialogDelayed(PINNED_NO_TEXT, 1000);
+    private void onExtractionFinished(ExtractionTask task) {
+        if (mExtractionTask != task) {
             return;
         }
 
-        if (mSynth == null) {
-            mSynth = new FileSynthesizer(this, mTts);
-            mSynth.setListener(new FileSynthesizerListener() {
-                @Override
-                public void onFileSynthesized(ContentValues contentValues) {
-                    showPlaybackDialog(contentValues);
-                }
-            });
-        }
-
-        mPinnedDialogManager.showPinnedDialog(PINNED_SAVE, pinnedView);
+        mExtractionTask = null;
+        dismissExtractingDialog();
+        mTtsWrapper.setAwaitingText(false);
     }
 
     /**
-     * Clears the text input area.
+     * Speaks the current text, waiting for the engine to initialize if
+     * necessary.
      */
-    private void clear() {
-        mInputText.setText("");
+    private void speakWhenReady() {
+        if (mTtsReady) {
+            speak();
+        } else {
+            mSpeakWhenReady = true;
+        }
     }
 
     /**
-     * Populates the language adapter with the specified locales. Attempts to
-     * set the current selection based on {@link #mLocale}.
-     *
-     * @param locales The locales to populate.
+     * Extracts paragraphs from web pages in parallel and publishes them in
+     * the order the pages were given, so they can be spoken before the rest
+     * of the pages have loaded. A page that fails doesn't affect the others.
      */
-    private void populateAdapter(Set<Locale> locales) {
-        mLanguagesAdapter = new LanguageAdapter(this, R.layout.language, R.id.text, R.id.image);
-        mLanguagesAdapter.setDropDownViewResource(R.layout.language_dropdown);
-        mLanguagesAdapter.clear();
+    private static class ExtractionTask extends AsyncTask<String, ExtractionUpdate, Void> {
+        /** Maximum number of pages to download at once. */
+        private static final int MAX_PARALLEL_EXTRACTIONS = 4;
 
-        final String preferredLocale = ((mLocale == null) ? null : mLocale.toString());
-        int preferredSelection = 0;
+        private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+        private static final int READ_TIMEOUT_MILLIS = 15000;
 
-        // Add the available locales to the adapter, watching for the preferred
-        // locale.
-        for (final Locale locale : locales) {
-            mLanguagesAdapter.add(locale);
+        private final ExtractionCache mCache;
 
-            if (locale.toString().equalsIgnoreCase(preferredLocale)) {
-                preferredSelection = (mLanguagesAdapter.getCount() - 1);
-            }
+        /** Extractors for each page, guarded by {@code this}. */
+        private final ArrayList<ParagraphExtractor> mExtractors =
+                new ArrayList<ParagraphExtractor>();
+
+        /** Paragraphs from pages after the one being published. */
+        private ArrayList<ArrayList<String>> mBuffered;
+
+        /** Which pages have finished. */
+        private boolean[] mFinished;
+
+        /** Index of the page whose paragraphs are being published. */
+        private int mPublishing;
+
+        private boolean mCanceled;
+
+        public ExtractionTask(ExtractionCache cache) {
+            mCache = cache;
         }
 
-        // Set up the language spinner.
-        mLocalePosition = preferredSelection;
-    }
+        @Override
+        protected Void doInBackground(String... urls) {
+            final ExecutorService executor = Executors.newFixedThreadPool(Math.min(urls.length,
+                    MAX_PARALLEL_EXTRACTIONS));
+
+            synchronized (this) {
+                mBuffered = new ArrayList<ArrayList<String>>(urls.length);
+                mFinished = new boolean[urls.length];
+
+                for (int i = 0; i < urls.length; i++) {
+                    final ParagraphExtractor extractor = new ParagraphExtractor(
+                            new OrderedListener(i));
+                    extractor.setCache(mCache);
+                    extractor.setTimeouts(CONNECT_TIMEOUT_MILLIS, READ_TIMEOUT_MILLIS);
+
+                    if (mCanceled) {
+                        extractor.cancel();
+                    }
 
-    /**
-     * Handles the text-to-speech language check callback.
-     *
-     * @param resultCode The result code.
-     * @param data The returned data.
-     */
-    @SuppressWarnings("deprecation")
-    private void onTtsCheck(int resultCode, Intent data) {
-        // If data is null, always prompt the user to install voice data.
-        if (data == null) {
-            mSpeakButton.setEnabled(false);
-            mSaveButton.setEnabled(false);
-            showDialog(DIALOG_INSTALL_DATA);
-            return;
+                    mBuffered.add(new ArrayList<String>());
+                    mExtractors.add(extractor);
+                }
+            }
+
+            for (int i = 0; i < urls.length; i++) {
+                executor.execute(new ExtractionRunnable(i, urls[i]));
+            }
+
+            executor.shutdown();
+
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (final InterruptedException e) {
+                executor.shutdownNow();
+            }
+
+            return null;
         }
 
-        mSpeakButton.setEnabled(true);
-        mSaveButton.setEnabled(true);
+        /**
+         * Stops extracting and cancels the task. Open connections are closed
+         * on a background thread, so blocked reads fail immediately.
+         */
+        public void cancelExtraction() {
+            cancel(true);
 
-        final boolean passed = (resultCode == TextToSpeech.Engine.CHECK_VOICE_DATA_PASS);
-        final Set<Locale> locales = TextToSpeechUtils.loadTtsLanguages(mTts, data);
+            final ArrayList<ParagraphExtractor> extractors;
 
-        if (!locales.isEmpty() || passed) {
-            mSpeakButton.setEnabled(true);
-            mSaveButton.setEnabled(true);
-            populateAdapter(locales);
-            return;
+            synchronized (this) {
+                mCanceled = true;
+                extractors = new ArrayList<ParagraphExtractor>(mExtractors);
+            }
+
+            new Thread() {
+                @Override
+                public void run() {
+                    for (ParagraphExtractor extractor : extractors) {
+                        extractor.cancel();
+                    }
+                }
+            }.start();
         }
 
-        // Failed to find languages, prompt the user to install voice data.
-        mSpeakButton.setEnabled(false);
-        mSaveButton.setEnabled(false);
-        showDialog(DIALOG_INSTALL_DATA);
-    }
+        private synchronized void onParagraphExtracted(int index, String paragraph) {
+            if (index == mPublishing) {
+                publishProgress(new ExtractionUpdate(index, EXTRACTION_DONE, paragraph));
+            } else {
+                mBuffered.get(index).add(paragraph);
+            }
+        }
+
+        private synchronized void onPageFinished(int index, int status) {
+            mFinished[index] = true;
+
+            publishProgress(new ExtractionUpdate(index, status, null));
+
+            // Publish buffered paragraphs from pages that are now next.
+            while ((mPublishing < mFinished.length) && mFinished[mPublishing]) {
+                mPublishing++;
+
+                if (mPublishing < mFinished.length) {
+                    final ArrayList<String> buffered = mBuffered.get(mPublishing);
+
+                    for (String paragraph : buffered) {
+                        publishProgress(new ExtractionUpdate(mPublishing, EXTRACTION_DONE,
+                                paragraph));
+                    }
+
+                    buffered.clear();
+                }
+            }
+        }
+
+        private class ExtractionRunnable implements Runnable {
+            private final int mIndex;
+            private final String mUrl;
+
+            public ExtractionRunnable(int index, String url) {
+                mIndex = index;
+                mUrl = url;
+            }
+
+            @Override
+            public void run() {
+                final ParagraphExtractor extractor;
+
+                synchronized (ExtractionTask.this) {
+                    extractor = mExtractors.get(mIndex);
+                }
+
+                publishProgress(new ExtractionUpdate(mIndex, EXTRACTION_LOADING, null));
+
+                int status = EXTRACTION_DONE;
+
+                try {
+                    extractor.extract(new URL(mUrl));
+                } catch (final Exception e) {
+                    e.printStackTrace();
+                    status = EXTRACTION_FAILED;
+                }
+
+                onPageFinished(mIndex, status);
+            }
+        }
+
+        private class OrderedListener implements ParagraphExtractor.ParagraphListener {
+            private final int mIndex;
+
+            public OrderedListener(int index) {
+                mIndex = index;
+            }
+
+            @Override
+            public void onParagraphExtracted(String paragraph) {
+                if (!TextUtils.isEmpty(paragraph)) {
+                    ExtractionTask.this.onParagraphExtracted(mIndex, paragraph);
+                }
+            }
+        }
+    }
+
+    /**
+     * A change in the status of a page, or a paragraph extracted from it.
+     */
+    private static class ExtractionUpdate {
+        public final int index;
+        public final int status;
+
+        /** The extracted paragraph, or {@code null} for a status change. */
+        public final String paragraph;
+
+        public ExtractionUpdate(int index, int status, String paragraph) {
+            this.index = index;
+            this.status = status;
+            this.paragraph = paragraph;
+        }
+    }
+
+    /**
+     * Imports a document and speaks it from a memory-mapped file instead of
+     * the edit text. Documents are copied into private storage, since shared
+     * content may not stay readable, and are decoded as UTF-8.
+     *
+     * @param uri The document to open.
+     */
+    private void openDocument(final Uri uri) {
+        if (mDocumentTask != null) {
+            mDocumentTask.cancel(false);
+        }
+
+        mDocumentTask = new AsyncTask<Void, Void, ParagraphIndex>() {
+            @Override
+            protected ParagraphIndex doInBackground(Void... params) {
+                final File directory = new File(getFilesDir(), DOCUMENTS_DIR);
+
+                try {
+                    final File file;
+
+                    if (ContentResolver.SCHEME_FILE.equals(uri.getScheme())
+                            && directory.equals(new File(uri.getPath()).getParentFile())) {
+                        file = new File(uri.getPath());
+                    } else {
+                        directory.mkdirs();
+                        file = new File(directory, System.currentTimeMillis() + ".txt");
+                        copyDocument(uri, file);
+                    }
+
+                    final MappedCharSequence document = MappedCharSequence.open(file);
+
+                    deleteOldDocuments(directory, file);
+
+                    return ParagraphIndex.build(document, ParagraphIndex.DEFAULT_MAX_LENGTH);
+                } catch (final IOException e) {
+                    e.printStackTrace();
+                    return null;
+                } catch (final SecurityException e) {
+                    e.printStackTrace();
+                    return null;
+                }
+            }
+
+            @Override
+            protected void onPostExecute(ParagraphIndex result) {
+                if (mDocumentTask != this) {
+                    return;
+                }
+
+                mDocumentTask = null;
+
+                if (result != null) {
+                    setDocument(result);
+                } else {
+                    Toast.makeText(TypeAndSpeak.this, R.string.open_document_failed,
+                            Toast.LENGTH_LONG).show();
+                }
+            }
+        };
+        AsyncTaskCompatUtils.executeInParallel(mDocumentTask);
+    }
+
+    private void copyDocument(Uri uri, File file) throws IOException {
+        final InputStream in = getContentResolver().openInputStream(uri);
+
+        if (in == null) {
+            throw new IOException("Failed to open " + uri);
+        }
+
+        try {
+            final OutputStream out = new FileOutputStream(file);
+
+            try {
+                final byte[] buffer = new byte[64 * 1024];
+                int count;
+
+                while ((count = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (final IOException e) {
+            file.delete();
+            throw e;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Deletes documents other than the current one, unless queued exports
+     * may still be reading them.
+     */
+    private void deleteOldDocuments(File directory, File current) {
+        if (ExportJobStore.getInstance(this).getRemainingCount() > 0) {
+            return;
+        }
+
+        final File[] files = directory.listFiles();
+
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            if (!file.equals(current)) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Switches to speaking a document, which is shown in the reader in place
+     * of the edit text. The edit text is kept for when the document is
+     * closed.
+     *
+     * @param index The paragraphs of the document to speak.
+     */
+    private void setDocument(ParagraphIndex index) {
+        if (mExtractionTask != null) {
+            mExtractionTask.cancelExtraction();
+        }
+
+        mTtsWrapper.stop();
+
+        mDocument = (MappedCharSequence) index.getText();
+        mReaderCursor = -1;
+        mReaderAdapter = new ParagraphAdapter(this, index);
+        mReaderAdapter.setTextSize(mUseLargerFont ? LARGER_FONT : DEFAULT_FONT);
+        mReaderView.setAdapter(mReaderAdapter);
+        mReaderView.setVisibility(View.VISIBLE);
+        mInputText.setVisibility(View.GONE);
+        mTtsWrapper.setText(mDocument);
+    }
+
+    /**
+     * Closes the open document, if any, and returns to the edit text.
+     */
+    private void closeDocument() {
+        if (mDocumentTask != null) {
+            mDocumentTask.cancel(false);
+            mDocumentTask = null;
+        }
+
+        if (mDocument == null) {
+            return;
+        }
+
+        mTtsWrapper.stop();
+        mTtsWrapper.setText(null);
+
+        mDocument = null;
+        mReaderAdapter = null;
+        mReaderView.setAdapter(null);
+        mReaderView.setVisibility(View.GONE);
+        mInputText.setVisibility(View.VISIBLE);
+    }
+
+    /**
+     * @return The text to speak or save, which is either the open document
+     *         or the edit text.
+     */
+    private CharSequence getSpokenText() {
+        return (mDocument != null) ? mDocument : mInputText.getText();
+    }
+
+    /**
+     * Shows the media playback dialog for a saved file.
+     *
+     * @param path The path of the saved file.
+     */
+    private void showPlaybackDialog(String path) {
+        final PlaybackDialog playback = new PlaybackDialog(this, false);
+
+        try {
+            playback.setFile(path);
+            playback.show();
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Speaks the current text aloud.
+     */
+    private void speak() {
+        final CharSequence text = getSpokenText();
+
+        if (TextUtils.isEmpty(text)) {
+            mPinnedDialogManager.showPinnedDialog(PINNED_NO_TEXT, mSpeakButton);
+            mHandler.dismissDialogDelayed(PINNED_NO_TEXT, 1000);
+            return;
+        }
+
+        mTtsWrapper.setLocale(mLocale);
+
+        if (mLocale != null) {
+            mTts.setLanguage(mLocale);
+        }
+
+        mTts.setPitch(mPitch / 50.0f);
+        mTts.setSpeechRate(mSpeed / 50.0f);
+
+        // The wrapper tracks edits, so only segment text it hasn't seen.
+        if (mTtsWrapper.getText() != text) {
+            mTtsWrapper.setText(text);
+        }
+
+        final SpeechMetrics metrics = getMetrics();
+        metrics.onSpeakRequested();
+
+        mTtsWrapper.setMetrics(metrics);
+        mTtsWrapper.setAudioCache(mAudioCache, mTtsEngine, mPitch, mSpeed);
+
+        if (mBufferedTts != null) {
+            mBufferedTts.setAudioCache(mAudioCache, mTtsEngine, mLocale, mPitch, mSpeed);
+        }
+        if (mDocument != null) {
+            mTtsWrapper.setSegmentFromCursor(Math.max(0, mReaderCursor));
+            mReaderCursor = -1;
+        } else {
+            mTtsWrapper.setSegmentFromCursor(mInputText.getSelectionStart());
+        }
+
+        mTtsWrapper.speak();
+    }
+
+    /**
+     * Switches between speaking through the engine and gapless playback,
+     * which synthesizes ahead and plays through an audio track. Stops any
+     * speech in progress.
+     *
+     * @param enabled Whether to use gapless playback.
+     */
+    private void setGaplessPlayback(boolean enabled) {
+        if (enabled == (mBufferedTts != null)) {
+            return;
+        }
+
+        if (mTtsWrapper.isSpeaking()) {
+            mTtsWrapper.stop();
+        }
+
+        if (enabled) {
+            mBufferedTts = new BufferedTextToSpeech(this);
+            mBufferedTts.setAudioCache(mAudioCache, mTtsEngine, mLocale, mPitch, mSpeed);
+            mTtsWrapper = new GranularTextToSpeech(this, mBufferedTts, mLocale);
+            mTtsWrapper.setLookahead(GAPLESS_LOOKAHEAD);
+        } else {
+            mBufferedTts.shutdown();
+            mBufferedTts = null;
+            mTtsWrapper = new GranularTextToSpeech(this, mTts, mLocale);
+        }
+
+        mTtsWrapper.setListener(mSingAlongListener);
+        mTtsWrapper.setOnQueueStateChangedListener(mQueueStateListener);
+        mTtsWrapper.setAwaitingText(mExtractionTask != null);
+    }
+
+    /**
+     * @return The format to save speech in.
+     */
+    private OutputFormat getOutputFormat() {
+        if (mSaveAsFlac && (Build.VERSION.SDK_INT >= 12)) {
+            return OutputFormat.FLAC;
+        }
+
+        return OutputFormat.WAV;
+    }
+
+    /**
+     * @return The metrics for the current engine, locale, and speech rate.
+     */
+    private SpeechMetrics getMetrics() {
+        return SpeechMetrics.get(mTtsEngine, mLocale, mSpeed);
+    }
+
+    private void manageAudioFocus(boolean gain) {
+        if (gain) {
+            AudioManagerCompatUtils.requestAudioFocus(mAudioManager, null,
+                    AudioManager.STREAM_MUSIC, AudioManagerCompatUtils.AUDIOFOCUS_GAIN_TRANSIENT);
+        } else {
+            AudioManagerCompatUtils.abandonAudioFocus(mAudioManager, null);
+        }
+    }
+
+    /**
+     * Writes the current text to file.
+     */
+    private void write(View pinnedView) {
+        final CharSequence text = getSpokenText();
+
+        if (TextUtils.isEmpty(text)) {
+            mPinnedDialogManager.showPinnedDialog(PINNED_NO_TEXT, mSaveButton);
+            mHandler.dismissDialogDelayed(PINNED_NO_TEXT, 1000);
+            return;
+        }
+
+        mPinnedDialogManager.showPinnedDialog(PINNED_SAVE, pinnedView);
+    }
+
+    /**
+     * Queues the text for saving and shows its progress.
+     *
+     * @param text The text to save, which may be a document.
+     * @param filename The file name entered by the user.
+     */
+    private void startSave(CharSequence text, String filename) {
+        final OutputFormat format = getOutputFormat();
+        final String outname = OutputFormat.removeExtension(filename).trim();
+
+        if (outname.length() <= 0) {
+            return;
+        }
+
+        final ExportJob job;
+
+        // Documents are read from their file rather than copied into the job.
+        if (text instanceof MappedCharSequence) {
+            job = new ExportJob(ExportJobStore.SOURCE_FILE, ((MappedCharSequence) text)
+                    .getFile().getPath(), mLocale, mPitch, mSpeed, outname, format);
+        } else {
+            job = new ExportJob(ExportJobStore.SOURCE_TEXT, text.toString(), mLocale, mPitch,
+                    mSpeed, outname, format);
+        }
+
+        final String savingName = outname + format.extension;
+
+        // The job is added in the background, so cancellation and progress
+        // wait for its ID.
+        mSaveJobId = -1;
+        mSaveCanceled = false;
+
+        ExportService.enqueue(this, job, new ExportService.OnEnqueuedListener() {
+            @Override
+            public void onEnqueued(long lastJobId, int count) {
+                onSaveEnqueued(lastJobId, savingName);
+            }
+        });
+
+        mSavingMessage = getString(R.string.saving_message, savingName);
+
+        mSaveProgressDialog = new ProgressDialog(this);
+        mSaveProgressDialog.setCancelable(true);
+        mSaveProgressDialog.setTitle(R.string.saving_title);
+        mSaveProgressDialog.setMessage(mSavingMessage);
+        mSaveProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        mSaveProgressDialog.setMax(text.length());
+        mSaveProgressDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            @Override
+            public void onCancel(DialogInterface dialog) {
+                if (mSaveJobId >= 0) {
+                    ExportService.cancel(TypeAndSpeak.this, mSaveJobId);
+                } else {
+                    mSaveCanceled = true;
+                }
+            }
+        });
+
+        try {
+            mSaveProgressDialog.show();
+        } catch (final RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Starts tracking a save once its job has been added to the queue.
+     *
+     * @param jobId The ID of the job, or {@code -1} if it couldn't be added.
+     * @param filename The name of the file being saved.
+     */
+    private void onSaveEnqueued(long jobId, String filename) {
+        if (isFinishing()) {
+            return;
+        }
+
+        if (jobId < 0) {
+            final Intent intent = new Intent(ExportService.EVENT_FAILED);
+            intent.putExtra(ExportService.EXTRA_ERROR, FileSynthesizer.ERROR_NO_WRITE);
+            intent.putExtra(ExportService.EXTRA_FILENAME, filename);
+
+            onSaveFinished(ExportService.EVENT_FAILED, intent);
+            return;
+        }
+
+        mSaveJobId = jobId;
+
+        if (mSaveCanceled) {
+            ExportService.cancel(this, jobId);
+        }
+    }
+
+    /**
+     * Queues every text file in a folder for saving.
+     *
+     * @param folder The folder containing text files.
+     */
+    private void convertFolder(final File folder) {
+        ExportService.enqueueFolder(this, folder, mLocale, mPitch, mSpeed, getOutputFormat(),
+                new ExportService.OnEnqueuedListener() {
+                    @Override
+                    public void onEnqueued(long lastJobId, int count) {
+                        onFolderEnqueued(folder, count);
+                    }
+                });
+    }
+
+    /**
+     * Reports how many files from a folder were queued for saving.
+     */
+    private void onFolderEnqueued(File folder, int count) {
+        if (count > 0) {
+            Toast.makeText(this, getString(R.string.convert_folder_queued, count),
+                    Toast.LENGTH_LONG).show();
+        } else {
+            Toast.makeText(this, getString(R.string.convert_folder_empty, folder.getPath()),
+                    Toast.LENGTH_LONG).show();
+        }
+    }
+
+    /**
+     * Updates the save progress dialog.
+     */
+    private void onSaveProgress(int segmentsDone, int segmentCount, int charactersDone,
+            long remainingMillis) {
+        if (mSaveProgressDialog == null) {
+            return;
+        }
+
+        final String progress;
+
+        if (remainingMillis < 0) {
+            progress = getString(R.string.saving_progress, segmentsDone, segmentCount);
+        } else {
+            progress = getString(R.string.saving_progress_eta, segmentsDone, segmentCount,
+                    DateUtils.formatElapsedTime(remainingMillis / 1000));
+        }
+
+        mSaveProgressDialog.setMessage(mSavingMessage + "\n\n" + progress);
+        mSaveProgressDialog.setProgress(charactersDone);
+    }
+
+    /**
+     * Dismisses the save progress dialog and shows the result of the save.
+     *
+     * @param event The export event that finished the save.
+     * @param intent The event intent.
+     */
+    private void onSaveFinished(String event, Intent intent) {
+        mSaveJobId = -1;
+
+        try {
+            if ((mSaveProgressDialog != null) && mSaveProgressDialog.isShowing()) {
+                mSaveProgressDialog.dismiss();
+            }
+        } catch (final IllegalArgumentException e) {
+            e.printStackTrace();
+        }
+
+        mSaveProgressDialog = null;
+
+        if (ExportService.EVENT_COMPLETED.equals(event)) {
+            final String path = intent.getStringExtra(ExportService.EXTRA_PATH);
+
+            if (intent.getBooleanExtra(ExportService.EXTRA_REUSED, false)) {
+                Toast.makeText(this, getString(R.string.reused_message,
+                        new File(path).getName()), Toast.LENGTH_LONG).show();
+            }
+
+            showPlaybackDialog(path);
+            return;
+        }
+
+        final AlertDialog alert;
+
+        if (ExportService.EVENT_CANCELED.equals(event)) {
+            alert = new Builder(this).setTitle(R.string.canceled_title)
+                    .setMessage(R.string.canceled_message)
+                    .setPositiveButton(android.R.string.ok, null).create();
+        } else {
+            final String filename = intent.getStringExtra(ExportService.EXTRA_FILENAME);
+
+            switch (intent.getIntExtra(ExportService.EXTRA_ERROR, 0)) {
+                case FileSynthesizer.ERROR_EXISTS:
+                    alert = new Builder(this).setTitle(R.string.exists_title)
+                            .setMessage(getString(R.string.exists_message, filename))
+                            .setPositiveButton(android.R.string.ok, null).create();
+                    break;
+                case FileSynthesizer.ERROR_NO_WRITE:
+                    alert = new Builder(this).setTitle(R.string.no_write_title)
+                            .setMessage(getString(R.string.no_write_message, filename))
+                            .setPositiveButton(android.R.string.ok, null).create();
+                    break;
+                default:
+                    alert = new Builder(this).setTitle(R.string.tts_failed)
+                            .setMessage(R.string.synthesis_failed_message)
+                            .setPositiveButton(android.R.string.ok, null).create();
+                    break;
+            }
+        }
+
+        try {
+            alert.show();
+        } catch (final RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Clears the text input area and closes the open document.
+     */
+    private void clear() {
+        closeDocument();
+        mInputText.setText("");
+    }
+
+    /**
+     * Shows the saved text, unless text was shared while it was loading.
+     *
+     * @param text The saved text.
+     */
+    private void onDraftLoaded(String text) {
+        if (mTextReplacesDraft) {
+            mDraftStore.replace(mInputText.getText());
+        } else if (mInputText.length() > 0) {
+            // Keep anything typed while the draft was loading after it.
+            mInputText.getText().insert(0, text);
+            mDraftStore.replace(mInputText.getText());
+        } else {
+            mInputText.setText(text);
+        }
+
+        // Edits are only journaled once they apply to the saved text.
+        mDraftLoaded = true;
+    }
+
+    /**
+     * Handles the text-to-speech language check callback.
+     *
+     * @param resultCode The result code.
+     * @param data The returned data.
+     */
+    @SuppressWarnings("deprecation")
+    private void onTtsCheck(int resultCode, final Intent data) {
+        if (mLocaleTask != null) {
+            mLocaleTask.cancel(false);
+            mLocaleTask = null;
+        }
+
+        // If data is null, always prompt the user to install voice data.
+        if (data == null) {
+            mSpeakButton.setEnabled(false);
+            mSaveButton.setEnabled(false);
+            showDialog(DIALOG_INSTALL_DATA);
+            return;
+        }
+
+        mSpeakButton.setEnabled(true);
+        mSaveButton.setEnabled(true);
+
+        final boolean passed = (resultCode == TextToSpeech.Engine.CHECK_VOICE_DATA_PASS);
+        final String engine = mTtsEngine;
+
+        // Without a list of voices, every system locale is checked with the
+        // engine, so find locales in the background and add each one to the
+        // list as soon as it's confirmed.
+        mLocaleTask = new AsyncTask<Void, Locale, Set<Locale>>() {
+            @Override
+            protected Set<Locale> doInBackground(Void... params) {
+                final Set<Locale> locales = TextToSpeechUtils.loadTtsLanguages(mTts, data,
+                        new TextToSpeechUtils.LocaleListener() {
+                            @Override
+                            public void onLocaleFound(Locale locale) {
+                                publishProgress(locale);
+                            }
+                        });
+
+                if (!locales.isEmpty()) {
+                    mLocaleCache.put(engine, locales);
+                }
+
+                return locales;
+            }
+
+            @Override
+            protected void onProgressUpdate(Locale... locales) {
+                mLanguagesAdapter.addLocales(Arrays.asList(locales));
+            }
+
+            @Override
+            protected void onPostExecute(Set<Locale> locales) {
+                mLocaleTask = null;
+
+                if (!isFinishing()) {
+                    onLocalesLoaded(locales, passed);
+                }
+            }
+        };
+
+        AsyncTaskCompatUtils.executeOnExecutor(mLocaleTask, sLocaleExecutor);
+    }
+
+    /**
+     * Removes cached locales that the voice data check didn't find.
+     *
+     * @param locales The locales supported by the engine.
+     * @param passed Whether the voice data check passed.
+     */
+    @SuppressWarnings("deprecation")
+    private void onLocalesLoaded(Set<Locale> locales, boolean passed) {
+        if (!locales.isEmpty() || passed) {
+            mSpeakButton.setEnabled(true);
+            mSaveButton.setEnabled(true);
+            mLanguagesAdapter.retainLocales(locales);
+            return;
+        }
+
+        // Failed to find languages, prompt the user to install voice data.
+        mSpeakButton.setEnabled(false);
+        mSaveButton.setEnabled(false);
+        showDialog(DIALOG_INSTALL_DATA);
+    }
+
+    /**
+     * Checks the current locale in the languages list, or clears the check if
+     * the current locale is not in the adapter.
+     */
+    private void updateLanguageChecked(ListView listView) {
+        final int position = mLanguagesAdapter.getPositionForLocale(mLocale);
+
+        if (position >= 0) {
+            listView.setItemChecked(position, true);
+        } else {
+            listView.clearChoices();
+        }
+    }
+
+    /**
+     * Shows the locales found for the current engine last time, if it hasn't
+     * been updated since. They're revalidated by the voice data check.
+     */
+    private void showCachedLocales() {
+        final Set<Locale> cached = mLocaleCache.get(mTtsEngine);
+
+        if (cached != null) {
+            mLanguagesAdapter.retainLocales(cached);
+            mLanguagesAdapter.addLocales(cached);
+        } else {
+            // Don't show another engine's locales until the check finishes.
+            mLanguagesAdapter.clear();
+        }
+    }
 
     /**
      * Handles the text-to-speech initialization callback.
@@ -720,6 +1857,15 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
     private void onTtsInitialized(int status) {
         switch (status) {
             case TextToSpeech.SUCCESS:
+                mTtsReady = true;
+
+                if (mSpeakWhenReady) {
+                    mSpeakWhenReady = false;
+                    speak();
+                }
+
+                showCachedLocales();
+
                 try {
                     final Intent intent = new Intent(Engine.ACTION_CHECK_TTS_DATA);
                     intent.setPackage(mTtsEngine);
@@ -744,9 +1890,20 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
                 case R.id.speak_while_typing:
                     mSpeakWhileTyping = buttonView.isChecked();
                     break;
+                case R.id.echo_characters:
+                    mEchoCharacters = buttonView.isChecked();
+                    updateEchoMode();
+                    break;
                 case R.id.use_larger_font:
                     mUseLargerFont = buttonView.isChecked();
-                    mInputText.setTextSize(mUseLargerFont ? LARGER_FONT : DEFAULT_FONT);
+                    updateTextSize();
+                    break;
+                case R.id.gapless_playback:
+                    mGaplessPlayback = buttonView.isChecked();
+                    setGaplessPlayback(mGaplessPlayback);
+                    break;
+                case R.id.save_as_flac:
+                    mSaveAsFlac = buttonView.isChecked();
                     break;
             }
         }
@@ -800,7 +1957,8 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
                     mPinnedDialogManager.showPinnedDialog(PINNED_CONFIRM_CLEAR, view);
                     break;
                 case R.id.speak:
-                    speak();
+                    // The saved locale is used while the languages are loading.
+                    speakWhenReady();
                     break;
                 case R.id.write:
                     write(view);
@@ -817,7 +1975,13 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
                     mResumeButton.setVisibility(View.VISIBLE);
                     break;
                 case R.id.resume:
-                    mTtsWrapper.setSegmentFromCursor(mInputText.getSelectionStart());
+                    if (mDocument == null) {
+                        mTtsWrapper.setSegmentFromCursor(mInputText.getSelectionStart());
+                    } else if (mReaderCursor >= 0) {
+                        mTtsWrapper.setSegmentFromCursor(mReaderCursor);
+                        mReaderCursor = -1;
+                    }
+
                     mTtsWrapper.resume();
                     mResumeButton.setVisibility(View.GONE);
                     mPauseButton.setVisibility(View.VISIBLE);
@@ -832,6 +1996,29 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
         }
     };
 
+    private final BroadcastReceiver mExportReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final long jobId = intent.getLongExtra(ExportService.EXTRA_JOB_ID, -1);
+
+            // Jobs queued from other screens report through the notification.
+            if ((jobId < 0) || (jobId != mSaveJobId)) {
+                return;
+            }
+
+            final String event = intent.getAction();
+
+            if (ExportService.EVENT_PROGRESS.equals(event)) {
+                onSaveProgress(intent.getIntExtra(ExportService.EXTRA_SEGMENTS_DONE, 0),
+                        intent.getIntExtra(ExportService.EXTRA_SEGMENT_COUNT, 0),
+                        intent.getIntExtra(ExportService.EXTRA_CHARACTERS_DONE, 0),
+                        intent.getLongExtra(ExportService.EXTRA_REMAINING_MILLIS, -1));
+            } else {
+                onSaveFinished(event, intent);
+            }
+        }
+    };
+
     private final SingAlongListener mSingAlongListener = new SingAlongListener() {
         @Override
         public void onSequenceStarted() {
@@ -840,15 +2027,20 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
             mPauseButton.setVisibility(View.VISIBLE);
             mResumeButton.setVisibility(View.GONE);
 
+            // Echoes would be flushed by the sequence anyway.
+            mTypingEcho.stop();
             manageAudioFocus(true);
         }
 
         @Override
         public void onUnitSelected(int start, int end) {
+            if (mReaderAdapter != null) {
+                mReaderAdapter.setHighlight(mReaderView, start, end);
+                return;
+            }
+
             if ((start < 0) || (end > mInputText.length())) {
-                // The text changed while we were speaking.
-                // TODO: We should be able to handle this.
-                mTtsWrapper.stop();
+                // Edits are tracked by the wrapper, so this shouldn't happen.
                 return;
             }
 
@@ -857,7 +2049,11 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
 
         @Override
         public void onSequenceCompleted() {
-            mInputText.setSelection(0, 0);
+            if (mReaderAdapter != null) {
+                mReaderAdapter.setHighlight(mReaderView, -1, -1);
+            } else {
+                mInputText.setSelection(0, 0);
+            }
 
             mSpeakControls.setVisibility(View.GONE);
             mDefaultControls.setVisibility(View.VISIBLE);
@@ -865,33 +2061,39 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
         }
     };
 
-    private final TextWatcher mTextWatcher = new TextWatcher() {
-        private final BreakIterator mWordIterator = BreakIterator.getWordInstance();
-        private final CharSequenceIterator mCharSequence = new CharSequenceIterator("");
+    /**
+     * Holds off background synthesis only while speech is queued, so that a
+     * paused or stalled reader doesn't hold up saving.
+     */
+    private final OnQueueStateChangedListener mQueueStateListener =
+            new OnQueueStateChangedListener() {
+                @Override
+                public void onQueueStateChanged(boolean queued) {
+                    mTtsPool.setInteractiveActive(queued);
+                }
+            };
 
+    private final TextWatcher mTextWatcher = new TextWatcher() {
         @Override
         public void onTextChanged(CharSequence s, int start, int before, int count) {
-            if (!mSpeakWhileTyping || (before > 0) || (count != 1)) {
-                return;
+            if (mDraftLoaded) {
+                mDraftStore.onTextChanged(start, before, s.subSequence(start, start + count));
             }
 
-            mCharSequence.setCharSequence(s);
-            mWordIterator.setText(mCharSequence);
-
-            if (mWordIterator.isBoundary(start)) {
-                final int unitEnd = start;
-                final int unitStart = mWordIterator.preceding(unitEnd);
-                if (unitStart == BreakIterator.DONE) {
-                    return;
-                }
+            if (mDocument != null) {
+                // The wrapper is speaking the document, not the edit text.
+                return;
+            }
 
-                final CharSequence unit = TextUtils.substring(s, unitStart, unitEnd);
-                if (TextUtils.getTrimmedLength(unit) == 0)  {
-                    return;
-                }
+            mTtsWrapper.onTextChanged(s, start, before, count);
 
-                mTts.speak(unit.toString(), TextToSpeech.QUEUE_FLUSH, null);
+            // Don't interrupt the text being spoken.
+            if (!mSpeakWhileTyping || mTtsWrapper.isSpeaking()) {
+                return;
             }
+
+            mTypingEcho.setMetrics(getMetrics());
+            mTypingEcho.onTextChanged(s, start, before, count);
         }
 
         @Override
@@ -901,9 +2103,7 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
 
         @Override
         public void afterTextChanged(Editable s) {
-            if (mTtsWrapper.isSpeaking()) {
-                mTtsWrapper.setText(s);
-            }
+            // Do nothing.
         }
     };
 
@@ -913,6 +2113,7 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
     private static class TypeAndSpeakHandler extends ReferencedHandler<TypeAndSpeak> {
         private static final int TTS_INITIALIZED = 1;
         private static final int DISMISS_DIALOG = 2;
+        private static final int DRAFT_LOADED = 3;
 
         public TypeAndSpeakHandler(TypeAndSpeak parent) {
             super(parent);
@@ -927,6 +2128,9 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
                 case DISMISS_DIALOG:
                     parent.mPinnedDialogManager.dismissPinnedDialog(msg.arg1);
                     break;
+                case DRAFT_LOADED:
+                    parent.onDraftLoaded((String) msg.obj);
+                    break;
             }
         }
 
@@ -937,5 +2141,9 @@ public class TypeAndSpeak extends GoogamaphoneActivity {
         public void dismissDialogDelayed(int id, long delay) {
             sendMessageDelayed(obtainMessage(DISMISS_DIALOG, id, 0), delay);
         }
+
+        public void transferOnDraftLoaded(String text) {
+            obtainMessage(DRAFT_LOADED, text).sendToTarget();
+        }
     }
 }
@@ -0,0 +1,354 @@
+package com.googamaphone.typeandspeak.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map.Entry;
+
+import android.content.Context;
+
+/**
+ * A disk-backed cache of synthesized audio with least-recently-used eviction.
+ * Entries are WAV files keyed on the text and the engine settings used to
+ * synthesize it, so identical text is only synthesized once.
+ * <p>
+ * There is a single instance per process, obtained from
+ * {@link #getInstance(Context)}, so that the size budget and eviction apply
+ * to every user of the directory.
+ */
+public class AudioCache {
+    /** Default size budget for cached audio, in bytes. */
+    public static final long DEFAULT_MAX_SIZE = 32 * 1024 * 1024;
+
+    /** Name of the cache directory within the application cache directory. */
+    private static final String DIRECTORY_NAME = "audio";
+
+    /** Number of characters to hash at a time when computing keys. */
+    private static final int KEY_BUFFER_SIZE = 8 * 1024;
+
+    private static final String ENTRY_SUFFIX = ".wav";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static AudioCache sInstance;
+
+    private final File mDirectory;
+    private final long mMaxSize;
+
+    /** Entry sizes by key, from least to most recently used. */
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<String, Long>(16,
+            0.75f, true);
+
+    private long mSize = 0;
+    private boolean mLoaded = false;
+
+    /**
+     * Returns the process-wide cache, creating it if necessary.
+     *
+     * @param context The parent context.
+     * @return The shared cache.
+     */
+    public static synchronized AudioCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AudioCache(new File(context.getCacheDir(), DIRECTORY_NAME),
+                    DEFAULT_MAX_SIZE);
+        }
+
+        return sInstance;
+    }
+
+    /**
+     * @param directory The directory to store entries in. It will be created
+     *            if necessary.
+     * @param maxSize The maximum total size of cached entries, in bytes.
+     */
+    private AudioCache(File directory, long maxSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Returns the cache key for a piece of text synthesized with the specified
+     * settings. Whitespace in the text is normalized so that changes in
+     * spacing or line breaks don't affect the key. The text is hashed in
+     * chunks, so long texts aren't copied.
+     *
+     * @param text The text to synthesize.
+     * @param locale The speech locale.
+     * @param pitch The speech pitch, as used in preferences.
+     * @param rate The speech rate, as used in preferences.
+     * @param engine The package name of the speech engine.
+     * @return A key suitable for use as a file name.
+     */
+    public static String getKey(CharSequence text, Locale locale, int pitch, int rate,
+            String engine) {
+        final StringBuilder builder = new StringBuilder(KEY_BUFFER_SIZE + 64);
+        builder.append(engine).append('\n');
+        builder.append(locale).append('\n');
+        builder.append(pitch).append('\n');
+        builder.append(rate).append('\n');
+
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digestNormalized(digest, builder, text);
+            return toHex(digest.digest());
+        } catch (final NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the cached audio for the specified key and marks it as recently
+     * used.
+     *
+     * @param key A key returned by {@link #getKey}.
+     * @return The cached WAV file, or {@code null} if there isn't one.
+     */
+    public synchronized File get(String key) {
+        ensureLoaded();
+
+        if (mEntries.get(key) == null) {
+            return null;
+        }
+
+        final File file = getEntryFile(key);
+
+        if (!file.exists()) {
+            remove(key);
+            return null;
+        }
+
+        // Persist the access order across processes.
+        file.setLastModified(System.currentTimeMillis());
+
+        return file;
+    }
+
+    /**
+     * Returns a temporary file that may be used to synthesize audio for the
+     * specified key before passing it to {@link #put}. Each thread gets its
+     * own file, so the same text may be synthesized on several threads.
+     *
+     * @param key A key returned by {@link #getKey}.
+     * @return A temporary file within the cache directory.
+     */
+    public synchronized File getTempFile(String key) {
+        // Loading deletes stale temporary files, so don't hand out new ones
+        // until that's done.
+        ensureLoaded();
+        mDirectory.mkdirs();
+
+        return new File(mDirectory, key + "-" + Thread.currentThread().getId() + TEMP_SUFFIX);
+    }
+
+    /**
+     * Moves a synthesized file into the cache, evicting older entries if the
+     * cache is over budget. The file should be on the same volume as the
+     * cache, such as one returned by {@link #getTempFile}.
+     *
+     * @param key A key returned by {@link #getKey}.
+     * @param file The synthesized audio.
+     * @return The cached file, or {@code null} if it couldn't be stored.
+     */
+    public synchronized File put(String key, File file) {
+        ensureLoaded();
+
+        final File entry = getEntryFile(key);
+
+        remove(key);
+
+        if (!file.renameTo(entry)) {
+            file.delete();
+            return null;
+        }
+
+        final long length = entry.length();
+
+        mEntries.put(key, length);
+        mSize += length;
+
+        trimToSize();
+
+        return mEntries.containsKey(key) ? entry : null;
+    }
+
+    /**
+     * Copies a file using channel transfers, replacing the destination.
+     *
+     * @param source The file to copy.
+     * @param destination The file to write.
+     * @throws IOException If the copy fails.
+     */
+    public static void copy(File source, File destination) throws IOException {
+        final FileInputStream input = new FileInputStream(source);
+
+        try {
+            final FileOutputStream output = new FileOutputStream(destination);
+
+            try {
+                final FileChannel in = input.getChannel();
+                final FileChannel out = output.getChannel();
+                final long length = in.size();
+                long position = 0;
+
+                while (position < length) {
+                    position += in.transferTo(position, (length - position), out);
+                }
+            } finally {
+                output.close();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Removes all entries from the cache.
+     */
+    public synchronized void clear() {
+        ensureLoaded();
+
+        for (String key : mEntries.keySet()) {
+            getEntryFile(key).delete();
+        }
+
+        mEntries.clear();
+        mSize = 0;
+    }
+
+    private File getEntryFile(String key) {
+        return new File(mDirectory, key + ENTRY_SUFFIX);
+    }
+
+    private void remove(String key) {
+        final Long length = mEntries.remove(key);
+
+        if (length != null) {
+            mSize -= length;
+        }
+    }
+
+    private void trimToSize() {
+        final Iterator<Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+
+        while ((mSize > mMaxSize) && iterator.hasNext()) {
+            final Entry<String, Long> eldest = iterator.next();
+
+            getEntryFile(eldest.getKey()).delete();
+            mSize -= eldest.getValue();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Reads existing entries from disk, ordered by last access.
+     */
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+
+        mLoaded = true;
+
+        final File[] files = mDirectory.listFiles();
+
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files, LAST_MODIFIED_COMPARATOR);
+
+        for (File file : files) {
+            final String name = file.getName();
+
+            if (name.endsWith(TEMP_SUFFIX)) {
+                // Left over from an interrupted synthesis.
+                file.delete();
+            } else if (name.endsWith(ENTRY_SUFFIX)) {
+                final String key = name.substring(0, name.length() - ENTRY_SUFFIX.length());
+                final long length = file.length();
+
+                mEntries.put(key, length);
+                mSize += length;
+            }
+        }
+
+        trimToSize();
+    }
+
+    /**
+     * Appends the text to the builder with runs of whitespace collapsed to a
+     * single space, and leading whitespace removed, then adds the UTF-8
+     * encoding of the builder to the digest. The builder is flushed into the
+     * digest whenever it fills up.
+     */
+    private static void digestNormalized(MessageDigest digest, StringBuilder builder,
+            CharSequence text) throws UnsupportedEncodingException {
+        final int length = text.length();
+        boolean pendingSpace = false;
+        boolean leading = true;
+
+        for (int i = 0; i < length; i++) {
+            final char c = text.charAt(i);
+
+            if (Character.isWhitespace(c)) {
+                pendingSpace = true;
+                continue;
+            }
+
+            if (pendingSpace && !leading) {
+                builder.append(' ');
+            }
+
+            pendingSpace = false;
+            leading = false;
+            builder.append(c);
+
+            // Never split a surrogate pair between chunks.
+            if ((builder.length() >= KEY_BUFFER_SIZE) && !Character.isHighSurrogate(c)) {
+                digest.update(builder.toString().getBytes("UTF-8"));
+                builder.setLength(0);
+            }
+        }
+
+        digest.update(builder.toString().getBytes("UTF-8"));
+    }
+
+    static String toHex(byte[] bytes) {
+        final StringBuilder builder = new StringBuilder(bytes.length * 2);
+
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+            builder.append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return builder.toString();
+    }
+
+    static final Comparator<File> LAST_MODIFIED_COMPARATOR = new Comparator<File>() {
+        @Override
+        public int compare(File lhs, File rhs) {
+            final long lhsModified = lhs.lastModified();
+            final long rhsModified = rhs.lastModified();
+
+            if (lhsModified < rhsModified) {
+                return -1;
+            } else if (lhsModified > rhsModified) {
+                return 1;
+            }
+
+            return 0;
+        }
+    };
+}
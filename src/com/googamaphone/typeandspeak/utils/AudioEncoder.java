@@ -0,0 +1,33 @@
+package com.googamaphone.typeandspeak.utils;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writes synthesized audio to an output file. Audio is appended one WAV file
+ * at a time, and the output is finished by {@link #close()}.
+ */
+public interface AudioEncoder {
+    /**
+     * Appends the sample data from a WAV file. The first file appended
+     * determines the format of the output.
+     *
+     * @param file The file to append.
+     * @param header The header of the file to append.
+     * @throws IOException If the file can't be read or its format differs
+     *             from previously appended files.
+     */
+    public void append(File file, WavHeader header) throws IOException;
+
+    /**
+     * @return Whether any sample data has been written.
+     */
+    public boolean hasData();
+
+    /**
+     * Finishes the output and closes the file.
+     *
+     * @throws IOException If the output can't be written.
+     */
+    public void close() throws IOException;
+}
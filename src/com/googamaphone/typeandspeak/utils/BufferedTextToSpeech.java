@@ -0,0 +1,921 @@
+package com.googamaphone.typeandspeak.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Locale;
+
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.SystemClock;
+import android.speech.tts.TextToSpeech;
+import android.speech.tts.TextToSpeech.Engine;
+import android.speech.tts.TextToSpeech.OnUtteranceCompletedListener;
+import android.util.Log;
+
+import com.googamaphone.typeandspeak.utils.GranularTextToSpeech.OnUtteranceStartedListener;
+import com.googamaphone.typeandspeak.utils.GranularTextToSpeech.TextToSpeechStub;
+
+/**
+ * A playback backend for {@link GranularTextToSpeech} that synthesizes
+ * upcoming utterances to files on a background thread and streams the audio
+ * through an {@link AudioTrack}. Synthesis runs ahead of playback, bounded by
+ * the size of a PCM ring buffer, so consecutive utterances play without gaps.
+ * <p>
+ * When an {@link AudioCache} is set, synthesized utterances are kept in it so
+ * that replaying them doesn't require the engine. Audio that hasn't finished
+ * playing when speech is stopped is kept either way, so pausing and resuming
+ * doesn't synthesize it again.
+ * <p>
+ * Synthesis uses a dedicated engine instance, so that replacing its utterance
+ * listener doesn't affect other users of the engine.
+ */
+public class BufferedTextToSpeech implements TextToSpeechStub {
+    private static final String TAG = BufferedTextToSpeech.class.getSimpleName();
+
+    /** Utterance identifier used when synthesizing to file. */
+    private static final String SYNTHESIS_ID = "BufferedTTS";
+
+    /** Size of the PCM ring buffer, roughly ten seconds of 22kHz mono. */
+    private static final int BUFFER_SIZE = 512 * 1024;
+
+    /** Size of individual reads and writes. */
+    private static final int CHUNK_SIZE = 4096;
+
+    /** Extra time to allow for the audio track to drain. */
+    private static final long DRAIN_SLACK_MILLIS = 200;
+
+    /** Longest time to wait for the engine to synthesize an utterance. */
+    private static final long SYNTHESIS_TIMEOUT_MILLIS = 30000;
+
+    /** Longest time to wait before rechecking state, in case a notification is lost. */
+    private static final long WAIT_TIMEOUT_MILLIS = 1000;
+
+    private static final int STREAM_TYPE = AudioManager.STREAM_MUSIC;
+
+    private final TextToSpeech mTts;
+
+    /** Directory for synthesized audio that isn't kept in the cache. */
+    private final File mTempDir;
+
+    /** Guards all of the fields below, as well as the ring buffer. */
+    private final Object mLock = new Object();
+
+    private final PcmRingBuffer mBuffer = new PcmRingBuffer(BUFFER_SIZE);
+
+    /** Utterances waiting to be synthesized. */
+    private final LinkedList<Request> mRequests = new LinkedList<Request>();
+
+    /** Utterances that are buffered or being buffered, in playback order. */
+    private final LinkedList<Mark> mMarks = new LinkedList<Mark>();
+
+    /** Audio files registered as earcons. */
+    private final HashMap<String, String> mEarcons = new HashMap<String, String>();
+
+    /** Audio that was discarded by {@link #stop()} before it was played, by text. */
+    private final HashMap<String, File> mRetained = new HashMap<String, File>();
+
+    private final HashMap<String, String> mSynthesisParams = new HashMap<String, String>();
+
+    private OnUtteranceCompletedListener mCompletedListener;
+    private OnUtteranceStartedListener mStartedListener;
+
+    private AudioCache mAudioCache;
+    private String mEngine;
+    private Locale mLocale;
+    private int mPitch;
+    private int mRate;
+
+    /** Incremented whenever queued audio is discarded. */
+    private int mGeneration = 0;
+
+    /** Whether the engine has finished the current synthesis request. */
+    private boolean mSynthesisDone = true;
+
+    /** Whether the engine has initialized, and whether it succeeded. */
+    private boolean mEngineInitialized = false;
+    private boolean mEngineReady = false;
+
+    private boolean mShutdown = false;
+
+    // Settings last applied to the engine. Only used on the synthesis thread.
+    private Locale mAppliedLocale;
+    private int mAppliedPitch = -1;
+    private int mAppliedRate = -1;
+    private int mTempSequence = 0;
+
+    private final Thread mSynthesisThread;
+    private final Thread mPlaybackThread;
+
+    /**
+     * Creates a backend with its own engine instance, which is released by
+     * {@link #shutdown()}. Must be called on the main thread.
+     *
+     * @param context The parent context.
+     */
+    public BufferedTextToSpeech(Context context) {
+        mTempDir = new File(context.getCacheDir(), "buffered");
+        mTempDir.mkdirs();
+
+        // Remove audio left behind by an earlier process.
+        final File[] stale = mTempDir.listFiles();
+
+        if (stale != null) {
+            for (File file : stale) {
+                file.delete();
+            }
+        }
+
+        mTts = new TextToSpeech(context, mInitListener);
+
+        mSynthesisParams.put(Engine.KEY_PARAM_UTTERANCE_ID, SYNTHESIS_ID);
+
+        mSynthesisThread = new Thread(mSynthesisRunnable, "BufferedTTS-synthesis");
+        mPlaybackThread = new Thread(mPlaybackRunnable, "BufferedTTS-playback");
+        mSynthesisThread.start();
+        mPlaybackThread.start();
+    }
+
+    /**
+     * Sets the cache to store synthesized utterances in, along with the
+     * settings that identify them. These should match the settings used by
+     * {@link GranularTextToSpeech#setAudioCache}, and are also applied to this
+     * object's engine.
+     *
+     * @param cache The cache to use, or {@code null} to discard audio after
+     *            playing it.
+     * @param engine The package name of the speech engine.
+     * @param locale The speech locale.
+     * @param pitch The speech pitch, as used in preferences.
+     * @param rate The speech rate, as used in preferences.
+     */
+    public void setAudioCache(AudioCache cache, String engine, Locale locale, int pitch,
+            int rate) {
+        final ArrayList<File> discarded;
+
+        synchronized (mLock) {
+            final boolean changed = !equals(mEngine, engine) || !equals(mLocale, locale)
+                    || (mPitch != pitch) || (mRate != rate);
+
+            mAudioCache = cache;
+            mEngine = engine;
+            mLocale = locale;
+            mPitch = pitch;
+            mRate = rate;
+
+            if (!changed) {
+                return;
+            }
+
+            // Audio kept from before no longer matches the settings.
+            discarded = new ArrayList<File>(mRetained.values());
+            mRetained.clear();
+        }
+
+        deleteTempFiles(discarded);
+    }
+
+    @Override
+    public void setOnUtteranceCompletedListener(OnUtteranceCompletedListener listener) {
+        synchronized (mLock) {
+            mCompletedListener = listener;
+        }
+    }
+
+    @Override
+    public void setOnUtteranceStartedListener(OnUtteranceStartedListener listener) {
+        synchronized (mLock) {
+            mStartedListener = listener;
+        }
+    }
+
+    @Override
+    public int speak(String text, int queueMode, HashMap<String, String> params) {
+        return enqueue(new Request(getUtteranceId(params), text, null), queueMode);
+    }
+
+    @Override
+    public int addEarcon(String earcon, String filename) {
+        synchronized (mLock) {
+            mEarcons.put(earcon, filename);
+        }
+
+        return TextToSpeech.SUCCESS;
+    }
+
+    @Override
+    public int playEarcon(String earcon, int queueMode, HashMap<String, String> params) {
+        final String filename;
+
+        synchronized (mLock) {
+            filename = mEarcons.get(earcon);
+        }
+
+        if (filename == null) {
+            return TextToSpeech.ERROR;
+        }
+
+        return enqueue(new Request(getUtteranceId(params), null, new File(filename)), queueMode);
+    }
+
+    /**
+     * Discards all queued and buffered audio and stops playback immediately.
+     * Audio that was synthesized but not played is kept until the next stop,
+     * so that speaking the same text again, as when resuming after a pause,
+     * doesn't synthesize it again.
+     */
+    @Override
+    public void stop() {
+        final boolean synthesizing;
+        final ArrayList<File> discarded;
+
+        synchronized (mLock) {
+            synthesizing = !mSynthesisDone;
+
+            discarded = new ArrayList<File>(mRetained.values());
+            mRetained.clear();
+
+            for (Mark mark : mMarks) {
+                retainLocked(mark.text, mark.file);
+            }
+
+            mGeneration++;
+            mRequests.clear();
+            mMarks.clear();
+            mBuffer.clear();
+            mLock.notifyAll();
+        }
+
+        if (synthesizing) {
+            mTts.stop();
+        }
+
+        deleteTempFiles(discarded);
+    }
+
+    /**
+     * Stops playback and releases the engine and the background threads. This
+     * object may not be used afterward.
+     */
+    public void shutdown() {
+        stop();
+
+        final ArrayList<File> discarded;
+
+        synchronized (mLock) {
+            mShutdown = true;
+            discarded = new ArrayList<File>(mRetained.values());
+            mRetained.clear();
+            mLock.notifyAll();
+        }
+
+        mTts.shutdown();
+
+        deleteTempFiles(discarded);
+    }
+
+    private int enqueue(Request request, int queueMode) {
+        if (queueMode == TextToSpeech.QUEUE_FLUSH) {
+            stop();
+        }
+
+        synchronized (mLock) {
+            if (mShutdown) {
+                return TextToSpeech.ERROR;
+            }
+
+            mRequests.addLast(request);
+            mLock.notifyAll();
+        }
+
+        return TextToSpeech.SUCCESS;
+    }
+
+    private static String getUtteranceId(HashMap<String, String> params) {
+        return (params == null) ? null : params.get(Engine.KEY_PARAM_UTTERANCE_ID);
+    }
+
+    /**
+     * Keeps audio for a text so that it can be played again without
+     * synthesizing it. Must be called while holding the lock.
+     */
+    private void retainLocked(String text, File file) {
+        if ((text == null) || (file == null)) {
+            // Earcons are already stored elsewhere.
+            return;
+        }
+
+        final File previous = mRetained.put(text, file);
+
+        if ((previous != null) && !previous.equals(file)) {
+            deleteTempFile(previous);
+        }
+    }
+
+    private File createTempFile() {
+        return new File(mTempDir, (mTempSequence++) + ".wav");
+    }
+
+    /**
+     * Deletes a file if it's temporary audio, rather than a cached utterance
+     * or an earcon.
+     */
+    private void deleteTempFile(File file) {
+        if ((file != null) && mTempDir.equals(file.getParentFile())) {
+            file.delete();
+        }
+    }
+
+    private void deleteTempFiles(ArrayList<File> files) {
+        for (File file : files) {
+            deleteTempFile(file);
+        }
+    }
+
+    /**
+     * Applies the current settings to the engine if they've changed. Runs on
+     * the synthesis thread.
+     */
+    private void applySettings(Locale locale, int pitch, int rate) {
+        if ((locale != null) && !locale.equals(mAppliedLocale)) {
+            mTts.setLanguage(locale);
+            mAppliedLocale = locale;
+        }
+
+        if (pitch != mAppliedPitch) {
+            mTts.setPitch(pitch / 50.0f);
+            mAppliedPitch = pitch;
+        }
+
+        if (rate != mAppliedRate) {
+            mTts.setSpeechRate(rate / 50.0f);
+            mAppliedRate = rate;
+        }
+    }
+
+    /**
+     * Returns the audio for a request, synthesizing it if necessary. Runs on
+     * the synthesis thread.
+     *
+     * @return The audio file, or {@code null} if synthesis failed or was
+     *         interrupted.
+     */
+    @SuppressWarnings("deprecation")
+    private File synthesize(Request request, int generation) {
+        if (request.file != null) {
+            return request.file;
+        }
+
+        final File retained;
+        final boolean ready;
+        final AudioCache cache;
+        final String key;
+        final Locale locale;
+        final int pitch;
+        final int rate;
+
+        synchronized (mLock) {
+            retained = mRetained.remove(request.text);
+            ready = mEngineReady;
+            cache = mAudioCache;
+            key = (cache == null) ? null
+                    : AudioCache.getKey(request.text, mLocale, mPitch, mRate, mEngine);
+            locale = mLocale;
+            pitch = mPitch;
+            rate = mRate;
+        }
+
+        // Cached audio may have been evicted since it was kept.
+        if ((retained != null) && retained.exists()) {
+            return retained;
+        }
+
+        if (!ready) {
+            return null;
+        }
+
+        if (cache != null) {
+            final File cached = cache.get(key);
+
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        final File output = (cache != null) ? cache.getTempFile(key) : createTempFile();
+
+        applySettings(locale, pitch, rate);
+
+        synchronized (mLock) {
+            mSynthesisDone = false;
+        }
+
+        final int result = mTts.synthesizeToFile(request.text, mSynthesisParams,
+                output.getAbsolutePath());
+        final long deadline = (SystemClock.elapsedRealtime() + SYNTHESIS_TIMEOUT_MILLIS);
+
+        final boolean interrupted;
+        boolean timedOut = false;
+
+        synchronized (mLock) {
+            if (result != TextToSpeech.SUCCESS) {
+                mSynthesisDone = true;
+            }
+
+            while (!mSynthesisDone && !mShutdown && (generation == mGeneration)) {
+                if (SystemClock.elapsedRealtime() > deadline) {
+                    timedOut = true;
+                    break;
+                }
+
+                waitLocked();
+            }
+
+            mSynthesisDone = true;
+            interrupted = (mShutdown || (generation != mGeneration));
+        }
+
+        if (timedOut) {
+            Log.e(TAG, "Timed out waiting for synthesis");
+            mTts.stop();
+        }
+
+        if (interrupted || timedOut || (result != TextToSpeech.SUCCESS) || !output.exists()) {
+            // Don't keep partial audio.
+            output.delete();
+            return null;
+        }
+
+        if (cache != null) {
+            return cache.put(key, output);
+        }
+
+        return output;
+    }
+
+    /**
+     * Copies the sample data from an audio file into the ring buffer, blocking
+     * while the buffer is full. Runs on the synthesis thread.
+     */
+    private void bufferAudio(Request request, File file, int generation) {
+        final Mark mark;
+
+        WavHeader header = null;
+
+        if (file != null) {
+            try {
+                header = WavHeader.read(file);
+            } catch (final IOException e) {
+                Log.e(TAG, "Unable to read synthesized audio", e);
+            }
+        }
+
+        synchronized (mLock) {
+            if (generation != mGeneration) {
+                // Speech was stopped while this was being synthesized.
+                retainLocked(request.text, file);
+                return;
+            }
+
+            mark = new Mark(request.id, request.text, file, header);
+            mMarks.addLast(mark);
+            mLock.notifyAll();
+        }
+
+        if (header != null) {
+            try {
+                copyToBuffer(file, header, generation);
+            } catch (final IOException e) {
+                Log.e(TAG, "Unable to read synthesized audio", e);
+            }
+        }
+
+        synchronized (mLock) {
+            if (generation == mGeneration) {
+                mark.end = mBuffer.getWritePosition();
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    private void copyToBuffer(File file, WavHeader header, int generation) throws IOException {
+        final FileInputStream input = new FileInputStream(file);
+        final byte[] chunk = new byte[CHUNK_SIZE];
+
+        // Keep whole frames so that playback never splits a sample.
+        final int frameSize = Math.max(1, header.getFrameSize());
+        final int chunkLength = (CHUNK_SIZE - (CHUNK_SIZE % frameSize));
+
+        try {
+            input.skip(header.dataOffset);
+
+            long remaining = header.dataLength;
+
+            while (remaining > 0) {
+                final int read = input.read(chunk, 0, (int) Math.min(chunkLength, remaining));
+
+                if (read < 0) {
+                    break;
+                }
+
+                remaining -= read;
+
+                int offset = 0;
+
+                while (offset < read) {
+                    synchronized (mLock) {
+                        while ((mBuffer.getRemaining() == 0) && !mShutdown
+                                && (generation == mGeneration)) {
+                            waitLocked();
+                        }
+
+                        if (mShutdown || (generation != mGeneration)) {
+                            return;
+                        }
+
+                        offset += mBuffer.write(chunk, offset, (read - offset));
+                        mLock.notifyAll();
+                    }
+                }
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Waits to be notified of a state change, or for a short time in case a
+     * notification is lost. Must be called while holding the lock. Callers
+     * recheck their condition after every call.
+     */
+    private void waitLocked() {
+        try {
+            mLock.wait(WAIT_TIMEOUT_MILLIS);
+        } catch (final InterruptedException e) {
+            // The worker threads aren't expected to be interrupted, so treat
+            // it as a request to shut down.
+            Thread.currentThread().interrupt();
+            mShutdown = true;
+            mLock.notifyAll();
+        }
+    }
+
+    private static boolean equals(Object a, Object b) {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
+
+    private void dispatchStarted(String utteranceId) {
+        final OnUtteranceStartedListener listener;
+
+        synchronized (mLock) {
+            listener = mStartedListener;
+        }
+
+        if ((listener != null) && (utteranceId != null)) {
+            listener.onUtteranceStarted(utteranceId);
+        }
+    }
+
+    private void dispatchCompleted(String utteranceId) {
+        final OnUtteranceCompletedListener listener;
+
+        synchronized (mLock) {
+            listener = mCompletedListener;
+        }
+
+        if ((listener != null) && (utteranceId != null)) {
+            listener.onUtteranceCompleted(utteranceId);
+        }
+    }
+
+    private final TextToSpeech.OnInitListener mInitListener = new TextToSpeech.OnInitListener() {
+        @Override
+        public void onInit(int status) {
+            synchronized (mLock) {
+                mEngineInitialized = true;
+                mEngineReady = (status == TextToSpeech.SUCCESS);
+                mLock.notifyAll();
+            }
+        }
+    };
+
+    private final OnUtteranceCompletedListener mSynthesisListener = new OnUtteranceCompletedListener() {
+        @Override
+        public void onUtteranceCompleted(String utteranceId) {
+            if (!SYNTHESIS_ID.equals(utteranceId)) {
+                return;
+            }
+
+            synchronized (mLock) {
+                mSynthesisDone = true;
+                mLock.notifyAll();
+            }
+        }
+    };
+
+    /**
+     * Takes requests off the queue and buffers their audio, staying ahead of
+     * playback by as much as the ring buffer allows.
+     */
+    private final Runnable mSynthesisRunnable = new Runnable() {
+        @Override
+        @SuppressWarnings("deprecation")
+        public void run() {
+            final boolean ready;
+
+            synchronized (mLock) {
+                while (!mEngineInitialized && !mShutdown) {
+                    waitLocked();
+                }
+
+                ready = mEngineReady;
+            }
+
+            if (ready) {
+                // The engine is only used here, so the listener is never replaced.
+                mTts.setOnUtteranceCompletedListener(mSynthesisListener);
+            } else {
+                Log.e(TAG, "Unable to initialize the engine");
+            }
+
+            while (true) {
+                final Request request;
+                final int generation;
+
+                synchronized (mLock) {
+                    while (mRequests.isEmpty() && !mShutdown) {
+                        waitLocked();
+                    }
+
+                    if (mShutdown) {
+                        return;
+                    }
+
+                    request = mRequests.removeFirst();
+                    generation = mGeneration;
+                }
+
+                final File file = synthesize(request, generation);
+
+                bufferAudio(request, file, generation);
+            }
+        }
+    };
+
+    /**
+     * Streams buffered audio to the audio track and reports the start and end
+     * of each utterance as playback reaches it.
+     */
+    private final Runnable mPlaybackRunnable = new Runnable() {
+        private static final int EVENT_FLUSH = 0;
+        private static final int EVENT_STARTED = 1;
+        private static final int EVENT_DATA = 2;
+        private static final int EVENT_COMPLETED = 3;
+
+        private final byte[] mChunk = new byte[CHUNK_SIZE];
+
+        private AudioTrack mTrack;
+        private WavHeader mTrackFormat;
+
+        /** Frames written to the track since it was last flushed. */
+        private long mFramesWritten;
+
+        /** The generation that was last played. */
+        private int mPlayedGeneration;
+
+        @Override
+        public void run() {
+            while (true) {
+                final int event;
+                final int generation;
+
+                Mark mark = null;
+                int length = 0;
+
+                synchronized (mLock) {
+                    while (true) {
+                        if (mShutdown) {
+                            releaseTrack();
+                            return;
+                        }
+
+                        if (mPlayedGeneration != mGeneration) {
+                            mPlayedGeneration = mGeneration;
+                            event = EVENT_FLUSH;
+                            break;
+                        }
+
+                        mark = mMarks.peek();
+
+                        if (mark != null) {
+                            if (!mark.started) {
+                                mark.started = true;
+                                event = EVENT_STARTED;
+                                break;
+                            }
+
+                            final long position = mBuffer.getReadPosition();
+
+                            if ((mark.end >= 0) && (position >= mark.end)) {
+                                mMarks.removeFirst();
+                                event = EVENT_COMPLETED;
+                                break;
+                            }
+
+                            // Don't read past the end of this utterance.
+                            final long limit = (mark.end >= 0) ? (mark.end - position)
+                                    : mBuffer.getAvailable();
+                            length = (int) Math.min(Math.min(limit, mBuffer.getAvailable()),
+                                    mChunk.length);
+
+                            if (length > 0) {
+                                mBuffer.read(mChunk, 0, length);
+                                mLock.notifyAll();
+                                event = EVENT_DATA;
+                                break;
+                            }
+                        }
+
+                        waitLocked();
+                    }
+
+                    generation = mGeneration;
+                }
+
+                switch (event) {
+                    case EVENT_FLUSH:
+                        flushTrack();
+                        break;
+                    case EVENT_STARTED:
+                        if (mark.format != null) {
+                            ensureTrack(mark.format);
+                        }
+                        dispatchStarted(mark.id);
+                        break;
+                    case EVENT_DATA:
+                        writeTrack(length);
+                        break;
+                    case EVENT_COMPLETED:
+                        if (drainTrack(generation)) {
+                            dispatchCompleted(mark.id);
+                        }
+                        deleteTempFile(mark.file);
+                        break;
+                }
+            }
+        }
+
+        @SuppressWarnings("deprecation")
+        private void ensureTrack(WavHeader format) {
+            if ((mTrack != null) && (mTrackFormat.sampleRate == format.sampleRate)
+                    && (mTrackFormat.channels == format.channels)
+                    && (mTrackFormat.bitsPerSample == format.bitsPerSample)) {
+                return;
+            }
+
+            releaseTrack();
+
+            final int channelConfig = (format.channels == 2)
+                    ? AudioFormat.CHANNEL_CONFIGURATION_STEREO
+                    : AudioFormat.CHANNEL_CONFIGURATION_MONO;
+            final int encoding = (format.bitsPerSample == 8) ? AudioFormat.ENCODING_PCM_8BIT
+                    : AudioFormat.ENCODING_PCM_16BIT;
+            final int minBufferSize = AudioTrack.getMinBufferSize(format.sampleRate,
+                    channelConfig, encoding);
+
+            // Keep the track's own buffer small so that stopping is quick.
+            final int bufferSize = Math.max(minBufferSize,
+                    (format.sampleRate * format.getFrameSize()) / 10);
+
+            try {
+                mTrack = new AudioTrack(STREAM_TYPE, format.sampleRate, channelConfig, encoding,
+                        bufferSize, AudioTrack.MODE_STREAM);
+                mTrack.play();
+                mTrackFormat = format;
+                mFramesWritten = 0;
+            } catch (final IllegalArgumentException e) {
+                Log.e(TAG, "Unsupported audio format", e);
+                mTrack = null;
+            }
+        }
+
+        private void writeTrack(int length) {
+            if (mTrack == null) {
+                return;
+            }
+
+            final int written = mTrack.write(mChunk, 0, length);
+
+            if (written > 0) {
+                mFramesWritten += (written / mTrackFormat.getFrameSize());
+            }
+        }
+
+        private void flushTrack() {
+            if (mTrack == null) {
+                return;
+            }
+
+            mTrack.pause();
+            mTrack.flush();
+            mTrack.play();
+            mFramesWritten = 0;
+        }
+
+        /**
+         * Waits for the audio track to finish playing the audio written to
+         * it, so that completion is reported when the audio is heard.
+         *
+         * @return {@code false} if playback was interrupted.
+         */
+        private boolean drainTrack(int generation) {
+            if (mTrack == null) {
+                return true;
+            }
+
+            final long remainingFrames = (mFramesWritten - mTrack.getPlaybackHeadPosition());
+            final long timeout = ((1000 * remainingFrames) / mTrackFormat.sampleRate)
+                    + DRAIN_SLACK_MILLIS;
+            final long deadline = (System.currentTimeMillis() + timeout);
+
+            while (mTrack.getPlaybackHeadPosition() < mFramesWritten) {
+                synchronized (mLock) {
+                    if (mMarks.size() > 0) {
+                        // More audio is ready, so keep the track fed.
+                        return (generation == mGeneration);
+                    }
+
+                    if ((generation != mGeneration) || mShutdown) {
+                        return false;
+                    }
+                }
+
+                if (System.currentTimeMillis() > deadline) {
+                    break;
+                }
+
+                try {
+                    Thread.sleep(10);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private void releaseTrack() {
+            if (mTrack == null) {
+                return;
+            }
+
+            mTrack.release();
+            mTrack = null;
+            mTrackFormat = null;
+        }
+    };
+
+    /**
+     * An utterance waiting to be synthesized.
+     */
+    private static class Request {
+        public final String id;
+        public final String text;
+        public final File file;
+
+        public Request(String id, String text, File file) {
+            this.id = id;
+            this.text = text;
+            this.file = file;
+        }
+    }
+
+    /**
+     * The location of an utterance within the ring buffer.
+     */
+    private static class Mark {
+        public final String id;
+        public final String text;
+        public final File file;
+        public final WavHeader format;
+
+        /** The end of the utterance, or {@code -1} if still buffering. */
+        public long end = -1;
+
+        /** Whether the start of this utterance has been reported. */
+        public boolean started = false;
+
+        public Mark(String id, String text, File file, WavHeader format) {
+            this.id = id;
+            this.text = text;
+            this.file = file;
+            this.format = format;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.googamaphone.typeandspeak.utils;
+
+/**
+ * Utilities for splitting text into chunks that are short enough to send to
+ * a speech engine in a single call.
+ */
+public class ChunkUtils {
+    /**
+     * The maximum number of characters to send to the engine at once. This
+     * matches the limit reported by newer engines, which reject longer input.
+     */
+    public static final int DEFAULT_MAX_LENGTH = 4000;
+
+    /**
+     * The maximum length of the first chunk spoken after playback starts.
+     * Short enough that the engine can start producing audio right away.
+     */
+    public static final int FIRST_CHUNK_LENGTH = 40;
+
+    /**
+     * Returns the end of a chunk that starts at the specified offset and is no
+     * longer than the specified length. The chunk ends after clause
+     * punctuation if possible, otherwise at a word boundary, and only breaks
+     * within a word if it has no other choice.
+     *
+     * @param text The text to split.
+     * @param start The offset at which the chunk starts.
+     * @param end The offset at which the enclosing unit ends.
+     * @param maxLength The maximum length of the chunk.
+     * @return The offset at which the chunk ends, exclusive.
+     */
+    public static int findChunkEnd(CharSequence text, int start, int end, int maxLength) {
+        if ((end - start) <= maxLength) {
+            return end;
+        }
+
+        final int limit = (start + maxLength);
+
+        // Prefer clauses, but don't settle for a tiny chunk.
+        for (int i = limit; i > (start + (maxLength / 3)); i--) {
+            final char c = text.charAt(i - 1);
+
+            if (isIdeographicClauseBreak(c)
+                    || (isClauseBreak(c) && isWhitespace(text.charAt(i)))) {
+                return i;
+            }
+        }
+
+        for (int i = limit; i > start; i--) {
+            if (isWhitespace(text.charAt(i)) && !isWhitespace(text.charAt(i - 1))) {
+                return i;
+            }
+        }
+
+        // Don't split a surrogate pair.
+        if (Character.isHighSurrogate(text.charAt(limit - 1))) {
+            return (limit - 1);
+        }
+
+        return limit;
+    }
+
+    /**
+     * Returns whether the specified range contains only whitespace, using the
+     * same rule as {@link android.text.TextUtils#getTrimmedLength}.
+     */
+    public static boolean isWhitespace(CharSequence text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!isWhitespace(text.charAt(i))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return (c <= ' ');
+    }
+
+    private static boolean isClauseBreak(char c) {
+        switch (c) {
+            case ',':
+            case ';':
+            case ':':
+            case ')':
+            case '\u2013':
+            case '\u2014':
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns whether the character is clause punctuation from a script that
+     * doesn't put whitespace after punctuation.
+     */
+    private static boolean isIdeographicClauseBreak(char c) {
+        switch (c) {
+            case '\u3001':
+            case '\uff0c':
+            case '\uff1a':
+            case '\uff1b':
+                return true;
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,376 @@
+package com.googamaphone.typeandspeak.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Persists the text being edited as a snapshot file and a journal of the
+ * edits made since the snapshot. Each edit is appended to the journal on a
+ * background thread, and the journal is folded into a new snapshot once it
+ * grows larger than the text, so saving never rewrites the whole text on the
+ * main thread.
+ * <p>
+ * The snapshot and the journal both start with a generation number, and the
+ * journal is only replayed onto the snapshot with the same generation, so an
+ * interrupted compaction never applies edits twice. A truncated record at the
+ * end of the journal is ignored.
+ */
+public class DraftStore {
+    private static final String SNAPSHOT_NAME = "draft.txt";
+    private static final String JOURNAL_NAME = "draft.journal";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** Minimum journal size before it's compacted, in bytes. */
+    private static final int MIN_COMPACT_SIZE = 64 * 1024;
+
+    private final File mSnapshotFile;
+    private final File mJournalFile;
+
+    /**
+     * Runs all file operations in order. This is shared, so that a store
+     * opened by a recreated activity only reads the draft after the previous
+     * store has finished writing it.
+     */
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    // The following are only accessed on the executor thread.
+
+    /** The saved text with all journaled edits applied. */
+    private final StringBuilder mText = new StringBuilder();
+
+    private DataOutputStream mJournal;
+    private long mJournalSize;
+    private int mGeneration;
+
+    /**
+     * @param directory The directory to store the draft in. It will be
+     *            created if necessary.
+     */
+    public DraftStore(File directory) {
+        mSnapshotFile = new File(directory, SNAPSHOT_NAME);
+        mJournalFile = new File(directory, JOURNAL_NAME);
+    }
+
+    /**
+     * Reads the saved text on a background thread.
+     *
+     * @param listener The listener to send the text to. It's called on the
+     *            background thread.
+     */
+    public void load(final LoadListener listener) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadInternal();
+                listener.onDraftLoaded(mText.toString());
+            }
+        });
+    }
+
+    /**
+     * Records an edit to the text. The parameters match those of
+     * {@link android.text.TextWatcher#onTextChanged}, except that only the
+     * inserted text is passed.
+     *
+     * @param start The offset at which the edit starts.
+     * @param before The number of characters that were replaced.
+     * @param inserted The characters that replaced them.
+     */
+    public void onTextChanged(final int start, final int before, CharSequence inserted) {
+        final String text = inserted.toString();
+
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                appendEdit(start, before, text);
+            }
+        });
+    }
+
+    /**
+     * Replaces the saved text.
+     *
+     * @param text The new text.
+     */
+    public void replace(CharSequence text) {
+        final String copy = text.toString();
+
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mText.setLength(0);
+                mText.append(copy);
+                compact();
+            }
+        });
+    }
+
+    /**
+     * Compacts the journal and closes it once pending edits have been
+     * written. The store can't be used afterward.
+     */
+    public void close() {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mJournalSize > 0) {
+                    compact();
+                }
+
+                closeJournal();
+            }
+        });
+    }
+
+    private void loadInternal() {
+        mText.setLength(0);
+        mGeneration = 0;
+
+        if (mSnapshotFile.exists()) {
+            try {
+                readSnapshot();
+            } catch (final IOException e) {
+                e.printStackTrace();
+                mText.setLength(0);
+            }
+        }
+
+        try {
+            replayJournal();
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void readSnapshot() throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(mSnapshotFile)));
+
+        try {
+            mGeneration = in.readInt();
+
+            final Reader reader = new InputStreamReader(in, "UTF-8");
+            final char[] buffer = new char[8192];
+            int count;
+
+            while ((count = reader.read(buffer)) >= 0) {
+                mText.append(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Applies journaled edits for the current snapshot, then opens the
+     * journal for appending.
+     */
+    private void replayJournal() throws IOException {
+        boolean matched = false;
+
+        mJournalSize = 0;
+
+        if (mJournalFile.exists()) {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(mJournalFile)));
+
+            try {
+                if (in.readInt() == mGeneration) {
+                    matched = true;
+                    mJournalSize = readEdits(in, mJournalFile.length() - 4);
+                }
+            } catch (final EOFException e) {
+                // The journal is empty.
+            } finally {
+                in.close();
+            }
+        }
+
+        if (mJournalSize > 0) {
+            // Drop any truncated record by starting over from the result.
+            compact();
+        } else {
+            if (!matched) {
+                mJournalFile.delete();
+            }
+
+            openJournal();
+        }
+    }
+
+    /**
+     * @param in The journal, positioned after its header.
+     * @param available The number of bytes following the header.
+     * @return The number of bytes of edits that were applied.
+     */
+    private long readEdits(DataInputStream in, long available) throws IOException {
+        long size = 0;
+
+        try {
+            while (true) {
+                final int start = in.readInt();
+                final int before = in.readInt();
+                final int length = in.readInt();
+
+                // Stop at a record that was only partly written.
+                if ((start < 0) || (before < 0) || (length < 0)
+                        || ((size + getRecordSize(length)) > available)) {
+                    break;
+                }
+
+                final char[] chars = new char[length];
+
+                for (int i = 0; i < length; i++) {
+                    chars[i] = in.readChar();
+                }
+
+                applyEdit(start, before, new String(chars));
+                size += getRecordSize(length);
+            }
+        } catch (final EOFException e) {
+            // Reached the end of the journal, or a truncated record.
+        }
+
+        return size;
+    }
+
+    private void appendEdit(int start, int before, String text) {
+        applyEdit(start, before, text);
+
+        if (mJournal == null) {
+            return;
+        }
+
+        try {
+            mJournal.writeInt(start);
+            mJournal.writeInt(before);
+            mJournal.writeInt(text.length());
+            mJournal.writeChars(text);
+            mJournal.flush();
+            mJournalSize += getRecordSize(text.length());
+        } catch (final IOException e) {
+            e.printStackTrace();
+            closeJournal();
+        }
+
+        if (mJournalSize > Math.max(MIN_COMPACT_SIZE, mText.length())) {
+            compact();
+        }
+    }
+
+    private void applyEdit(int start, int before, String text) {
+        final int length = mText.length();
+        final int editStart = Math.min(start, length);
+        final int editEnd = Math.min(start + before, length);
+
+        mText.replace(editStart, editEnd, text);
+    }
+
+    /**
+     * Writes the text to a new snapshot and starts an empty journal.
+     */
+    private void compact() {
+        closeJournal();
+
+        final File temp = new File(mSnapshotFile.getPath() + TEMP_SUFFIX);
+        final int generation = mGeneration + 1;
+
+        mSnapshotFile.getParentFile().mkdirs();
+
+        try {
+            writeSnapshot(temp, generation);
+        } catch (final IOException e) {
+            e.printStackTrace();
+            temp.delete();
+            openJournal();
+            return;
+        }
+
+        // Keep appending to the old journal if the snapshot can't be replaced.
+        if (!temp.renameTo(mSnapshotFile)) {
+            temp.delete();
+            openJournal();
+            return;
+        }
+
+        // The old journal no longer matches the snapshot.
+        mGeneration = generation;
+        mJournalSize = 0;
+        mJournalFile.delete();
+        openJournal();
+    }
+
+    private void writeSnapshot(File file, int generation) throws IOException {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)));
+
+        try {
+            out.writeInt(generation);
+
+            final Writer writer = new OutputStreamWriter(out, "UTF-8");
+            writer.append(mText);
+            writer.flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void openJournal() {
+        final boolean exists = mJournalFile.exists();
+
+        mJournalFile.getParentFile().mkdirs();
+
+        try {
+            mJournal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+                    mJournalFile, exists)));
+
+            if (!exists) {
+                mJournal.writeInt(mGeneration);
+                mJournal.flush();
+            }
+        } catch (final IOException e) {
+            e.printStackTrace();
+            closeJournal();
+        }
+    }
+
+    private void closeJournal() {
+        if (mJournal == null) {
+            return;
+        }
+
+        try {
+            mJournal.close();
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+
+        mJournal = null;
+    }
+
+    private static long getRecordSize(int length) {
+        return 12 + (length * 2);
+    }
+
+    public interface LoadListener {
+        /**
+         * Called once the saved text has been read.
+         *
+         * @param text The saved text, or an empty string if there is none.
+         */
+        public void onDraftLoaded(String text);
+    }
+}
@@ -0,0 +1,301 @@
+package com.googamaphone.typeandspeak.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A disk-backed cache of text extracted from web pages with
+ * least-recently-used eviction. Entries are keyed on the page URL and keep
+ * the validators the server sent with the page, so that it can be revalidated
+ * with a conditional request instead of being downloaded and parsed again.
+ */
+public class ExtractionCache {
+    /** Default size budget for cached text, in bytes. */
+    public static final long DEFAULT_MAX_SIZE = 4 * 1024 * 1024;
+
+    private static final String ENTRY_SUFFIX = ".txt";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mDirectory;
+    private final long mMaxSize;
+
+    /** Entry sizes by key, from least to most recently used. */
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<String, Long>(16,
+            0.75f, true);
+
+    private long mSize = 0;
+    private boolean mLoaded = false;
+
+    /**
+     * @param directory The directory to store entries in. It will be created
+     *            if necessary.
+     * @param maxSize The maximum total size of cached entries, in bytes.
+     */
+    public ExtractionCache(File directory, long maxSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Returns the cached text for a page and marks it as recently used.
+     *
+     * @param url The URL of the page.
+     * @return The cached entry, or {@code null} if there isn't one.
+     */
+    public synchronized Entry get(String url) {
+        ensureLoaded();
+
+        final String key = getKey(url);
+
+        if (mEntries.get(key) == null) {
+            return null;
+        }
+
+        final File file = getEntryFile(key);
+        final Entry entry;
+
+        try {
+            entry = readEntry(file);
+        } catch (final IOException e) {
+            e.printStackTrace();
+            file.delete();
+            remove(key);
+            return null;
+        }
+
+        if (!url.equals(entry.url)) {
+            return null;
+        }
+
+        // Persist the access order across processes.
+        file.setLastModified(System.currentTimeMillis());
+
+        return entry;
+    }
+
+    /**
+     * Stores the text for a page, replacing any previous entry and evicting
+     * older entries if the cache is over budget.
+     *
+     * @param entry The entry to store.
+     */
+    public synchronized void put(Entry entry) {
+        ensureLoaded();
+        mDirectory.mkdirs();
+
+        final String key = getKey(entry.url);
+        final File temp = new File(mDirectory, key + TEMP_SUFFIX);
+        final File file = getEntryFile(key);
+
+        remove(key);
+
+        try {
+            writeEntry(temp, entry);
+        } catch (final IOException e) {
+            e.printStackTrace();
+            temp.delete();
+            return;
+        }
+
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            return;
+        }
+
+        final long length = file.length();
+
+        mEntries.put(key, length);
+        mSize += length;
+
+        trimToSize();
+    }
+
+    private static String getKey(String url) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return AudioCache.toHex(digest.digest(url.getBytes("UTF-8")));
+        } catch (final NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private File getEntryFile(String key) {
+        return new File(mDirectory, key + ENTRY_SUFFIX);
+    }
+
+    private void remove(String key) {
+        final Long length = mEntries.remove(key);
+
+        if (length != null) {
+            mSize -= length;
+        }
+    }
+
+    private void trimToSize() {
+        final Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+
+        while ((mSize > mMaxSize) && iterator.hasNext()) {
+            final Map.Entry<String, Long> eldest = iterator.next();
+
+            getEntryFile(eldest.getKey()).delete();
+            mSize -= eldest.getValue();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Reads existing entries from disk, ordered by last access.
+     */
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+
+        mLoaded = true;
+
+        final File[] files = mDirectory.listFiles();
+
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files, AudioCache.LAST_MODIFIED_COMPARATOR);
+
+        for (File file : files) {
+            final String name = file.getName();
+
+            if (name.endsWith(TEMP_SUFFIX)) {
+                // Left over from an interrupted write.
+                file.delete();
+            } else if (name.endsWith(ENTRY_SUFFIX)) {
+                final String key = name.substring(0, name.length() - ENTRY_SUFFIX.length());
+                final long length = file.length();
+
+                mEntries.put(key, length);
+                mSize += length;
+            }
+        }
+
+        trimToSize();
+    }
+
+    /**
+     * Writes an entry as lines of text: the URL, the validators, the
+     * expiration time, and then one line per paragraph.
+     */
+    private static void writeEntry(File file, Entry entry) throws IOException {
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+
+        try {
+            writeLine(writer, entry.url);
+            writeLine(writer, (entry.etag == null) ? "" : entry.etag);
+            writeLine(writer, (entry.lastModified == null) ? "" : entry.lastModified);
+            writeLine(writer, Long.toString(entry.expires));
+
+            for (String paragraph : entry.paragraphs) {
+                writeLine(writer, paragraph);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void writeLine(Writer writer, String line) throws IOException {
+        writer.write(line.replace('\n', ' '));
+        writer.write('\n');
+    }
+
+    private static Entry readEntry(File file) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+
+        try {
+            final String url = reader.readLine();
+            final String etag = reader.readLine();
+            final String lastModified = reader.readLine();
+            final String expires = reader.readLine();
+
+            if (expires == null) {
+                throw new IOException("Truncated entry " + file);
+            }
+
+            final ArrayList<String> paragraphs = new ArrayList<String>();
+            String paragraph;
+
+            while ((paragraph = reader.readLine()) != null) {
+                paragraphs.add(paragraph);
+            }
+
+            try {
+                return new Entry(url, etag, lastModified, Long.parseLong(expires), paragraphs);
+            } catch (final NumberFormatException e) {
+                throw new IOException("Malformed entry " + file);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * The text extracted from a page, along with its cache validators.
+     */
+    public static class Entry {
+        public final String url;
+
+        /** The entity tag sent with the page, or {@code null} if none. */
+        public final String etag;
+
+        /** The last modification date sent with the page, or {@code null}. */
+        public final String lastModified;
+
+        /** Time until which the text may be used without revalidating it. */
+        public final long expires;
+
+        /** The extracted paragraphs, in document order. */
+        public final List<String> paragraphs;
+
+        public Entry(String url, String etag, String lastModified, long expires,
+                List<String> paragraphs) {
+            this.url = url;
+            this.etag = emptyToNull(etag);
+            this.lastModified = emptyToNull(lastModified);
+            this.expires = expires;
+            this.paragraphs = paragraphs;
+        }
+
+        /**
+         * @return Whether the text may be used without revalidating it.
+         */
+        public boolean isFresh() {
+            return (System.currentTimeMillis() < expires);
+        }
+
+        /**
+         * @return Whether the server sent any validators for the page.
+         */
+        public boolean hasValidators() {
+            return (etag != null) || (lastModified != null);
+        }
+
+        private static String emptyToNull(String value) {
+            return ((value == null) || (value.length() == 0)) ? null : value;
+        }
+    }
+}
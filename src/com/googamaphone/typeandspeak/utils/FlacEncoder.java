@@ -0,0 +1,643 @@
+package com.googamaphone.typeandspeak.utils;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A streaming FLAC encoder written in pure Java. Each block of samples is
+ * coded with the best of the fixed linear predictors and Rice-coded
+ * residuals, falling back to constant or verbatim subframes where those are
+ * smaller. All buffers are allocated up front, so memory use doesn't depend
+ * on the length of the audio.
+ */
+public class FlacEncoder implements AudioEncoder {
+    /** Number of samples per channel in each frame. */
+    private static final int BLOCK_SIZE = 4096;
+
+    private static final int MAX_FIXED_ORDER = 4;
+    private static final int MAX_PARTITION_ORDER = 8;
+
+    /** The largest Rice parameter, since 15 is reserved as an escape. */
+    private static final int MAX_RICE_PARAMETER = 14;
+
+    /** Offset of the STREAMINFO block, after the marker and block header. */
+    private static final int STREAMINFO_OFFSET = 8;
+    private static final int STREAMINFO_LENGTH = 34;
+
+    private static final int[] CRC8_TABLE = createCrcTable(0x07, 8);
+    private static final int[] CRC16_TABLE = createCrcTable(0x8005, 16);
+
+    private final RandomAccessFile mOutput;
+    private final int[] mResidual = new int[BLOCK_SIZE];
+    private final long[] mPartitionSums = new long[1 << MAX_PARTITION_ORDER];
+    private final int[] mRiceParameters = new int[1 << MAX_PARTITION_ORDER];
+    private final MessageDigest mDigest;
+
+    /** Format of the sample data, or {@code null} if nothing was written. */
+    private WavHeader mFormat;
+    private int mBytesPerSample;
+
+    private int[][] mSamples;
+    private byte[] mReadBuffer;
+    private BitWriter mBits;
+
+    /** Number of samples per channel in the current block. */
+    private int mBlockFill = 0;
+
+    private long mTotalSamples = 0;
+    private long mFrameNumber = 0;
+    private int mMinFrameSize = Integer.MAX_VALUE;
+    private int mMaxFrameSize = 0;
+
+    /** The partition order chosen by {@link #chooseRiceParameters}. */
+    private int mPartitionOrder;
+
+    /**
+     * @param file The file to write. Existing contents are replaced.
+     * @throws IOException If the file can't be opened.
+     */
+    public FlacEncoder(File file) throws IOException {
+        try {
+            mDigest = MessageDigest.getInstance("MD5");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IOException("MD5 is not available");
+        }
+
+        mOutput = new RandomAccessFile(file, "rw");
+        mOutput.setLength(0);
+    }
+
+    @Override
+    public void append(File file, WavHeader header) throws IOException {
+        if (mFormat == null) {
+            start(header);
+        } else if ((header.sampleRate != mFormat.sampleRate)
+                || (header.channels != mFormat.channels)
+                || (header.bitsPerSample != mFormat.bitsPerSample)) {
+            throw new IOException("Audio format changed between segments");
+        }
+
+        final FileInputStream input = new FileInputStream(file);
+
+        try {
+            input.getChannel().position(header.dataOffset);
+
+            final DataInputStream data = new DataInputStream(input);
+            final int frameSize = mFormat.getFrameSize();
+            long remaining = (header.dataLength - (header.dataLength % frameSize));
+
+            while (remaining > 0) {
+                final int length = (int) Math.min(mReadBuffer.length, remaining);
+
+                try {
+                    data.readFully(mReadBuffer, 0, length);
+                } catch (final EOFException e) {
+                    break;
+                }
+
+                remaining -= length;
+
+                addSamples(length);
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    @Override
+    public boolean hasData() {
+        return (mFormat != null);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (mFormat != null) {
+                if (mBlockFill > 0) {
+                    writeFrame(mBlockFill);
+                }
+
+                mOutput.seek(STREAMINFO_OFFSET);
+                writeStreamInfo(mDigest.digest());
+            }
+        } finally {
+            mOutput.close();
+        }
+    }
+
+    /**
+     * Allocates buffers for the format and writes the stream header.
+     */
+    private void start(WavHeader format) throws IOException {
+        if ((format.bitsPerSample != 8) && (format.bitsPerSample != 16)
+                && (format.bitsPerSample != 24)) {
+            throw new IOException("Unsupported sample size: " + format.bitsPerSample);
+        }
+
+        if ((format.channels < 1) || (format.channels > 8)) {
+            throw new IOException("Unsupported channel count: " + format.channels);
+        }
+
+        mFormat = format;
+        mBytesPerSample = (format.bitsPerSample / 8);
+        mSamples = new int[format.channels][BLOCK_SIZE];
+        mReadBuffer = new byte[BLOCK_SIZE * format.getFrameSize()];
+
+        // A frame is never larger than its verbatim encoding plus headers.
+        mBits = new BitWriter((BLOCK_SIZE * format.getFrameSize()) + (format.channels * 2) + 32);
+
+        mOutput.seek(0);
+        mOutput.writeBytes("fLaC");
+
+        // Last metadata block, type STREAMINFO.
+        mOutput.writeInt(0x80000000 | STREAMINFO_LENGTH);
+
+        // Filled in again once the totals are known.
+        writeStreamInfo(new byte[16]);
+    }
+
+    /**
+     * Splits interleaved samples from the read buffer into channels, writing a
+     * frame each time a block fills up.
+     */
+    private void addSamples(int length) throws IOException {
+        final byte[] buffer = mReadBuffer;
+        final int channels = mFormat.channels;
+
+        if (mBytesPerSample == 1) {
+            // WAV stores 8-bit samples as unsigned, FLAC as signed.
+            for (int i = 0; i < length; i++) {
+                buffer[i] ^= 0x80;
+            }
+        }
+
+        // The MD5 signature covers signed little-endian samples.
+        mDigest.update(buffer, 0, length);
+
+        int offset = 0;
+
+        while (offset < length) {
+            for (int channel = 0; channel < channels; channel++) {
+                final int sample;
+
+                switch (mBytesPerSample) {
+                    case 1:
+                        sample = buffer[offset];
+                        break;
+                    case 2:
+                        sample = (buffer[offset] & 0xFF) | (buffer[offset + 1] << 8);
+                        break;
+                    default:
+                        sample = (buffer[offset] & 0xFF) | ((buffer[offset + 1] & 0xFF) << 8)
+                                | (buffer[offset + 2] << 16);
+                        break;
+                }
+
+                mSamples[channel][mBlockFill] = sample;
+                offset += mBytesPerSample;
+            }
+
+            mBlockFill++;
+
+            if (mBlockFill == BLOCK_SIZE) {
+                writeFrame(BLOCK_SIZE);
+            }
+        }
+    }
+
+    private void writeFrame(int blockSize) throws IOException {
+        final BitWriter bits = mBits;
+
+        bits.reset();
+
+        // Sync code and fixed block size strategy.
+        bits.write(0xFFF8, 16);
+
+        // Block size follows the frame number, sample rate and sample size
+        // are taken from STREAMINFO.
+        bits.write(0x7, 4);
+        bits.write(0x0, 4);
+        bits.write(mFormat.channels - 1, 4);
+        bits.write(0x0, 3);
+        bits.write(0, 1);
+        writeUtf8(bits, mFrameNumber);
+        bits.write(blockSize - 1, 16);
+        bits.write(crc(CRC8_TABLE, 8, bits.getBuffer(), bits.getLength()), 8);
+
+        for (int channel = 0; channel < mFormat.channels; channel++) {
+            writeSubframe(mSamples[channel], blockSize);
+        }
+
+        bits.alignToByte();
+        bits.write(crc(CRC16_TABLE, 16, bits.getBuffer(), bits.getLength()), 16);
+
+        final int frameLength = bits.getLength();
+
+        mOutput.write(bits.getBuffer(), 0, frameLength);
+
+        mMinFrameSize = Math.min(mMinFrameSize, frameLength);
+        mMaxFrameSize = Math.max(mMaxFrameSize, frameLength);
+        mTotalSamples += blockSize;
+        mFrameNumber++;
+        mBlockFill = 0;
+    }
+
+    private void writeSubframe(int[] samples, int blockSize) {
+        final BitWriter bits = mBits;
+        final int bitsPerSample = mFormat.bitsPerSample;
+
+        if (isConstant(samples, blockSize)) {
+            bits.write(0x00, 8);
+            bits.write(samples[0], bitsPerSample);
+            return;
+        }
+
+        final int order = chooseFixedOrder(samples, blockSize);
+        final long verbatimBits = ((long) blockSize * bitsPerSample);
+
+        computeResidual(samples, blockSize, order);
+
+        final long residualBits = chooseRiceParameters(blockSize, order);
+        final long fixedBits = ((long) order * bitsPerSample) + residualBits;
+
+        if (fixedBits >= verbatimBits) {
+            bits.write(0x02, 8);
+
+            for (int i = 0; i < blockSize; i++) {
+                bits.write(samples[i], bitsPerSample);
+            }
+
+            return;
+        }
+
+        // Fixed predictor subframe, no wasted bits.
+        bits.write((0x08 | order) << 1, 8);
+
+        for (int i = 0; i < order; i++) {
+            bits.write(samples[i], bitsPerSample);
+        }
+
+        writeResidual(blockSize, order);
+    }
+
+    private static boolean isConstant(int[] samples, int blockSize) {
+        final int first = samples[0];
+
+        for (int i = 1; i < blockSize; i++) {
+            if (samples[i] != first) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the fixed predictor order with the smallest total residual.
+     */
+    private int chooseFixedOrder(int[] samples, int blockSize) {
+        final int maxOrder = Math.min(MAX_FIXED_ORDER, blockSize - 1);
+
+        int bestOrder = 0;
+        long bestSum = Long.MAX_VALUE;
+
+        for (int order = 0; order <= maxOrder; order++) {
+            computeResidual(samples, blockSize, order);
+
+            long sum = 0;
+
+            for (int i = order; i < blockSize; i++) {
+                sum += Math.abs(mResidual[i]);
+            }
+
+            if (sum < bestSum) {
+                bestSum = sum;
+                bestOrder = order;
+            }
+        }
+
+        return bestOrder;
+    }
+
+    private void computeResidual(int[] x, int blockSize, int order) {
+        final int[] residual = mResidual;
+
+        switch (order) {
+            case 0:
+                for (int i = 0; i < blockSize; i++) {
+                    residual[i] = x[i];
+                }
+                break;
+            case 1:
+                for (int i = 1; i < blockSize; i++) {
+                    residual[i] = x[i] - x[i - 1];
+                }
+                break;
+            case 2:
+                for (int i = 2; i < blockSize; i++) {
+                    residual[i] = x[i] - (2 * x[i - 1]) + x[i - 2];
+                }
+                break;
+            case 3:
+                for (int i = 3; i < blockSize; i++) {
+                    residual[i] = x[i] - (3 * x[i - 1]) + (3 * x[i - 2]) - x[i - 3];
+                }
+                break;
+            default:
+                for (int i = 4; i < blockSize; i++) {
+                    residual[i] = x[i] - (4 * x[i - 1]) + (6 * x[i - 2]) - (4 * x[i - 3])
+                            + x[i - 4];
+                }
+                break;
+        }
+    }
+
+    /**
+     * Chooses the partition order and per-partition Rice parameters for the
+     * current residual, storing them in {@link #mPartitionOrder} and
+     * {@link #mRiceParameters}.
+     *
+     * @return The exact number of bits needed to code the residual.
+     */
+    private long chooseRiceParameters(int blockSize, int order) {
+        // Partitions must divide the block evenly and the first partition
+        // must be longer than the warm-up.
+        int maxPartitionOrder = 0;
+
+        while ((maxPartitionOrder < MAX_PARTITION_ORDER)
+                && ((blockSize % (2 << maxPartitionOrder)) == 0)
+                && ((blockSize >> (maxPartitionOrder + 1)) > order)) {
+            maxPartitionOrder++;
+        }
+
+        // Sum the zigzag-coded residual in the smallest partitions.
+        final long[] sums = mPartitionSums;
+        final int partitionLength = (blockSize >> maxPartitionOrder);
+        final int partitions = (1 << maxPartitionOrder);
+
+        for (int p = 0; p < partitions; p++) {
+            final int start = (p == 0) ? order : (p * partitionLength);
+            final int end = ((p + 1) * partitionLength);
+            long sum = 0;
+
+            for (int i = start; i < end; i++) {
+                sum += zigzag(mResidual[i]);
+            }
+
+            sums[p] = sum;
+        }
+
+        // Estimate the cost at each partition order, merging partitions as
+        // the order decreases.
+        long bestEstimate = Long.MAX_VALUE;
+        int bestPartitionOrder = 0;
+
+        for (int partitionOrder = maxPartitionOrder; partitionOrder >= 0; partitionOrder--) {
+            final int count = (1 << partitionOrder);
+            final int length = (blockSize >> partitionOrder);
+            long estimate = 0;
+
+            for (int p = 0; p < count; p++) {
+                final int samples = (p == 0) ? (length - order) : length;
+                final int parameter = estimateRiceParameter(sums[p], samples);
+
+                estimate += 4 + ((long) samples * (parameter + 1)) + (sums[p] >> parameter);
+            }
+
+            if (estimate < bestEstimate) {
+                bestEstimate = estimate;
+                bestPartitionOrder = partitionOrder;
+            }
+
+            for (int p = 0; p < (count / 2); p++) {
+                sums[p] = sums[2 * p] + sums[(2 * p) + 1];
+            }
+        }
+
+        // Recompute the chosen parameters and the exact cost.
+        final int count = (1 << bestPartitionOrder);
+        final int length = (blockSize >> bestPartitionOrder);
+        long bits = 6;
+
+        for (int p = 0; p < count; p++) {
+            final int start = (p == 0) ? order : (p * length);
+            final int end = ((p + 1) * length);
+            long sum = 0;
+
+            for (int i = start; i < end; i++) {
+                sum += zigzag(mResidual[i]);
+            }
+
+            final int parameter = estimateRiceParameter(sum, end - start);
+
+            bits += 4 + ((long) (end - start) * (parameter + 1));
+
+            for (int i = start; i < end; i++) {
+                bits += (zigzag(mResidual[i]) >>> parameter);
+            }
+
+            mRiceParameters[p] = parameter;
+        }
+
+        mPartitionOrder = bestPartitionOrder;
+
+        return bits;
+    }
+
+    /**
+     * Returns the Rice parameter that best fits the mean of a partition.
+     */
+    private static int estimateRiceParameter(long sum, int samples) {
+        int parameter = 0;
+
+        while ((parameter < MAX_RICE_PARAMETER) && (((long) samples << (parameter + 1)) < sum)) {
+            parameter++;
+        }
+
+        return parameter;
+    }
+
+    private void writeResidual(int blockSize, int order) {
+        final BitWriter bits = mBits;
+        final int count = (1 << mPartitionOrder);
+        final int length = (blockSize >> mPartitionOrder);
+
+        // Rice coding with 4-bit parameters.
+        bits.write(0, 2);
+        bits.write(mPartitionOrder, 4);
+
+        for (int p = 0; p < count; p++) {
+            final int start = (p == 0) ? order : (p * length);
+            final int end = ((p + 1) * length);
+            final int parameter = mRiceParameters[p];
+
+            bits.write(parameter, 4);
+
+            for (int i = start; i < end; i++) {
+                bits.writeRice(zigzag(mResidual[i]), parameter);
+            }
+        }
+    }
+
+    private void writeStreamInfo(byte[] md5) throws IOException {
+        final BitWriter info = new BitWriter(STREAMINFO_LENGTH);
+        final boolean hasFrames = (mMaxFrameSize > 0);
+
+        info.write(BLOCK_SIZE, 16);
+        info.write(BLOCK_SIZE, 16);
+        info.write(hasFrames ? mMinFrameSize : 0, 24);
+        info.write(hasFrames ? mMaxFrameSize : 0, 24);
+        info.write(mFormat.sampleRate, 20);
+        info.write(mFormat.channels - 1, 3);
+        info.write(mFormat.bitsPerSample - 1, 5);
+        info.write((int) (mTotalSamples >>> 32), 4);
+        info.write((int) mTotalSamples, 32);
+
+        mOutput.write(info.getBuffer(), 0, info.getLength());
+        mOutput.write(md5);
+    }
+
+    /**
+     * Writes a frame number using the extended UTF-8 coding used by FLAC.
+     */
+    private static void writeUtf8(BitWriter bits, long value) {
+        if (value < 0x80) {
+            bits.write((int) value, 8);
+            return;
+        }
+
+        final int bytes;
+
+        if (value < 0x800) {
+            bytes = 2;
+        } else if (value < 0x10000) {
+            bytes = 3;
+        } else if (value < 0x200000) {
+            bytes = 4;
+        } else if (value < 0x4000000) {
+            bytes = 5;
+        } else {
+            bytes = 6;
+        }
+
+        final int prefix = ((0xFF << (8 - bytes)) & 0xFF);
+
+        bits.write(prefix | (int) (value >>> (6 * (bytes - 1))), 8);
+
+        for (int i = (bytes - 2); i >= 0; i--) {
+            bits.write(0x80 | (int) ((value >>> (6 * i)) & 0x3F), 8);
+        }
+    }
+
+    private static int zigzag(int value) {
+        return ((value << 1) ^ (value >> 31));
+    }
+
+    private static int crc(int[] table, int width, byte[] buffer, int length) {
+        final int mask = ((1 << width) - 1);
+        int crc = 0;
+
+        for (int i = 0; i < length; i++) {
+            crc = ((crc << 8) ^ table[((crc >>> (width - 8)) ^ buffer[i]) & 0xFF]) & mask;
+        }
+
+        return crc;
+    }
+
+    private static int[] createCrcTable(int polynomial, int width) {
+        final int[] table = new int[256];
+        final int topBit = (1 << (width - 1));
+        final int mask = ((1 << width) - 1);
+
+        for (int i = 0; i < 256; i++) {
+            int crc = (i << (width - 8));
+
+            for (int bit = 0; bit < 8; bit++) {
+                crc = ((crc & topBit) != 0) ? ((crc << 1) ^ polynomial) : (crc << 1);
+            }
+
+            table[i] = (crc & mask);
+        }
+
+        return table;
+    }
+
+    /**
+     * Packs values into a fixed-size byte buffer, most significant bit first.
+     */
+    private static class BitWriter {
+        private final byte[] mBuffer;
+
+        private int mLength;
+        private long mAccumulator;
+        private int mBitCount;
+
+        public BitWriter(int capacity) {
+            mBuffer = new byte[capacity];
+        }
+
+        public void reset() {
+            mLength = 0;
+            mAccumulator = 0;
+            mBitCount = 0;
+        }
+
+        public byte[] getBuffer() {
+            return mBuffer;
+        }
+
+        /**
+         * @return The number of complete bytes written.
+         */
+        public int getLength() {
+            return mLength;
+        }
+
+        /**
+         * Writes the low bits of a value.
+         *
+         * @param value The value to write. Negative values are written in
+         *            two's complement.
+         * @param bits The number of bits to write, at most 32.
+         */
+        public void write(int value, int bits) {
+            mAccumulator = (mAccumulator << bits) | (value & (0xFFFFFFFFL >>> (32 - bits)));
+            mBitCount += bits;
+
+            while (mBitCount >= 8) {
+                mBitCount -= 8;
+                mBuffer[mLength++] = (byte) (mAccumulator >>> mBitCount);
+            }
+        }
+
+        /**
+         * Writes a Rice code: the quotient in unary followed by the low bits.
+         */
+        public void writeRice(int value, int parameter) {
+            int quotient = (value >>> parameter);
+
+            while (quotient >= 31) {
+                write(0, 31);
+                quotient -= 31;
+            }
+
+            write(1, quotient + 1);
+
+            if (parameter > 0) {
+                write(value, parameter);
+            }
+        }
+
+        public void alignToByte() {
+            if (mBitCount > 0) {
+                write(0, 8 - mBitCount);
+            }
+        }
+    }
+}
@@ -1,38 +1,132 @@
 
 package com.googamaphone.typeandspeak.utils;
 
+import java.io.File;
 import java.text.BreakIterator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import com.googamaphone.compat.AsyncTaskCompatUtils;
+
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Message;
 import android.speech.tts.TextToSpeech;
 import android.speech.tts.TextToSpeech.Engine;
 import android.speech.tts.TextToSpeech.OnUtteranceCompletedListener;
+import android.speech.tts.UtteranceProgressListener;
 import android.text.TextUtils;
 
 /**
  * A wrapper class for {@link TextToSpeech} that adds support for reading at a
- * given granularity level using a {@link BreakIterator}.
+ * given granularity level using a {@link BreakIterator}. Unit boundaries are
+ * computed once per text and stored in a {@link SegmentIndex}.
  */
 public class GranularTextToSpeech {
     private static final int UTTERANCE_COMPLETED = 1;
     private static final int RESUME_SPEAKING = 2;
+    private static final int UTTERANCE_STARTED = 3;
+    private static final int CACHE_LOOKUP_DONE = 4;
+    private static final int CHECK_QUEUE_EMPTY = 5;
+
+    /** Prefix for utterance identifiers, followed by a sequence number. */
+    private static final String UTTERANCE_ID_PREFIX = "SingAlongTTS:";
+
+    /** Default number of units to queue behind the one being spoken. */
+    private static final int DEFAULT_LOOKAHEAD = 2;
+
+    /** Texts at least this long are segmented on a background thread. */
+    private static final int ASYNC_INDEX_THRESHOLD = 32 * 1024;
+
+    /** Maximum number of cache lookup results to remember. */
+    private static final int MAX_CACHED_UNITS = 64;
+
+    /** Looks up cached units off the main thread. */
+    private static final ExecutorService sCacheExecutor = Executors.newSingleThreadExecutor();
 
-    private final CharSequenceIterator mCharSequenceIterator = new CharSequenceIterator(null);
     private final TextToSpeechStub mTts;
     private final HashMap<String, String> mParams;
 
+    /** Utterances sent to the engine, in the order they will be spoken. */
+    private final LinkedList<Utterance> mPending = new LinkedList<Utterance>();
+
     private BreakIterator mBreakIterator;
+    private Locale mLocale;
     private SingAlongListener mListener = null;
+    private OnQueueStateChangedListener mQueueListener = null;
     private CharSequence mCurrentSequence = null;
 
+    /** Whether the queue was last reported as having utterances. */
+    private boolean mReportedQueued = false;
+
+    /** Latency metrics for the current engine settings, if any. */
+    private SpeechMetrics mMetrics;
+
+    /** Cache of previously synthesized units, if any. */
+    private AudioCache mAudioCache;
+
+    /**
+     * Cached audio by unit text, or {@code null} for units that aren't cached
+     * or are still being looked up.
+     */
+    private final LinkedHashMap<String, File> mCachedUnits = new LinkedHashMap<String, File>(
+            16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, File> eldest) {
+            return (size() > MAX_CACHED_UNITS);
+        }
+    };
+
+    /** Incremented whenever the settings that identify cached units change. */
+    private int mCacheGeneration = 0;
+
+    // Engine settings that identify cached units.
+    private String mEngine;
+    private int mPitch;
+    private int mRate;
+
+    /** Unit boundaries for the current text, or {@code null} if not built. */
+    private SegmentIndex mIndex;
+
+    /** Task building the unit boundaries for a long text, if any. */
+    private IndexTask mIndexTask;
+
+    /** Index of the current unit, or {@code -1} if before the first unit. */
+    private int mUnitIndex = -1;
+
     private int mUnitEnd = 0;
     private int mUnitStart = 0;
 
+    /** Cursor position to apply once the index has been built. */
+    private int mPendingCursor = -1;
+
+    /** Maximum number of characters to send to the engine at once. */
+    private int mMaxUnitLength = ChunkUtils.DEFAULT_MAX_LENGTH;
+
+    /** Number of units to keep queued behind the current unit. */
+    private int mLookahead = DEFAULT_LOOKAHEAD;
+
+    /** Sequence number for the next utterance sent to the engine. */
+    private int mUtteranceSequence = 0;
+
+    private boolean mIsSpeaking = false;
     private boolean mIsPaused = false;
 
+    /** Whether more text is expected to be appended to the current text. */
+    private boolean mAwaitingText = false;
+
+    /** Whether speech reached the end of the text while awaiting more. */
+    private boolean mStalled = false;
+
     /**
      * Flag that lets the utterance completion listener know whether to advance
      * automatically. Automatically resets after each completed utterance.
@@ -47,30 +141,138 @@ public class GranularTextToSpeech {
         mTts = tts;
 
         mParams = new HashMap<String, String>();
-        mParams.put(Engine.KEY_PARAM_UTTERANCE_ID, "SingAlongTTS");
 
         if (defaultLocale != null) {
-            mBreakIterator = BreakIterator.getSentenceInstance(defaultLocale);
+            mLocale = defaultLocale;
         } else {
-            mBreakIterator = BreakIterator.getSentenceInstance(Locale.US);
+            mLocale = Locale.US;
         }
+
+        mBreakIterator = BreakIterator.getSentenceInstance(mLocale);
     }
 
     public void setListener(SingAlongListener listener) {
         mListener = listener;
     }
 
+    /**
+     * Sets the listener to notify when utterances are queued with the engine
+     * and when the queue runs empty, as when paused or stopped.
+     *
+     * @param listener The listener to notify.
+     */
+    public void setOnQueueStateChangedListener(OnQueueStateChangedListener listener) {
+        mQueueListener = listener;
+    }
+
+    /**
+     * Sets the metrics to record utterance timings into. Callers should update
+     * the metrics whenever the engine, locale, or rate changes.
+     *
+     * @param metrics The metrics to record into, or {@code null} to stop
+     *            recording.
+     */
+    public void setMetrics(SpeechMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Sets the cache to play previously synthesized units from. Units found
+     * in the cache are played back directly instead of being sent to the
+     * engine. Callers should call this again whenever the engine, pitch, or
+     * rate changes.
+     * <p>
+     * Units are looked up on a background thread before they're queued, so
+     * a unit is only played from the cache if its lookup has finished. Speech
+     * sent to the engine isn't captured, so the cache is only filled by
+     * gapless playback and saved files.
+     *
+     * @param cache The cache to use, or {@code null} to always use the engine.
+     * @param engine The package name of the speech engine.
+     * @param pitch The speech pitch, as used in preferences.
+     * @param rate The speech rate, as used in preferences.
+     */
+    public void setAudioCache(AudioCache cache, String engine, int pitch, int rate) {
+        if ((cache == mAudioCache) && TextUtils.equals(engine, mEngine) && (pitch == mPitch)
+                && (rate == mRate)) {
+            return;
+        }
+
+        mAudioCache = cache;
+        mEngine = engine;
+        mPitch = pitch;
+        mRate = rate;
+
+        invalidateCachedUnits();
+    }
+
+    /**
+     * Sets the number of units to queue behind the unit that is currently
+     * being spoken. Queued units are sent to the engine ahead of time so that
+     * it can move between units without waiting on a round-trip through the
+     * completion listener. A value of zero sends one unit at a time.
+     *
+     * @param lookahead The number of units to queue ahead.
+     */
+    public void setLookahead(int lookahead) {
+        mLookahead = Math.max(0, lookahead);
+    }
+
+    /**
+     * Sets whether more text is still being appended to the current text.
+     * While it is, reaching the end of the text waits for the next append
+     * instead of stopping.
+     *
+     * @param awaitingText Whether more text is expected.
+     */
+    public void setAwaitingText(boolean awaitingText) {
+        mAwaitingText = awaitingText;
+
+        if (!awaitingText && mStalled) {
+            mStalled = false;
+            stop();
+        }
+    }
+
+    /**
+     * Sets the maximum number of characters to send to the engine in a single
+     * utterance. Longer units are split at clause or word boundaries.
+     *
+     * @param maxLength The maximum utterance length.
+     */
+    public void setMaxUnitLength(int maxLength) {
+        if (maxLength == mMaxUnitLength) {
+            return;
+        }
+
+        mMaxUnitLength = maxLength;
+
+        // Reset the text since unit boundaries may have changed.
+        setText(mCurrentSequence);
+    }
+
     public void setLocale(Locale locale) {
+        if (locale.equals(mLocale)) {
+            // The existing index is still valid.
+            return;
+        }
+
+        mLocale = locale;
         mBreakIterator = BreakIterator.getSentenceInstance(locale);
 
+        invalidateCachedUnits();
+
         // Reset the text since we had to recreate the break iterator.
         setText(mCurrentSequence);
     }
 
     public void speak() {
+        mIsSpeaking = true;
+
         pause();
 
         mTts.setOnUtteranceCompletedListener(mOnUtteranceCompletedListener);
+        mTts.setOnUtteranceStartedListener(mOnUtteranceStartedListener);
 
         if (mListener != null) {
             mListener.onSequenceStarted();
@@ -79,55 +281,182 @@ public class GranularTextToSpeech {
         resume();
     }
 
+    /**
+     * Sets the text to speak and builds its unit boundaries. Long texts are
+     * segmented on a background thread, and speech starts once the
+     * boundaries are available.
+     *
+     * @param text The text to speak.
+     */
     public void setText(CharSequence text) {
+        if (mIndexTask != null) {
+            mIndexTask.cancel(false);
+            mIndexTask = null;
+        }
+
         mCurrentSequence = text;
+        mUnitIndex = -1;
         mUnitStart = 0;
         mUnitEnd = 0;
-        mCharSequenceIterator.setCharSequence(mCurrentSequence);
-        mBreakIterator.setText(mCharSequenceIterator);
+        mPendingCursor = -1;
+        mStalled = false;
+
+        if (text == null) {
+            mIndex = null;
+        } else if (text.length() < ASYNC_INDEX_THRESHOLD) {
+            mIndex = SegmentIndex.build(text, mBreakIterator, mMaxUnitLength);
+        } else {
+            mIndex = null;
+
+            // Editable text may change while it's segmented, so take a copy.
+            // A mapped document is immutable and may be too large to copy.
+            final CharSequence snapshot = (text instanceof MappedCharSequence) ? text : text
+                    .toString();
+
+            mIndexTask = new IndexTask(snapshot, (BreakIterator) mBreakIterator.clone(),
+                    mMaxUnitLength);
+            AsyncTaskCompatUtils.executeInParallel(mIndexTask);
+        }
+    }
+
+    /**
+     * @return The text that is currently segmented, or {@code null} if none.
+     */
+    public CharSequence getText() {
+        return mCurrentSequence;
+    }
+
+    /**
+     * Updates the segmentation after an edit to the current text. Only the
+     * units around the edit are segmented again, and the current position is
+     * carried across the edit so that playback continues uninterrupted. The
+     * parameters match those of {@link android.text.TextWatcher#onTextChanged}.
+     *
+     * @param text The text after the edit.
+     * @param start The offset at which the edit starts.
+     * @param before The number of characters that were replaced.
+     * @param count The number of characters that replaced them.
+     */
+    public void onTextChanged(CharSequence text, int start, int before, int count) {
+        if (mCurrentSequence == null) {
+            // Nothing has been segmented yet.
+            return;
+        }
+
+        if (mIndex == null) {
+            if (mIndexTask != null) {
+                // The snapshot being segmented is out of date, so start over.
+                final int cursor = mPendingCursor;
+
+                setText(text);
+
+                if (cursor >= 0) {
+                    mPendingCursor = mapOffset(cursor, start, before, count);
+                }
+            }
+
+            return;
+        }
+
+        if (!mIsSpeaking && (count >= ASYNC_INDEX_THRESHOLD)) {
+            // There's no position to keep, so segment in the background.
+            setText(text);
+            return;
+        }
+
+        mCurrentSequence = text;
+        mIndex.applyEdit(text, mBreakIterator, start, before, count);
+
+        for (Utterance utterance : mPending) {
+            final int utteranceStart = mapOffset(utterance.start, start, before, count);
+            final int utteranceEnd = mapOffset(utterance.end, start, before, count);
+
+            // Map to the last unit that overlaps the utterance, so that
+            // filling the queue continues after the text already queued.
+            utterance.start = utteranceStart;
+            utterance.end = Math.max(utteranceStart, utteranceEnd);
+            utterance.index = mIndex.indexAt(Math.max(utteranceStart, utterance.end - 1));
+        }
+
+        if (mUnitIndex < 0) {
+            return;
+        }
+
+        final Utterance current = mPending.peek();
+
+        if (current != null) {
+            mUnitIndex = current.index;
+            mUnitStart = current.start;
+            mUnitEnd = current.end;
+        } else {
+            final int index = mIndex.indexAt(mapOffset(mUnitStart, start, before, count));
+
+            if (index >= 0) {
+                selectUnit(index);
+            } else {
+                mUnitIndex = -1;
+                mUnitStart = 0;
+                mUnitEnd = 0;
+            }
+        }
+
+        if (mStalled) {
+            // Continue with the text that was just appended.
+            mStalled = false;
+            speakFromCurrentUnit();
+        }
     }
 
     public void pause() {
         mIsPaused = true;
-        mTts.stop();
+        flushQueue();
     }
 
     public void resume() {
         mIsPaused = false;
-        onUtteranceCompleted(null);
+        speakFromCurrentUnit();
     }
 
     public void next() {
         nextInternal();
-        mBypassAdvance = !mIsPaused;
-        mTts.stop();
+        mBypassAdvance = true;
+        speakFromCurrentUnit();
     }
 
     public void previous() {
         previousInternal();
-        mBypassAdvance = !mIsPaused;
-        mTts.stop();
+        mBypassAdvance = true;
+        speakFromCurrentUnit();
     }
 
     public boolean isSpeaking() {
-        return (mCurrentSequence != null);
+        return mIsSpeaking;
     }
 
     public void setSegmentFromCursor(int cursor) {
+        if (mIndex == null) {
+            if (mIndexTask != null) {
+                // Apply the cursor once the index has been built.
+                mPendingCursor = cursor;
+            }
+
+            return;
+        }
+
         if ((cursor >= mCurrentSequence.length()) || (cursor < 0)) {
             cursor = 0;
         }
 
-        if (safeIsBoundary(mBreakIterator, cursor)) {
-            mUnitStart = mBreakIterator.current();
-            safeFollowing(mBreakIterator, cursor);
-            mUnitEnd = mBreakIterator.current();
-        } else {
-            mUnitEnd = mBreakIterator.current();
-            safePreceding(mBreakIterator, cursor);
-            mUnitStart = mBreakIterator.current();
+        final int index = mIndex.indexAt(cursor);
+
+        if (index < 0) {
+            // There's nothing to speak, so let the next advance fail.
+            mBypassAdvance = false;
+            return;
         }
 
+        selectUnit(index);
+
         mBypassAdvance = true;
 
         if (mListener != null) {
@@ -136,39 +465,59 @@ public class GranularTextToSpeech {
     }
 
     public void stop() {
+        mIsSpeaking = false;
         mIsPaused = true;
+        mStalled = false;
 
-        mTts.stop();
+        flushQueue();
         mTts.setOnUtteranceCompletedListener(null);
+        mTts.setOnUtteranceStartedListener(null);
 
         if (mListener != null) {
             mListener.onSequenceCompleted();
         }
 
-        setText(null);
-
+        // Keep the text and its index so they can be reused.
+        mUnitIndex = -1;
         mUnitStart = 0;
         mUnitEnd = 0;
+        mPendingCursor = -1;
+    }
+
+    /**
+     * Called when a background task finishes building the index for the
+     * current text.
+     */
+    private void onIndexBuilt(SegmentIndex index) {
+        mIndexTask = null;
+        mIndex = index;
+
+        if (mPendingCursor >= 0) {
+            setSegmentFromCursor(mPendingCursor);
+            mPendingCursor = -1;
+        }
+
+        speakFromCurrentUnit();
+    }
+
+    private void selectUnit(int index) {
+        mUnitIndex = index;
+        mUnitStart = mIndex.getStart(index);
+        mUnitEnd = mIndex.getEnd(index);
     }
 
     /**
-     * Move the break iterator forward by one unit. If the cursor is in the
-     * middle of a unit, it will move to the next unit.
+     * Move forward by one unit.
      *
      * @return {@code true} if the iterator moved forward or {@code false} if it
      *         already at the last unit.
      */
     private boolean nextInternal() {
-        do {
-            final int result = safeFollowing(mBreakIterator, mUnitEnd);
-
-            if (result == BreakIterator.DONE) {
-                return false;
-            }
+        if ((mIndex == null) || ((mUnitIndex + 1) >= mIndex.size())) {
+            return false;
+        }
 
-            mUnitStart = mUnitEnd;
-            mUnitEnd = mBreakIterator.current();
-        } while (isWhitespace(mCurrentSequence.subSequence(mUnitStart, mUnitEnd)));
+        selectUnit(mUnitIndex + 1);
 
         if (mListener != null) {
             mListener.onUnitSelected(mUnitStart, mUnitEnd);
@@ -178,23 +527,17 @@ public class GranularTextToSpeech {
     }
 
     /**
-     * Move the break iterator backward by one unit. If the cursor is in the
-     * middle of a unit, it will move to the beginning of the unit.
+     * Move backward by one unit.
      *
      * @return {@code true} if the iterator moved backward or {@code false} if
      *         it already at the first unit.
      */
     private boolean previousInternal() {
-        do {
-            final int result = safePreceding(mBreakIterator, mUnitStart);
-
-            if (result == BreakIterator.DONE) {
-                return false;
-            }
+        if ((mIndex == null) || (mUnitIndex <= 0)) {
+            return false;
+        }
 
-            mUnitEnd = mUnitStart;
-            mUnitStart = mBreakIterator.current();
-        } while (isWhitespace(mCurrentSequence.subSequence(mUnitStart, mUnitEnd)));
+        selectUnit(mUnitIndex - 1);
 
         if (mListener != null) {
             mListener.onUnitSelected(mUnitStart, mUnitEnd);
@@ -203,12 +546,21 @@ public class GranularTextToSpeech {
         return true;
     }
 
-    private static boolean isWhitespace(CharSequence text) {
-        return TextUtils.getTrimmedLength(text) == 0;
+    private void onUtteranceStarted(String utteranceId) {
+        final Utterance started = mPending.peek();
+
+        if ((started == null) || !started.id.equals(utteranceId)) {
+            // This callback is for an utterance that was already flushed.
+            return;
+        }
+
+        if (mMetrics != null) {
+            mMetrics.onUtteranceStarted();
+        }
     }
 
     private void onUtteranceCompleted(String utteranceId) {
-        if (mCurrentSequence == null) {
+        if (!mIsSpeaking || (mIndex == null)) {
             // Shouldn't be speaking now.
             return;
         }
@@ -218,60 +570,298 @@ public class GranularTextToSpeech {
             return;
         }
 
+        final Utterance completed = mPending.peek();
+
+        if ((completed == null) || !completed.id.equals(utteranceId)) {
+            // This callback is for an utterance that was already flushed.
+            return;
+        }
+
+        mPending.removeFirst();
+        onQueueChanged();
+
+        if (mMetrics != null) {
+            mMetrics.onUtteranceDone();
+        }
+
+        final Utterance current = mPending.peek();
+
+        if (current == null) {
+            // Nothing was queued ahead, so send the next unit now.
+            if (!nextInternal()) {
+                stopOrStall();
+                return;
+            }
+
+            enqueueUnit(mUnitIndex, TextToSpeech.QUEUE_FLUSH);
+        } else {
+            // The engine has already moved on to the next queued utterance,
+            // which may be a chunk of a longer unit.
+            mUnitIndex = current.index;
+            mUnitStart = current.start;
+            mUnitEnd = current.end;
+
+            if (mListener != null) {
+                mListener.onUnitSelected(mUnitStart, mUnitEnd);
+            }
+        }
+
+        fillQueue();
+    }
+
+    /**
+     * Flushes the engine and starts speaking from the current unit, or from
+     * the following unit if the current unit has already been spoken.
+     */
+    private void speakFromCurrentUnit() {
+        if (!mIsSpeaking || mIsPaused || (mIndex == null)) {
+            // Not speaking, or waiting for the index to be built.
+            return;
+        }
+
         if (mBypassAdvance) {
             mBypassAdvance = false;
         } else if (!nextInternal()) {
+            stopOrStall();
+            return;
+        }
+
+        if (mUnitIndex < 0) {
             stop();
             return;
         }
 
-        speakCurrentUnit();
+        flushQueue();
+        enqueueFirstUnit();
+        fillQueue();
+    }
+
+    /**
+     * Stops at the end of the text, unless more text is expected, in which
+     * case speech continues when it's appended.
+     */
+    private void stopOrStall() {
+        if (mAwaitingText) {
+            mStalled = true;
+        } else {
+            stop();
+        }
+    }
+
+    /**
+     * Sends the current unit to the engine as a series of growing chunks. The
+     * first chunk is kept short so that audio starts quickly, and each chunk
+     * after that is up to twice as long as the one before.
+     */
+    private void enqueueFirstUnit() {
+        final int unitEnd = mUnitEnd;
+
+        int chunkStart = mUnitStart;
+        int chunkLength = ChunkUtils.FIRST_CHUNK_LENGTH;
+        int queueMode = TextToSpeech.QUEUE_FLUSH;
+
+        while (chunkStart < unitEnd) {
+            final int chunkEnd = ChunkUtils.findChunkEnd(mCurrentSequence, chunkStart, unitEnd,
+                    chunkLength);
+
+            if (!ChunkUtils.isWhitespace(mCurrentSequence, chunkStart, chunkEnd)) {
+                enqueue(mUnitIndex, chunkStart, chunkEnd, queueMode);
+                queueMode = TextToSpeech.QUEUE_ADD;
+            }
+
+            chunkStart = chunkEnd;
+            chunkLength *= 2;
+        }
+
+        final Utterance first = mPending.peek();
+
+        if ((first != null) && (first.end < unitEnd)) {
+            // Only highlight the part that's being spoken.
+            mUnitStart = first.start;
+            mUnitEnd = first.end;
+
+            if (mListener != null) {
+                mListener.onUnitSelected(mUnitStart, mUnitEnd);
+            }
+        }
+    }
+
+    /**
+     * Queues units following the last pending utterance until there are
+     * enough units queued behind the current unit.
+     */
+    private void fillQueue() {
+        int next = ((mPending.isEmpty() ? mUnitIndex : mPending.getLast().index) + 1);
+
+        while ((mPending.size() <= mLookahead) && (next < mIndex.size())) {
+            enqueueUnit(next, TextToSpeech.QUEUE_ADD);
+            next++;
+        }
+
+        lookUpCachedUnits(next);
     }
 
-    private void speakCurrentUnit() {
-        if (mCurrentSequence.length() == 0) {
+    /**
+     * Starts looking up the units that will be queued next in the cache, so
+     * that the results are ready by the time they're queued.
+     *
+     * @param first The index of the first unit to look up.
+     */
+    private void lookUpCachedUnits(int first) {
+        if (mAudioCache == null) {
             return;
         }
 
-        sanityCheck();
+        final int last = Math.min(mIndex.size(), (first + mLookahead + 1));
+
+        for (int i = first; i < last; i++) {
+            final String text = mCurrentSequence.subSequence(mIndex.getStart(i),
+                    mIndex.getEnd(i)).toString();
+
+            if (mCachedUnits.containsKey(text)) {
+                continue;
+            }
+
+            mCachedUnits.put(text, null);
+            sCacheExecutor.execute(new CacheLookup(mHandler, mAudioCache, text, mLocale, mPitch,
+                    mRate, mEngine, mCacheGeneration));
+        }
+    }
+
+    private void onCacheLookupDone(CacheLookup lookup) {
+        if ((lookup.generation == mCacheGeneration) && mCachedUnits.containsKey(lookup.text)) {
+            mCachedUnits.put(lookup.text, lookup.result);
+        }
+    }
 
-        final CharSequence text = mCurrentSequence.subSequence(mUnitStart, mUnitEnd);
-        mTts.speak(text.toString(), TextToSpeech.QUEUE_FLUSH, mParams);
+    /**
+     * Forgets cache lookups made with previous settings.
+     */
+    private void invalidateCachedUnits() {
+        mCacheGeneration++;
+        mCachedUnits.clear();
     }
 
-    private void sanityCheck() {
-        final int length = mCurrentSequence.length();
+    /**
+     * Sends a unit to the engine under a unique utterance identifier and adds
+     * it to the list of pending utterances.
+     */
+    private void enqueueUnit(int index, int queueMode) {
+        enqueue(index, mIndex.getStart(index), mIndex.getEnd(index), queueMode);
+    }
 
-        if ((mUnitStart < 0) || (mUnitStart >= mCurrentSequence.length())) {
-            throw new IndexOutOfBoundsException("Unit start (" + mUnitStart
-                    + ") is invalid for string with length " + length);
-        } else if ((mUnitEnd < 0) || (mUnitEnd > mCurrentSequence.length())) {
-            throw new IndexOutOfBoundsException("Unit end (" + mUnitEnd
-                    + ") is invalid for string with length" + length);
+    /**
+     * Sends a range of text within a unit to the engine under a unique
+     * utterance identifier and adds it to the list of pending utterances.
+     */
+    private void enqueue(int index, int start, int end, int queueMode) {
+        sanityCheck(start, end);
+
+        final Utterance utterance = new Utterance(
+                UTTERANCE_ID_PREFIX + mUtteranceSequence++, index, start, end);
+        final CharSequence text = mCurrentSequence.subSequence(start, end);
+
+        mParams.put(Engine.KEY_PARAM_UTTERANCE_ID, utterance.id);
+        mPending.addLast(utterance);
+        onQueueChanged();
+
+        final File cached = getCachedAudio(text.toString());
+
+        if (cached != null) {
+            // Earcons are queued and reported just like speech.
+            final String earcon = cached.getName();
+            mTts.addEarcon(earcon, cached.getAbsolutePath());
+            mTts.playEarcon(earcon, queueMode, mParams);
+        } else {
+            mTts.speak(text.toString(), queueMode, mParams);
         }
     }
 
-    private static boolean safeIsBoundary(BreakIterator iterator, int offset) {
-        try {
-            return iterator.isBoundary(offset);
-        } catch (IllegalArgumentException e) {
-            return false;
+    /**
+     * @return Previously synthesized audio for the text, or {@code null} if
+     *         there is none or it hasn't been looked up yet.
+     */
+    private File getCachedAudio(String text) {
+        if (mAudioCache == null) {
+            return null;
+        }
+
+        final File cached = mCachedUnits.get(text);
+
+        // The entry may have been evicted since it was looked up.
+        if ((cached == null) || !cached.exists()) {
+            return null;
+        }
+
+        return cached;
+    }
+
+    /**
+     * Stops the engine and forgets about pending utterances. Any completion
+     * callbacks that arrive for them afterward will be ignored.
+     */
+    private void flushQueue() {
+        mPending.clear();
+        onQueueChanged();
+        mTts.stop();
+
+        if (mMetrics != null) {
+            mMetrics.onInterrupted();
+        }
+    }
+
+    /**
+     * Reports the queue becoming non-empty right away. The queue is often
+     * refilled right after it's emptied, so running empty is only reported
+     * if it's still empty once the current message has been handled.
+     */
+    private void onQueueChanged() {
+        if (!mPending.isEmpty()) {
+            if (!mReportedQueued) {
+                mReportedQueued = true;
+
+                if (mQueueListener != null) {
+                    mQueueListener.onQueueStateChanged(true);
+                }
+            }
+        } else if (mReportedQueued && !mHandler.hasMessages(CHECK_QUEUE_EMPTY)) {
+            mHandler.sendEmptyMessage(CHECK_QUEUE_EMPTY);
+        }
+    }
+
+    private void checkQueueEmpty() {
+        if (mPending.isEmpty() && mReportedQueued) {
+            mReportedQueued = false;
+
+            if (mQueueListener != null) {
+                mQueueListener.onQueueStateChanged(false);
+            }
         }
     }
 
-    private static int safeFollowing(BreakIterator iterator, int offset) {
-        try {
-            return iterator.following(offset);
-        } catch (IllegalArgumentException e) {
-            return BreakIterator.DONE;
+    /**
+     * Maps an offset in the text from before an edit to the text after it.
+     * Offsets within the replaced range map to the end of the replacement.
+     */
+    private static int mapOffset(int offset, int start, int before, int count) {
+        if (offset <= start) {
+            return offset;
+        } else if (offset >= (start + before)) {
+            return (offset + count - before);
+        } else {
+            return (start + count);
         }
     }
 
-    private static int safePreceding(BreakIterator iterator, int offset) {
-        try {
-            return iterator.preceding(offset);
-        } catch (IllegalArgumentException e) {
-            return BreakIterator.DONE;
+    private void sanityCheck(int start, int end) {
+        final int length = mCurrentSequence.length();
+
+        if ((start < 0) || (start >= mCurrentSequence.length())) {
+            throw new IndexOutOfBoundsException("Unit start (" + start
+                    + ") is invalid for string with length " + length);
+        } else if ((end < 0) || (end > mCurrentSequence.length())) {
+            throw new IndexOutOfBoundsException("Unit end (" + end
+                    + ") is invalid for string with length" + length);
         }
     }
 
@@ -284,6 +874,13 @@ public class GranularTextToSpeech {
         }
     };
 
+    private final OnUtteranceStartedListener mOnUtteranceStartedListener = new OnUtteranceStartedListener() {
+        @Override
+        public void onUtteranceStarted(String utteranceId) {
+            mHandler.obtainMessage(UTTERANCE_STARTED, utteranceId).sendToTarget();
+        }
+    };
+
     private static class SingAlongHandler extends ReferencedHandler<GranularTextToSpeech> {
         public SingAlongHandler(GranularTextToSpeech parent) {
             super(parent);
@@ -298,30 +895,166 @@ public class GranularTextToSpeech {
                 case RESUME_SPEAKING:
                     parent.resume();
                     break;
+                case UTTERANCE_STARTED:
+                    parent.onUtteranceStarted((String) msg.obj);
+                    break;
+                case CACHE_LOOKUP_DONE:
+                    parent.onCacheLookupDone((CacheLookup) msg.obj);
+                    break;
+                case CHECK_QUEUE_EMPTY:
+                    parent.checkQueueEmpty();
+                    break;
             }
         }
     };
 
+    /**
+     * Computes the cache key for a unit and looks it up on a background
+     * thread, then sends the result to the main thread.
+     */
+    private static class CacheLookup implements Runnable {
+        private final SingAlongHandler mHandler;
+        private final AudioCache mCache;
+        private final Locale mLocale;
+        private final int mPitch;
+        private final int mRate;
+        private final String mEngine;
+
+        public final String text;
+        public final int generation;
+
+        /** The cached audio, or {@code null} if there is none. */
+        public File result;
+
+        public CacheLookup(SingAlongHandler handler, AudioCache cache, String text,
+                Locale locale, int pitch, int rate, String engine, int generation) {
+            mHandler = handler;
+            mCache = cache;
+            mLocale = locale;
+            mPitch = pitch;
+            mRate = rate;
+            mEngine = engine;
+
+            this.text = text;
+            this.generation = generation;
+        }
+
+        @Override
+        public void run() {
+            result = mCache.get(AudioCache.getKey(text, mLocale, mPitch, mRate, mEngine));
+            mHandler.obtainMessage(CACHE_LOOKUP_DONE, this).sendToTarget();
+        }
+    }
+
+    /**
+     * Builds the index for a long text on a background thread. Uses its own
+     * copy of the text and break iterator, so the originals may continue to
+     * be used on the main thread.
+     */
+    private class IndexTask extends AsyncTask<Void, Void, SegmentIndex> {
+        private final CharSequence mText;
+        private final BreakIterator mIterator;
+        private final int mMaxLength;
+
+        public IndexTask(CharSequence text, BreakIterator iterator, int maxLength) {
+            mText = text;
+            mIterator = iterator;
+            mMaxLength = maxLength;
+        }
+
+        @Override
+        protected SegmentIndex doInBackground(Void... params) {
+            return SegmentIndex.build(mText, mIterator, mMaxLength);
+        }
+
+        @Override
+        protected void onPostExecute(SegmentIndex result) {
+            if (mIndexTask == this) {
+                onIndexBuilt(result);
+            }
+        }
+    }
+
+    /**
+     * A unit of text that has been sent to the engine.
+     */
+    private static class Utterance {
+        public final String id;
+        public int index;
+        public int start;
+        public int end;
+
+        public Utterance(String id, int index, int start, int end) {
+            this.id = id;
+            this.index = index;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
     public interface TextToSpeechStub {
         public void setOnUtteranceCompletedListener(
                 OnUtteranceCompletedListener mOnUtteranceCompletedListener);
 
+        public void setOnUtteranceStartedListener(
+                OnUtteranceStartedListener mOnUtteranceStartedListener);
+
         public int speak(String string, int queueFlush, HashMap<String, String> mParams);
 
+        public int addEarcon(String earcon, String filename);
+
+        public int playEarcon(String earcon, int queueMode, HashMap<String, String> params);
+
         public void stop();
     }
 
-    private static class TextToSpeechWrapper implements TextToSpeechStub {
+    /**
+     * Listener for the engine starting to speak an utterance. Only called on
+     * platforms that report utterance progress.
+     */
+    public interface OnUtteranceStartedListener {
+        public void onUtteranceStarted(String utteranceId);
+    }
+
+    /**
+     * Listener for utterances being queued with the engine.
+     */
+    public interface OnQueueStateChangedListener {
+        /**
+         * @param queued Whether any utterances are queued.
+         */
+        public void onQueueStateChanged(boolean queued);
+    }
+
+    static class TextToSpeechWrapper implements TextToSpeechStub {
         private final TextToSpeech mTts;
 
+        private OnUtteranceCompletedListener mCompletedListener;
+        private OnUtteranceStartedListener mStartedListener;
+
         public TextToSpeechWrapper(TextToSpeech tts) {
             mTts = tts;
         }
 
-        @SuppressWarnings("deprecation")
         @Override
         public void setOnUtteranceCompletedListener(OnUtteranceCompletedListener listener) {
-            mTts.setOnUtteranceCompletedListener(listener);
+            mCompletedListener = listener;
+            updateListeners();
+        }
+
+        @Override
+        public void setOnUtteranceStartedListener(OnUtteranceStartedListener listener) {
+            mStartedListener = listener;
+            updateListeners();
+        }
+
+        @SuppressWarnings("deprecation")
+        private void updateListeners() {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH_MR1) {
+                ProgressListener.set(mTts, mCompletedListener, mStartedListener);
+            } else {
+                mTts.setOnUtteranceCompletedListener(mCompletedListener);
+            }
         }
 
         @Override
@@ -329,12 +1062,68 @@ public class GranularTextToSpeech {
             return mTts.speak(text, queueMode, params);
         }
 
+        @Override
+        public int addEarcon(String earcon, String filename) {
+            return mTts.addEarcon(earcon, filename);
+        }
+
+        @Override
+        public int playEarcon(String earcon, int queueMode, HashMap<String, String> params) {
+            return mTts.playEarcon(earcon, queueMode, params);
+        }
+
         @Override
         public void stop() {
             mTts.stop();
         }
     }
 
+    /**
+     * Forwards utterance progress to the legacy listeners.
+     */
+    @TargetApi(15)
+    private static class ProgressListener extends UtteranceProgressListener {
+        private final OnUtteranceCompletedListener mCompletedListener;
+        private final OnUtteranceStartedListener mStartedListener;
+
+        private ProgressListener(OnUtteranceCompletedListener completedListener,
+                OnUtteranceStartedListener startedListener) {
+            mCompletedListener = completedListener;
+            mStartedListener = startedListener;
+        }
+
+        public static void set(TextToSpeech tts, OnUtteranceCompletedListener completedListener,
+                OnUtteranceStartedListener startedListener) {
+            if ((completedListener == null) && (startedListener == null)) {
+                tts.setOnUtteranceProgressListener(null);
+            } else {
+                tts.setOnUtteranceProgressListener(
+                        new ProgressListener(completedListener, startedListener));
+            }
+        }
+
+        @Override
+        public void onStart(String utteranceId) {
+            if (mStartedListener != null) {
+                mStartedListener.onUtteranceStarted(utteranceId);
+            }
+        }
+
+        @Override
+        public void onDone(String utteranceId) {
+            if (mCompletedListener != null) {
+                mCompletedListener.onUtteranceCompleted(utteranceId);
+            }
+        }
+
+        @Override
+        public void onError(String utteranceId) {
+            if (mCompletedListener != null) {
+                mCompletedListener.onUtteranceCompleted(utteranceId);
+            }
+        }
+    }
+
     public interface SingAlongListener {
         public void onSequenceStarted();
 
@@ -0,0 +1,114 @@
+package com.googamaphone.typeandspeak.utils;
+
+import java.io.PrintWriter;
+
+/**
+ * A fixed-size histogram with power-of-two buckets. Recording a value never
+ * allocates, so it's safe to use on the speech callback path.
+ */
+public class LatencyHistogram {
+    /** Bucket {@code i} holds values in {@code [2^(i-1), 2^i)}. */
+    private static final int BUCKET_COUNT = 32;
+
+    private final long[] mBuckets = new long[BUCKET_COUNT];
+    private final String mName;
+    private final String mUnit;
+
+    private long mCount;
+    private long mSum;
+    private long mMin;
+    private long mMax;
+
+    /**
+     * @param name The name to use when dumping the histogram.
+     * @param unit The unit of recorded values, used when dumping.
+     */
+    public LatencyHistogram(String name, String unit) {
+        mName = name;
+        mUnit = unit;
+
+        reset();
+    }
+
+    /**
+     * Records a single value. Negative values are ignored.
+     *
+     * @param value The value to record.
+     */
+    public synchronized void record(long value) {
+        if (value < 0) {
+            return;
+        }
+
+        final int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(value));
+
+        mBuckets[bucket]++;
+        mCount++;
+        mSum += value;
+
+        if (value < mMin) {
+            mMin = value;
+        }
+
+        if (value > mMax) {
+            mMax = value;
+        }
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns an upper bound for the specified percentile, accurate to within
+     * a factor of two.
+     *
+     * @param percentile A percentile between 0 and 100.
+     * @return An upper bound on the value at that percentile.
+     */
+    public synchronized long getPercentile(int percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+
+        final long target = ((mCount * percentile) + 99) / 100;
+        long seen = 0;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets[i];
+
+            if (seen >= target) {
+                return Math.min(mMax, (1L << i) - 1);
+            }
+        }
+
+        return mMax;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets[i] = 0;
+        }
+
+        mCount = 0;
+        mSum = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+    }
+
+    /**
+     * Writes a one-line summary of the histogram.
+     *
+     * @param writer The writer to print to.
+     */
+    public synchronized void dump(PrintWriter writer) {
+        if (mCount == 0) {
+            writer.printf("  %s: no samples\n", mName);
+            return;
+        }
+
+        writer.printf("  %s (%s): n=%d mean=%d min=%d p50<=%d p90<=%d p99<=%d max=%d\n", mName,
+                mUnit, mCount, (mSum / mCount), mMin, getPercentile(50), getPercentile(90),
+                getPercentile(99), mMax);
+    }
+}
@@ -0,0 +1,238 @@
+package com.googamaphone.typeandspeak.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A read-only {@link CharSequence} backed by a memory-mapped UTF-8 text file.
+ * The file is decoded on demand in fixed-size blocks, and only a few decoded
+ * blocks are kept on the heap, so book-length texts can be segmented, spoken
+ * and saved without copying them into a string.
+ * <p>
+ * Instances are immutable and may be read from several threads at once.
+ * Note that {@link #toString()} copies the whole text.
+ */
+public class MappedCharSequence implements CharSequence {
+    /** Size of each decoded block, in bytes. */
+    private static final int BLOCK_SIZE = 16 * 1024;
+
+    /** Number of decoded blocks to keep on the heap. */
+    private static final int MAX_CACHED_BLOCKS = 8;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mFile;
+    private final ByteBuffer mBuffer;
+
+    /** Byte offset at which each block starts, followed by the end offset. */
+    private final int[] mBlockByteStarts;
+
+    /** Character offset at which each block starts, followed by the length. */
+    private final int[] mBlockCharStarts;
+
+    private final int mBlockCount;
+
+    /** Decoded blocks by index, guarded by {@code this}. */
+    private final LinkedHashMap<Integer, char[]> mBlocks = new LinkedHashMap<Integer, char[]>(
+            MAX_CACHED_BLOCKS, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, char[]> eldest) {
+            return (size() > MAX_CACHED_BLOCKS);
+        }
+    };
+
+    // The most recently used block, guarded by {@code this}.
+    private int mLastBlock = -1;
+    private char[] mLastChars;
+
+    /**
+     * Maps a UTF-8 text file and indexes its blocks. This reads the whole
+     * file once, so it shouldn't be called on the main thread.
+     *
+     * @param file The file to map.
+     * @return A character sequence backed by the file.
+     * @throws IOException If the file can't be mapped.
+     */
+    public static MappedCharSequence open(File file) throws IOException {
+        final FileInputStream in = new FileInputStream(file);
+
+        try {
+            final FileChannel channel = in.getChannel();
+            final long size = channel.size();
+
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File is too large to map: " + file);
+            }
+
+            // The mapping remains valid after the channel is closed.
+            return new MappedCharSequence(file, channel.map(MapMode.READ_ONLY, 0, size));
+        } finally {
+            in.close();
+        }
+    }
+
+    private MappedCharSequence(File file, ByteBuffer buffer) {
+        final int limit = buffer.limit();
+        final int maxBlocks = (limit / BLOCK_SIZE) + 1;
+        final CharsetDecoder decoder = newDecoder();
+        final CharBuffer scratch = CharBuffer.allocate(BLOCK_SIZE + 3);
+
+        mFile = file;
+        mBuffer = buffer;
+        mBlockByteStarts = new int[maxBlocks + 1];
+        mBlockCharStarts = new int[maxBlocks + 1];
+        mBlockByteStarts[0] = hasByteOrderMark(buffer) ? 3 : 0;
+
+        int blockCount = 0;
+
+        while (mBlockByteStarts[blockCount] < limit) {
+            final int byteStart = mBlockByteStarts[blockCount];
+            int byteEnd = Math.min(limit, byteStart + BLOCK_SIZE);
+
+            // Don't split a multi-byte character between blocks.
+            while ((byteEnd < limit) && ((buffer.get(byteEnd) & 0xC0) == 0x80)
+                    && (byteEnd < (byteStart + BLOCK_SIZE + 3))) {
+                byteEnd++;
+            }
+
+            scratch.clear();
+            decode(decoder, byteStart, byteEnd, scratch);
+
+            blockCount++;
+            mBlockByteStarts[blockCount] = byteEnd;
+            mBlockCharStarts[blockCount] = mBlockCharStarts[blockCount - 1] + scratch.position();
+        }
+
+        mBlockCount = blockCount;
+    }
+
+    /**
+     * @return The file backing this sequence.
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    @Override
+    public int length() {
+        return mBlockCharStarts[mBlockCount];
+    }
+
+    @Override
+    public char charAt(int index) {
+        if ((index < 0) || (index >= length())) {
+            throw new IndexOutOfBoundsException("Index " + index + " is invalid for length "
+                    + length());
+        }
+
+        final int block = findBlock(index);
+
+        return getBlock(block)[index - mBlockCharStarts[block]];
+    }
+
+    /**
+     * Returns a copy of a range of the text.
+     */
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if ((start < 0) || (end > length()) || (start > end)) {
+            throw new IndexOutOfBoundsException("Range " + start + "-" + end
+                    + " is invalid for length " + length());
+        }
+
+        final char[] chars = new char[end - start];
+        int position = start;
+
+        while (position < end) {
+            final int block = findBlock(position);
+            final int blockStart = mBlockCharStarts[block];
+            final int count = Math.min(end, mBlockCharStarts[block + 1]) - position;
+
+            System.arraycopy(getBlock(block), (position - blockStart), chars,
+                    (position - start), count);
+            position += count;
+        }
+
+        return new String(chars);
+    }
+
+    /**
+     * Returns a copy of the whole text. Avoid this for large files.
+     */
+    @Override
+    public String toString() {
+        return subSequence(0, length()).toString();
+    }
+
+    /**
+     * @return The index of the block containing a character.
+     */
+    private int findBlock(int index) {
+        int low = 0;
+        int high = (mBlockCount - 1);
+
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+
+            if (mBlockCharStarts[mid] <= index) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return low;
+    }
+
+    private synchronized char[] getBlock(int block) {
+        if (block == mLastBlock) {
+            return mLastChars;
+        }
+
+        char[] chars = mBlocks.get(block);
+
+        if (chars == null) {
+            chars = new char[mBlockCharStarts[block + 1] - mBlockCharStarts[block]];
+            decode(newDecoder(), mBlockByteStarts[block], mBlockByteStarts[block + 1],
+                    CharBuffer.wrap(chars));
+            mBlocks.put(block, chars);
+        }
+
+        mLastBlock = block;
+        mLastChars = chars;
+
+        return chars;
+    }
+
+    private void decode(CharsetDecoder decoder, int byteStart, int byteEnd, CharBuffer out) {
+        final ByteBuffer bytes = mBuffer.duplicate();
+        bytes.limit(byteEnd);
+        bytes.position(byteStart);
+
+        decoder.reset();
+        decoder.decode(bytes, out, true);
+        decoder.flush(out);
+    }
+
+    private static CharsetDecoder newDecoder() {
+        return UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    private static boolean hasByteOrderMark(ByteBuffer buffer) {
+        return (buffer.limit() >= 3) && (buffer.get(0) == (byte) 0xEF)
+                && (buffer.get(1) == (byte) 0xBB) && (buffer.get(2) == (byte) 0xBF);
+    }
+}
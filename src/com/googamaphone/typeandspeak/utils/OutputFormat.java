@@ -0,0 +1,72 @@
+package com.googamaphone.typeandspeak.utils;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A file format that synthesized speech can be saved in.
+ */
+public class OutputFormat {
+    /** Uncompressed PCM audio, playable everywhere. */
+    public static final OutputFormat WAV = new OutputFormat(".wav", "audio/wav");
+
+    /** Lossless compressed audio, playable on Android 3.1 and later. */
+    public static final OutputFormat FLAC = new OutputFormat(".flac", "audio/flac");
+
+    /** The file extension, including the leading period. */
+    public final String extension;
+
+    /** The MIME type to register with the media provider. */
+    public final String mimeType;
+
+    private OutputFormat(String extension, String mimeType) {
+        this.extension = extension;
+        this.mimeType = mimeType;
+    }
+
+    /**
+     * Creates an encoder that writes this format.
+     *
+     * @param file The file to write.
+     * @return An encoder for the file.
+     * @throws IOException If the file can't be opened.
+     */
+    public AudioEncoder createEncoder(File file) throws IOException {
+        if (this == FLAC) {
+            return new FlacEncoder(file);
+        }
+
+        return new WavWriter(file);
+    }
+
+    /**
+     * Removes a known audio file extension from a file name.
+     *
+     * @param filename A file name, possibly with an extension.
+     * @return The file name without a known extension.
+     */
+    public static String removeExtension(String filename) {
+        final OutputFormat format = fromPath(filename);
+        final String lowerCase = filename.toLowerCase();
+
+        if (lowerCase.endsWith(format.extension)) {
+            return filename.substring(0, filename.length() - format.extension.length());
+        }
+
+        return filename;
+    }
+
+    /**
+     * Returns the format of a saved file based on its extension.
+     *
+     * @param path The path of a saved file.
+     * @return The format of the file, or {@link #WAV} if unknown.
+     */
+    public static OutputFormat fromPath(String path) {
+        if ((path != null) && path.toLowerCase().endsWith(FLAC.extension)) {
+            return FLAC;
+        }
+
+        return WAV;
+    }
+}
@@ -0,0 +1,174 @@
+package com.googamaphone.typeandspeak.utils;
+
+/**
+ * The paragraph boundaries of a piece of text, stored as a single primitive
+ * array of start offsets. Paragraphs are contiguous, so every offset in the
+ * text belongs to exactly one paragraph. A paragraph ends after a run of line
+ * breaks, and paragraphs longer than the maximum length are split at a space
+ * so that each one stays cheap to lay out.
+ */
+public class ParagraphIndex {
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** Default maximum length of a single paragraph. */
+    public static final int DEFAULT_MAX_LENGTH = 2000;
+
+    private final CharSequence mText;
+
+    /** Paragraph start offsets, in increasing order. */
+    private int[] mStarts = new int[INITIAL_CAPACITY];
+
+    /** The number of paragraphs in the index. */
+    private int mCount;
+
+    private ParagraphIndex(CharSequence text) {
+        mText = text;
+    }
+
+    /**
+     * Builds an index of the paragraphs in the specified text. This reads
+     * the whole text, so it shouldn't be called on the main thread for long
+     * texts.
+     *
+     * @param text The text to index. It must not change afterward.
+     * @param maxLength The maximum length of a single paragraph.
+     * @return An index of the paragraphs in the text.
+     */
+    public static ParagraphIndex build(CharSequence text, int maxLength) {
+        final ParagraphIndex index = new ParagraphIndex(text);
+        final int length = text.length();
+
+        int start = 0;
+        int lastSpace = -1;
+        boolean hasText = false;
+        boolean inBreak = false;
+
+        for (int i = 0; i < length; i++) {
+            final char c = text.charAt(i);
+
+            if (c == '\n') {
+                inBreak = true;
+                continue;
+            }
+
+            // Leading line breaks belong to the first paragraph.
+            if (inBreak && hasText) {
+                index.add(start);
+                start = i;
+                lastSpace = -1;
+            } else if ((i - start) >= maxLength) {
+                // Prefer splitting after a space in the last quarter.
+                int split = ((lastSpace - start) > ((maxLength * 3) / 4)) ? (lastSpace + 1) : i;
+
+                if (Character.isLowSurrogate(text.charAt(split))) {
+                    split--;
+                }
+
+                index.add(start);
+                start = split;
+                lastSpace = -1;
+            }
+
+            if (c == ' ') {
+                lastSpace = i;
+            }
+
+            hasText = true;
+            inBreak = false;
+        }
+
+        if (length > 0) {
+            index.add(start);
+        }
+
+        return index;
+    }
+
+    /**
+     * @return The text that was indexed.
+     */
+    public CharSequence getText() {
+        return mText;
+    }
+
+    /**
+     * @return The number of paragraphs in the index.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return The offset at which a paragraph starts.
+     */
+    public int getStart(int index) {
+        return mStarts[index];
+    }
+
+    /**
+     * @return The offset at which a paragraph ends, including any trailing
+     *         line breaks.
+     */
+    public int getEnd(int index) {
+        return ((index + 1) < mCount) ? mStarts[index + 1] : mText.length();
+    }
+
+    /**
+     * Returns the text of a paragraph, without surrounding line breaks.
+     *
+     * @param index The index of the paragraph.
+     * @return A copy of the paragraph's text.
+     */
+    public String getParagraph(int index) {
+        int start = getStart(index);
+        int end = getEnd(index);
+
+        while ((start < end) && (mText.charAt(start) == '\n')) {
+            start++;
+        }
+
+        while ((end > start) && (mText.charAt(end - 1) == '\n')) {
+            end--;
+        }
+
+        return mText.subSequence(start, end).toString();
+    }
+
+    /**
+     * Returns the index of the paragraph containing an offset.
+     *
+     * @param offset An offset within the text.
+     * @return The index of the paragraph, or {@code -1} if there are none.
+     */
+    public int indexAt(int offset) {
+        if (mCount == 0) {
+            return -1;
+        }
+
+        // Find the last paragraph that starts at or before the offset.
+        int low = 0;
+        int high = (mCount - 1);
+
+        while (low <= high) {
+            final int mid = ((low + high) >>> 1);
+
+            if (mStarts[mid] <= offset) {
+                low = (mid + 1);
+            } else {
+                high = (mid - 1);
+            }
+        }
+
+        return Math.max(0, high);
+    }
+
+    private void add(int start) {
+        if (mCount == mStarts.length) {
+            final int[] starts = new int[mStarts.length * 2];
+            System.arraycopy(mStarts, 0, starts, 0, mCount);
+            mStarts = starts;
+        }
+
+        mStarts[mCount++] = start;
+    }
+}
@@ -0,0 +1,93 @@
+package com.googamaphone.typeandspeak.utils;
+
+/**
+ * A fixed-size circular byte buffer for PCM audio. Read and write positions
+ * are tracked as absolute byte counts so that callers can mark positions in
+ * the stream. This class is not thread-safe; callers must synchronize access.
+ */
+public class PcmRingBuffer {
+    private final byte[] mData;
+
+    /** Total number of bytes read or discarded. */
+    private long mReadPosition = 0;
+
+    /** Total number of bytes written. */
+    private long mWritePosition = 0;
+
+    /**
+     * @param capacity The size of the buffer, in bytes.
+     */
+    public PcmRingBuffer(int capacity) {
+        mData = new byte[capacity];
+    }
+
+    public int getCapacity() {
+        return mData.length;
+    }
+
+    /**
+     * @return The number of bytes available to read.
+     */
+    public int getAvailable() {
+        return (int) (mWritePosition - mReadPosition);
+    }
+
+    /**
+     * @return The number of bytes that may be written without overwriting
+     *         unread data.
+     */
+    public int getRemaining() {
+        return (mData.length - getAvailable());
+    }
+
+    public long getReadPosition() {
+        return mReadPosition;
+    }
+
+    public long getWritePosition() {
+        return mWritePosition;
+    }
+
+    /**
+     * Writes as many bytes as will fit without overwriting unread data.
+     *
+     * @return The number of bytes written.
+     */
+    public int write(byte[] buffer, int offset, int length) {
+        final int count = Math.min(length, getRemaining());
+        final int start = (int) (mWritePosition % mData.length);
+        final int first = Math.min(count, mData.length - start);
+
+        System.arraycopy(buffer, offset, mData, start, first);
+        System.arraycopy(buffer, offset + first, mData, 0, count - first);
+
+        mWritePosition += count;
+
+        return count;
+    }
+
+    /**
+     * Reads up to the specified number of bytes.
+     *
+     * @return The number of bytes read.
+     */
+    public int read(byte[] buffer, int offset, int length) {
+        final int count = Math.min(length, getAvailable());
+        final int start = (int) (mReadPosition % mData.length);
+        final int first = Math.min(count, mData.length - start);
+
+        System.arraycopy(mData, start, buffer, offset, first);
+        System.arraycopy(mData, 0, buffer, offset + first, count - first);
+
+        mReadPosition += count;
+
+        return count;
+    }
+
+    /**
+     * Discards all unread data. Positions continue to increase.
+     */
+    public void clear() {
+        mReadPosition = mWritePosition;
+    }
+}
@@ -0,0 +1,379 @@
+package com.googamaphone.typeandspeak.utils;
+
+import java.text.BreakIterator;
+
+/**
+ * A precomputed list of the units in a piece of text, stored as pairs of
+ * start and end offsets in a single primitive array. Units that contain only
+ * whitespace are omitted, so stepping forward or backward is a matter of
+ * moving to the adjacent index. Units longer than the maximum length are split
+ * at clause or word boundaries.
+ * <p>
+ * The array is a gap buffer. Units before the gap store offsets from the
+ * start of the text and units after it store offsets from the end, so an edit
+ * next to the gap doesn't need to shift the units that follow. Moving the gap
+ * costs time proportional to the distance moved, which is small when edits
+ * are close together, as they are while typing.
+ */
+public class SegmentIndex {
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** Flag set on the start of a unit that continues a split unit. */
+    private static final int FLAG_CONTINUATION = 0x40000000;
+
+    /** Mask for the offset portion of a unit start. */
+    private static final int MASK_OFFSET = ~FLAG_CONTINUATION;
+
+    /**
+     * Unit bounds, stored as {@code start0, end0, start1, end1, ...} with a
+     * gap between the units before {@link #mGapStart} and the rest. Starts may
+     * include {@link #FLAG_CONTINUATION}.
+     */
+    private int[] mBounds;
+
+    /** The number of units in the index. */
+    private int mCount;
+
+    /** The index of the first unit after the gap. */
+    private int mGapStart;
+
+    /** The number of unused units in the gap. */
+    private int mGapLength;
+
+    /** The length of the text, which offsets after the gap are relative to. */
+    private int mLength;
+
+    /** The maximum length of a single unit. */
+    private final int mMaxUnitLength;
+
+    private SegmentIndex(int capacity, int maxUnitLength) {
+        mBounds = new int[capacity * 2];
+        mCount = 0;
+        mGapStart = 0;
+        mGapLength = capacity;
+        mLength = 0;
+        mMaxUnitLength = maxUnitLength;
+    }
+
+    /**
+     * Builds an index of the non-whitespace units in the specified text.
+     *
+     * @param text The text to segment.
+     * @param iterator The break iterator that determines unit boundaries. Its
+     *            text will be replaced.
+     * @param maxUnitLength The maximum length of a single unit.
+     * @return An index of the units in the text.
+     */
+    public static SegmentIndex build(CharSequence text, BreakIterator iterator,
+            int maxUnitLength) {
+        final SegmentIndex index = new SegmentIndex(INITIAL_CAPACITY, maxUnitLength);
+
+        if (text != null) {
+            index.appendUnits(text, 0, iterator);
+            index.mLength = text.length();
+        }
+
+        return index;
+    }
+
+    /**
+     * Updates the index after an edit to the text. Only the units around the
+     * edited region are segmented again. Units following the edit are stored
+     * relative to the end of the text, so they don't need to be shifted. The
+     * parameters match those of {@link android.text.TextWatcher#onTextChanged}.
+     *
+     * @param text The text after the edit.
+     * @param iterator The break iterator that determines unit boundaries. Its
+     *            text will be replaced.
+     * @param start The offset at which the edit starts.
+     * @param before The number of characters that were replaced.
+     * @param count The number of characters that replaced them.
+     */
+    public void applyEdit(CharSequence text, BreakIterator iterator, int start, int before,
+            int count) {
+        final int delta = (count - before);
+        final int editEnd = (start + before);
+
+        // Units that touch the edit, plus one on either side since an edit
+        // can move the boundary between adjacent units.
+        int firstIndex = Math.max(0, firstEndingAtOrAfter(start) - 1);
+        int lastIndex = Math.min(mCount - 1, lastStartingAtOrBefore(editEnd) + 1);
+
+        // Widen to whole units so that long units are split the same way.
+        while ((firstIndex > 0) && isContinuation(firstIndex)) {
+            firstIndex--;
+        }
+
+        while ((lastIndex < (mCount - 1)) && isContinuation(lastIndex + 1)) {
+            lastIndex++;
+        }
+
+        final int windowStart;
+        final int windowEnd;
+
+        if (mCount == 0) {
+            windowStart = 0;
+        } else {
+            windowStart = Math.min(getStart(firstIndex), start);
+        }
+
+        if (lastIndex == (mCount - 1)) {
+            windowEnd = text.length();
+        } else {
+            // The start of the following unit is always a boundary, whereas
+            // the end of this one may exclude trailing whitespace.
+            windowEnd = (getStart(lastIndex + 1) + delta);
+        }
+
+        final SegmentIndex window = new SegmentIndex(INITIAL_CAPACITY, mMaxUnitLength);
+        window.appendUnits(text.subSequence(windowStart, windowEnd), windowStart, iterator);
+
+        final int removed = ((mCount == 0) ? 0 : (lastIndex - firstIndex + 1));
+
+        splice(firstIndex, removed, window, text.length());
+    }
+
+    /**
+     * @return The number of units in the index.
+     */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * @param index The index of a unit.
+     * @return The offset at which the unit starts.
+     */
+    public int getStart(int index) {
+        return toOffset(index, (mBounds[getPosition(index)] & MASK_OFFSET));
+    }
+
+    /**
+     * @param index The index of a unit.
+     * @return The offset at which the unit ends, exclusive.
+     */
+    public int getEnd(int index) {
+        return toOffset(index, mBounds[getPosition(index) + 1]);
+    }
+
+    /**
+     * Returns the index of the unit containing the specified offset. If the
+     * offset falls between units, returns the following unit, or the last
+     * unit if there are no following units.
+     *
+     * @param offset An offset within the text.
+     * @return The index of a unit, or {@code -1} if the index is empty.
+     */
+    public int indexAt(int offset) {
+        if (mCount == 0) {
+            return -1;
+        }
+
+        // Find the last unit that starts at or before the offset.
+        int low = 0;
+        int high = (mCount - 1);
+
+        while (low <= high) {
+            final int mid = ((low + high) >>> 1);
+
+            if (getStart(mid) <= offset) {
+                low = (mid + 1);
+            } else {
+                high = (mid - 1);
+            }
+        }
+
+        if (high < 0) {
+            return 0;
+        }
+
+        if ((offset >= getEnd(high)) && (high < (mCount - 1))) {
+            return (high + 1);
+        }
+
+        return high;
+    }
+
+    /**
+     * @return Whether the unit continues a unit that was too long and had to
+     *         be split.
+     */
+    private boolean isContinuation(int index) {
+        return ((mBounds[getPosition(index)] & FLAG_CONTINUATION) != 0);
+    }
+
+    /**
+     * @return The position in the bounds array of the start of a unit.
+     */
+    private int getPosition(int index) {
+        return ((index < mGapStart) ? index : (index + mGapLength)) * 2;
+    }
+
+    /**
+     * Converts a stored value to an offset from the start of the text.
+     */
+    private int toOffset(int index, int value) {
+        return (index < mGapStart) ? value : (mLength - value);
+    }
+
+    /**
+     * Returns the index of the first unit that ends at or after the specified
+     * offset, or {@link #size()} if there are none.
+     */
+    private int firstEndingAtOrAfter(int offset) {
+        int low = 0;
+        int high = (mCount - 1);
+
+        while (low <= high) {
+            final int mid = ((low + high) >>> 1);
+
+            if (getEnd(mid) < offset) {
+                low = (mid + 1);
+            } else {
+                high = (mid - 1);
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Returns the index of the last unit that starts at or before the
+     * specified offset, or {@code -1} if there are none.
+     */
+    private int lastStartingAtOrBefore(int offset) {
+        int low = 0;
+        int high = (mCount - 1);
+
+        while (low <= high) {
+            final int mid = ((low + high) >>> 1);
+
+            if (getStart(mid) <= offset) {
+                low = (mid + 1);
+            } else {
+                high = (mid - 1);
+            }
+        }
+
+        return high;
+    }
+
+    /**
+     * Appends the non-whitespace units in the specified text, offsetting their
+     * bounds by a fixed amount.
+     */
+    private void appendUnits(CharSequence text, int offset, BreakIterator iterator) {
+        if (text.length() == 0) {
+            return;
+        }
+
+        iterator.setText(new CharSequenceIterator(text));
+
+        int start = iterator.first();
+        int end = iterator.next();
+
+        while (end != BreakIterator.DONE) {
+            // Split long units into chunks the engine can handle.
+            int chunkStart = start;
+
+            while (chunkStart < end) {
+                final int chunkEnd = ChunkUtils.findChunkEnd(text, chunkStart, end,
+                        mMaxUnitLength);
+
+                if (!ChunkUtils.isWhitespace(text, chunkStart, chunkEnd)) {
+                    add(chunkStart + offset, chunkEnd + offset, (chunkStart != start));
+                }
+
+                chunkStart = chunkEnd;
+            }
+
+            start = end;
+            end = iterator.next();
+        }
+    }
+
+    /**
+     * Replaces a range of units with the units from another index, whose
+     * gap must be at its end, and updates the length of the text. Units that
+     * follow the range are relative to the end of the text, so they keep
+     * their offsets from it.
+     */
+    private void splice(int index, int removed, SegmentIndex replacement, int length) {
+        moveGap(index + removed);
+
+        // Removed units join the gap.
+        mGapStart = index;
+        mGapLength += removed;
+        mCount -= removed;
+        mLength = length;
+
+        ensureGap(replacement.mCount);
+
+        System.arraycopy(replacement.mBounds, 0, mBounds, mGapStart * 2, replacement.mCount * 2);
+
+        mGapStart += replacement.mCount;
+        mGapLength -= replacement.mCount;
+        mCount += replacement.mCount;
+    }
+
+    /**
+     * Moves the gap to before the specified unit, converting the units it
+     * passes between start-relative and end-relative offsets.
+     */
+    private void moveGap(int index) {
+        while (mGapStart > index) {
+            mGapStart--;
+
+            final int from = (mGapStart * 2);
+            final int to = ((mGapStart + mGapLength) * 2);
+            final int start = mBounds[from];
+
+            mBounds[to] = ((mLength - (start & MASK_OFFSET)) | (start & FLAG_CONTINUATION));
+            mBounds[to + 1] = (mLength - mBounds[from + 1]);
+        }
+
+        while (mGapStart < index) {
+            final int from = ((mGapStart + mGapLength) * 2);
+            final int to = (mGapStart * 2);
+            final int start = mBounds[from];
+
+            mBounds[to] = ((mLength - (start & MASK_OFFSET)) | (start & FLAG_CONTINUATION));
+            mBounds[to + 1] = (mLength - mBounds[from + 1]);
+
+            mGapStart++;
+        }
+    }
+
+    /**
+     * Makes sure the gap can hold at least the specified number of units.
+     */
+    private void ensureGap(int count) {
+        if (mGapLength >= count) {
+            return;
+        }
+
+        final int capacity = Math.max((mCount + count), ((mBounds.length / 2) * 2));
+        final int tailCount = (mCount - mGapStart);
+        final int[] bounds = new int[capacity * 2];
+
+        System.arraycopy(mBounds, 0, bounds, 0, mGapStart * 2);
+        System.arraycopy(mBounds, (mGapStart + mGapLength) * 2, bounds,
+                (capacity - tailCount) * 2, tailCount * 2);
+
+        mBounds = bounds;
+        mGapLength = (capacity - mCount);
+    }
+
+    /**
+     * Adds a unit at the gap, which is at the end while the index is built.
+     */
+    private void add(int start, int end, boolean continuation) {
+        ensureGap(1);
+
+        mBounds[mGapStart * 2] = (continuation ? (start | FLAG_CONTINUATION) : start);
+        mBounds[(mGapStart * 2) + 1] = end;
+        mGapStart++;
+        mGapLength--;
+        mCount++;
+    }
+}
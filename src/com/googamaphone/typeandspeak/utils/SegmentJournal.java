@@ -0,0 +1,215 @@
+package com.googamaphone.typeandspeak.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+/**
+ * Keeps the synthesized audio for each segment of an export on disk, along
+ * with a checkpoint listing the completed segments, so that an interrupted
+ * export can be resumed without synthesizing those segments again.
+ * <p>
+ * The checkpoint starts with a signature identifying the text and settings.
+ * A journal with a different signature is discarded when opened.
+ */
+public class SegmentJournal {
+    private static final String CHECKPOINT_NAME = "checkpoint";
+    private static final String OUTPUT_NAME = "output.part";
+
+    private final File mDirectory;
+    private final String mSignature;
+
+    /** Appends to the checkpoint, or {@code null} if not open. */
+    private FileOutputStream mCheckpoint;
+
+    /**
+     * @param directory The directory to keep the journal in.
+     * @param signature A single line identifying the text and settings.
+     */
+    public SegmentJournal(File directory, String signature) {
+        mDirectory = directory;
+        mSignature = signature;
+    }
+
+    /**
+     * Opens the journal for writing, discarding it if it belongs to a
+     * different export.
+     *
+     * @param segmentCount The number of segments in the export.
+     * @return Which segments are already complete.
+     * @throws IOException If the journal can't be created.
+     */
+    public synchronized boolean[] open(int segmentCount) throws IOException {
+        final boolean[] completed = new boolean[segmentCount];
+        final File checkpoint = new File(mDirectory, CHECKPOINT_NAME);
+
+        if (!readCheckpoint(checkpoint, completed)) {
+            delete();
+        }
+
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Failed to create " + mDirectory);
+        }
+
+        // Rewrite the checkpoint so that a torn last line isn't appended to.
+        final File temp = new File(mDirectory, CHECKPOINT_NAME + ".tmp");
+
+        mCheckpoint = new FileOutputStream(temp);
+        writeLine(mSignature);
+
+        for (int i = 0; i < segmentCount; i++) {
+            if (completed[i]) {
+                writeLine(Integer.toString(i));
+            }
+        }
+
+        mCheckpoint.close();
+
+        if (!temp.renameTo(checkpoint)) {
+            mCheckpoint = null;
+            throw new IOException("Failed to write " + checkpoint);
+        }
+
+        mCheckpoint = new FileOutputStream(checkpoint, true);
+
+        return completed;
+    }
+
+    /**
+     * @return The file to write the audio for a segment to.
+     */
+    public File getSegmentFile(int index) {
+        return new File(mDirectory, "segment-" + index + ".wav");
+    }
+
+    /**
+     * @return The file to write the partial output to.
+     */
+    public File getOutputFile() {
+        return new File(mDirectory, OUTPUT_NAME);
+    }
+
+    /**
+     * Records that a segment's audio is complete. The checkpoint is synced to
+     * disk before returning.
+     *
+     * @param index The index of the segment.
+     * @throws IOException If the checkpoint can't be written.
+     */
+    public synchronized void commit(int index) throws IOException {
+        if (mCheckpoint == null) {
+            throw new IOException("Journal is not open");
+        }
+
+        writeLine(Integer.toString(index));
+    }
+
+    /**
+     * Closes the checkpoint, leaving the journal on disk.
+     */
+    public synchronized void close() {
+        if (mCheckpoint == null) {
+            return;
+        }
+
+        try {
+            mCheckpoint.close();
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+
+        mCheckpoint = null;
+    }
+
+    /**
+     * Closes and deletes the journal.
+     */
+    public synchronized void delete() {
+        close();
+        deleteDirectory(mDirectory);
+    }
+
+    /**
+     * Deletes a directory and its contents.
+     *
+     * @param directory The directory to delete.
+     */
+    public static void deleteDirectory(File directory) {
+        final File[] files = directory.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteDirectory(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+
+        directory.delete();
+    }
+
+    private void writeLine(String line) throws IOException {
+        mCheckpoint.write((line + "\n").getBytes("UTF-8"));
+        mCheckpoint.flush();
+        mCheckpoint.getFD().sync();
+    }
+
+    /**
+     * Reads the completed segments from a checkpoint.
+     *
+     * @return Whether the checkpoint matches this journal's signature.
+     */
+    private boolean readCheckpoint(File checkpoint, boolean[] completed) {
+        if (!checkpoint.exists()) {
+            return false;
+        }
+
+        final StringBuilder contents = new StringBuilder();
+        final char[] buffer = new char[1024];
+
+        try {
+            final InputStreamReader reader = new InputStreamReader(new FileInputStream(
+                    checkpoint), "UTF-8");
+
+            try {
+                int count;
+
+                while ((count = reader.read(buffer)) >= 0) {
+                    contents.append(buffer, 0, count);
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (final IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        // The last line may be torn if the process died while writing it.
+        final String[] lines = contents.toString().split("\n", -1);
+
+        if ((lines.length < 2) || !mSignature.equals(lines[0])) {
+            return false;
+        }
+
+        for (int i = 1; i < (lines.length - 1); i++) {
+            final int index;
+
+            try {
+                index = Integer.parseInt(lines[i]);
+            } catch (final NumberFormatException e) {
+                continue;
+            }
+
+            if ((index >= 0) && (index < completed.length) && getSegmentFile(index).exists()) {
+                completed[index] = true;
+            }
+        }
+
+        return true;
+    }
+}
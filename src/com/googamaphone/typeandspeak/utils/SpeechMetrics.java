@@ -0,0 +1,203 @@
+package com.googamaphone.typeandspeak.utils;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Locale;
+
+import android.os.SystemClock;
+
+/**
+ * Records speech latency measurements for a single combination of engine,
+ * locale, and speech rate. Instances are obtained from
+ * {@link #get(String, Locale, int)} and live for the life of the process.
+ */
+public class SpeechMetrics {
+    /** Gaps longer than this are assumed to be pauses, not engine latency. */
+    private static final long MAX_GAP_MILLIS = 10000;
+
+    private static final ArrayList<SpeechMetrics> sAllMetrics = new ArrayList<SpeechMetrics>();
+
+    /** Time from tapping Speak to the first utterance starting. */
+    public final LatencyHistogram speakToStart = new LatencyHistogram("speak to start", "ms");
+
+    /** Time from an utterance starting to it finishing. */
+    public final LatencyHistogram utterance = new LatencyHistogram("utterance", "ms");
+
+    /** Time from one utterance finishing to the next one starting. */
+    public final LatencyHistogram gap = new LatencyHistogram("gap between units", "ms");
+
+    /** Time taken to synthesize a unit to a file. */
+    public final LatencyHistogram synthesis = new LatencyHistogram("synthesis", "ms");
+
+    /** Synthesis time as a percentage of the resulting audio duration. */
+    public final LatencyHistogram realTimeFactor = new LatencyHistogram("real-time factor", "%");
+
+    /** Time from typing a key to its echo starting. */
+    public final LatencyHistogram keyToEcho = new LatencyHistogram("key to echo", "ms");
+
+    private final String mEngine;
+    private final Locale mLocale;
+    private final int mRate;
+
+    private long mRequestTime = -1;
+    private long mStartTime = -1;
+    private long mDoneTime = -1;
+
+    private int mDroppedEchoes;
+
+    private SpeechMetrics(String engine, Locale locale, int rate) {
+        mEngine = engine;
+        mLocale = locale;
+        mRate = rate;
+    }
+
+    /**
+     * Returns the metrics for the specified engine, locale, and rate, creating
+     * them if necessary.
+     *
+     * @param engine The package name of the speech engine.
+     * @param locale The speech locale.
+     * @param rate The speech rate, as used in preferences.
+     * @return The metrics for that combination.
+     */
+    public static SpeechMetrics get(String engine, Locale locale, int rate) {
+        synchronized (sAllMetrics) {
+            for (SpeechMetrics metrics : sAllMetrics) {
+                if (metrics.matches(engine, locale, rate)) {
+                    return metrics;
+                }
+            }
+
+            final SpeechMetrics metrics = new SpeechMetrics(engine, locale, rate);
+            sAllMetrics.add(metrics);
+            return metrics;
+        }
+    }
+
+    /**
+     * Writes all recorded metrics.
+     *
+     * @param writer The writer to print to.
+     */
+    public static void dumpAll(PrintWriter writer) {
+        synchronized (sAllMetrics) {
+            for (SpeechMetrics metrics : sAllMetrics) {
+                metrics.dump(writer);
+            }
+        }
+    }
+
+    /**
+     * Discards all recorded metrics. Existing instances are reset in place,
+     * since callers keep them for as long as their settings don't change.
+     */
+    public static void resetAll() {
+        synchronized (sAllMetrics) {
+            for (SpeechMetrics metrics : sAllMetrics) {
+                metrics.reset();
+            }
+        }
+    }
+
+    /**
+     * Called when the user asks to start speaking. The next utterance to start
+     * will be recorded as the speak-to-start latency.
+     */
+    public void onSpeakRequested() {
+        mRequestTime = SystemClock.elapsedRealtime();
+        mDoneTime = -1;
+    }
+
+    /**
+     * Called when the engine starts speaking an utterance.
+     */
+    public void onUtteranceStarted() {
+        final long now = SystemClock.elapsedRealtime();
+
+        if (mRequestTime >= 0) {
+            speakToStart.record(now - mRequestTime);
+            mRequestTime = -1;
+        }
+
+        if ((mDoneTime >= 0) && ((now - mDoneTime) < MAX_GAP_MILLIS)) {
+            gap.record(now - mDoneTime);
+        }
+
+        mStartTime = now;
+        mDoneTime = -1;
+    }
+
+    /**
+     * Called when the engine finishes speaking an utterance.
+     */
+    public void onUtteranceDone() {
+        final long now = SystemClock.elapsedRealtime();
+
+        if (mStartTime >= 0) {
+            utterance.record(now - mStartTime);
+        }
+
+        mStartTime = -1;
+        mDoneTime = now;
+    }
+
+    /**
+     * Called when speech is stopped or flushed, so that the time spent
+     * stopped isn't recorded as a gap.
+     */
+    public void onInterrupted() {
+        mStartTime = -1;
+        mDoneTime = -1;
+    }
+
+    /**
+     * Called when a typing echo is dropped to catch up with typing.
+     */
+    public void onEchoDropped() {
+        mDroppedEchoes++;
+    }
+
+    /**
+     * Called when a unit has been synthesized to a file.
+     *
+     * @param synthesisMillis The time taken to synthesize the unit.
+     * @param audioMillis The duration of the resulting audio.
+     */
+    public void onSynthesized(long synthesisMillis, long audioMillis) {
+        synthesis.record(synthesisMillis);
+
+        if (audioMillis > 0) {
+            realTimeFactor.record((100 * synthesisMillis) / audioMillis);
+        }
+    }
+
+    private void reset() {
+        speakToStart.reset();
+        utterance.reset();
+        gap.reset();
+        synthesis.reset();
+        realTimeFactor.reset();
+        keyToEcho.reset();
+        mDroppedEchoes = 0;
+    }
+
+    private boolean matches(String engine, Locale locale, int rate) {
+        return (mRate == rate) && equals(mEngine, engine) && equals(mLocale, locale);
+    }
+
+    private void dump(PrintWriter writer) {
+        writer.printf("%s, %s, rate %d\n", mEngine, mLocale, mRate);
+        speakToStart.dump(writer);
+        utterance.dump(writer);
+        gap.dump(writer);
+        synthesis.dump(writer);
+        realTimeFactor.dump(writer);
+        keyToEcho.dump(writer);
+        writer.printf("dropped echoes: %d\n", mDroppedEchoes);
+        writer.println();
+    }
+
+    private static boolean equals(Object a, Object b) {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
+}
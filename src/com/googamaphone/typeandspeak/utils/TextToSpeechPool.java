@@ -0,0 +1,339 @@
+package com.googamaphone.typeandspeak.utils;
+
+import java.util.ArrayList;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.speech.tts.TextToSpeech;
+
+/**
+ * A process-wide pool of text-to-speech engines. One engine is reserved for
+ * interactive speech, so that its listeners and queue are separate from
+ * saving. Background synthesis leases an engine from the rest of the pool one
+ * segment at a time, and no leases are granted while interactive speech is
+ * active, so speech waits for at most the segment in progress.
+ */
+public class TextToSpeechPool {
+    /**
+     * Number of engines used for background synthesis. The engine service
+     * synthesizes requests from all of its clients on a single thread, so
+     * more engines wouldn't synthesize in parallel.
+     */
+    private static final int BACKGROUND_ENGINES = 1;
+
+    // Engine states.
+    private static final int STATE_INITIALIZING = 0;
+    private static final int STATE_READY = 1;
+    private static final int STATE_FAILED = 2;
+
+    private static TextToSpeechPool sInstance;
+    private static int sClientCount;
+
+    private final Context mContext;
+
+    /** Engines are created on the main thread, where they're initialized. */
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Background engines, guarded by {@code this}. */
+    private final ArrayList<PooledEngine> mEngines = new ArrayList<PooledEngine>();
+
+    /** Listeners waiting for the interactive engine to initialize. */
+    private final ArrayList<TextToSpeech.OnInitListener> mInitListeners =
+            new ArrayList<TextToSpeech.OnInitListener>();
+
+    private PooledEngine mInteractiveEngine;
+    private int mLeaseCount;
+
+    /** Background engines waiting to be created on the main thread. */
+    private int mPendingEngines;
+    private boolean mInteractiveActive;
+    private boolean mClosed;
+
+    /**
+     * Returns the shared pool, creating it if necessary. Each call must be
+     * balanced by a call to {@link #close()}.
+     *
+     * @param context The parent context.
+     * @return The shared pool.
+     */
+    public static synchronized TextToSpeechPool open(Context context) {
+        if (sInstance == null) {
+            sInstance = new TextToSpeechPool(context.getApplicationContext());
+        }
+
+        sClientCount++;
+
+        return sInstance;
+    }
+
+    private TextToSpeechPool(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Releases a reference to the pool. Engines are shut down when the last
+     * client closes the pool.
+     */
+    public void close() {
+        synchronized (TextToSpeechPool.class) {
+            if (--sClientCount > 0) {
+                return;
+            }
+
+            sInstance = null;
+        }
+
+        synchronized (this) {
+            mClosed = true;
+
+            if (mInteractiveEngine != null) {
+                mInteractiveEngine.tts.shutdown();
+            }
+
+            for (PooledEngine engine : mEngines) {
+                engine.tts.shutdown();
+            }
+
+            mEngines.clear();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Returns the engine reserved for interactive speech, creating it if
+     * necessary. The listener is called once the engine is initialized, which
+     * may be immediately.
+     *
+     * @param listener The listener to notify of initialization.
+     * @return The interactive engine.
+     */
+    public TextToSpeech getInteractiveEngine(TextToSpeech.OnInitListener listener) {
+        final int state;
+
+        synchronized (this) {
+            if (mInteractiveEngine == null) {
+                mInteractiveEngine = new PooledEngine();
+                mInteractiveEngine.tts = new TextToSpeech(mContext,
+                        new InteractiveInitListener(mInteractiveEngine));
+            }
+
+            state = mInteractiveEngine.state;
+
+            if (state == STATE_INITIALIZING) {
+                mInitListeners.add(listener);
+            }
+        }
+
+        if (state != STATE_INITIALIZING) {
+            listener.onInit((state == STATE_READY) ? TextToSpeech.SUCCESS : TextToSpeech.ERROR);
+        }
+
+        return mInteractiveEngine.tts;
+    }
+
+    /**
+     * Shuts down the interactive engine, which holds the listeners set by its
+     * user, and forgets any listeners waiting for it to initialize. The next
+     * call to {@link #getInteractiveEngine} creates a new engine. Background
+     * engines are not affected.
+     */
+    public synchronized void releaseInteractiveEngine() {
+        if (mInteractiveEngine != null) {
+            mInteractiveEngine.tts.shutdown();
+            mInteractiveEngine = null;
+        }
+
+        mInitListeners.clear();
+        mInteractiveActive = false;
+
+        notifyAll();
+    }
+
+    /**
+     * Sets whether interactive speech is in progress. While it is, no
+     * background leases are granted.
+     *
+     * @param active Whether interactive speech is in progress.
+     */
+    public synchronized void setInteractiveActive(boolean active) {
+        mInteractiveActive = active;
+
+        notifyAll();
+    }
+
+    /**
+     * @return The maximum number of background leases granted at once.
+     */
+    public int getBackgroundCapacity() {
+        return BACKGROUND_ENGINES;
+    }
+
+    /**
+     * Leases an engine for background synthesis, blocking until one is
+     * available. Must not be called on the main thread, since engines are
+     * created and initialized there.
+     * <p>
+     * Callers that need to cancel a wait should interrupt the waiting thread.
+     *
+     * @return A lease, or {@code null} if the pool was closed or no engine
+     *         could be initialized.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public synchronized Lease acquire() throws InterruptedException {
+        while (!mClosed) {
+            if (!mInteractiveActive && (mLeaseCount < BACKGROUND_ENGINES)) {
+                final PooledEngine engine = findIdleEngine();
+
+                if (engine != null) {
+                    engine.leased = true;
+                    mLeaseCount++;
+                    return new Lease(engine);
+                }
+
+                if ((mEngines.size() + mPendingEngines) < BACKGROUND_ENGINES) {
+                    mPendingEngines++;
+                    mMainHandler.post(mCreateEngine);
+                } else if ((mPendingEngines == 0) && allEnginesFailed()) {
+                    return null;
+                }
+            }
+
+            wait();
+        }
+
+        return null;
+    }
+
+    private final Runnable mCreateEngine = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (TextToSpeechPool.this) {
+                mPendingEngines--;
+
+                if (!mClosed) {
+                    final PooledEngine created = new PooledEngine();
+                    created.tts = new TextToSpeech(mContext, new BackgroundInitListener(created));
+                    mEngines.add(created);
+                }
+
+                TextToSpeechPool.this.notifyAll();
+            }
+        }
+    };
+
+    private PooledEngine findIdleEngine() {
+        for (PooledEngine engine : mEngines) {
+            if (!engine.leased && (engine.state == STATE_READY)) {
+                return engine;
+            }
+        }
+
+        return null;
+    }
+
+    private boolean allEnginesFailed() {
+        for (PooledEngine engine : mEngines) {
+            if (engine.state != STATE_FAILED) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private synchronized void release(PooledEngine engine) {
+        engine.leased = false;
+        mLeaseCount--;
+
+        notifyAll();
+    }
+
+    private static class PooledEngine {
+        public TextToSpeech tts;
+        public int state = STATE_INITIALIZING;
+        public boolean leased;
+    }
+
+    private class InteractiveInitListener implements TextToSpeech.OnInitListener {
+        private final PooledEngine mEngine;
+
+        public InteractiveInitListener(PooledEngine engine) {
+            mEngine = engine;
+        }
+
+        @Override
+        public void onInit(int status) {
+            final ArrayList<TextToSpeech.OnInitListener> listeners;
+
+            synchronized (TextToSpeechPool.this) {
+                mEngine.state = (status == TextToSpeech.SUCCESS) ? STATE_READY : STATE_FAILED;
+
+                if (mEngine != mInteractiveEngine) {
+                    // The engine was released before it initialized.
+                    return;
+                }
+
+                listeners = new ArrayList<TextToSpeech.OnInitListener>(mInitListeners);
+                mInitListeners.clear();
+            }
+
+            for (TextToSpeech.OnInitListener listener : listeners) {
+                listener.onInit(status);
+            }
+        }
+    }
+
+    private class BackgroundInitListener implements TextToSpeech.OnInitListener {
+        private final PooledEngine mEngine;
+
+        public BackgroundInitListener(PooledEngine engine) {
+            mEngine = engine;
+        }
+
+        @Override
+        public void onInit(int status) {
+            synchronized (TextToSpeechPool.this) {
+                mEngine.state = (status == TextToSpeech.SUCCESS) ? STATE_READY : STATE_FAILED;
+                TextToSpeechPool.this.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Exclusive use of a background engine. The holder may change the
+     * engine's language, pitch, rate and listeners, and must call
+     * {@link #release()} when done.
+     */
+    public class Lease {
+        private final PooledEngine mEngine;
+
+        private boolean mReleased;
+
+        private Lease(PooledEngine engine) {
+            mEngine = engine;
+        }
+
+        /**
+         * @return The leased engine.
+         */
+        public TextToSpeech getTextToSpeech() {
+            return mEngine.tts;
+        }
+
+        /**
+         * Returns the engine to the pool.
+         */
+        public void release() {
+            synchronized (TextToSpeechPool.this) {
+                if (mReleased) {
+                    return;
+                }
+
+                mReleased = true;
+            }
+
+            TextToSpeechPool.this.release(mEngine);
+        }
+    }
+}
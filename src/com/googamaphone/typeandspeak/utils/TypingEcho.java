@@ -0,0 +1,299 @@
+package com.googamaphone.typeandspeak.utils;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import android.os.Message;
+import android.os.SystemClock;
+import android.speech.tts.TextToSpeech;
+import android.speech.tts.TextToSpeech.Engine;
+import android.speech.tts.TextToSpeech.OnUtteranceCompletedListener;
+
+import com.googamaphone.typeandspeak.utils.GranularTextToSpeech.OnUtteranceStartedListener;
+import com.googamaphone.typeandspeak.utils.GranularTextToSpeech.TextToSpeechStub;
+
+/**
+ * Speaks words or characters as they're typed. Only the characters before
+ * the insertion point are examined, so the cost of each keystroke doesn't
+ * depend on the length of the text.
+ * <p>
+ * Echoes are queued behind the one being spoken rather than interrupting it.
+ * When typing outpaces the engine, older echoes that haven't been sent to the
+ * engine yet are dropped so that speech catches up with the cursor.
+ * <p>
+ * All methods must be called on the main thread.
+ */
+public class TypingEcho {
+    /** Speak each word once it's followed by a space or punctuation. */
+    public static final int MODE_WORDS = 0;
+
+    /** Speak each character as it's typed. */
+    public static final int MODE_CHARACTERS = 1;
+
+    private static final String UTTERANCE_PREFIX = "echo";
+
+    /** Maximum number of echoes queued in the engine at once. */
+    private static final int MAX_IN_FLIGHT = 2;
+
+    /** Maximum number of echoes waiting for the engine. */
+    private static final int MAX_BACKLOG = 1;
+
+    /**
+     * Time after which an echo is assumed to have been flushed by another
+     * user of the engine, in milliseconds.
+     */
+    private static final long MAX_ECHO_MILLIS = 5000;
+
+    /** Maximum number of characters to look back for the start of a word. */
+    private static final int MAX_WORD_LENGTH = 64;
+
+    private final EchoHandler mHandler = new EchoHandler(this);
+    private final HashMap<String, String> mParams = new HashMap<String, String>();
+    private final TextToSpeechStub mTts;
+
+    /** Echoes waiting for the engine, oldest first. */
+    private final LinkedList<Echo> mBacklog = new LinkedList<Echo>();
+
+    /** Echoes sent to the engine, oldest first. */
+    private final LinkedList<Echo> mInFlight = new LinkedList<Echo>();
+
+    private SpeechMetrics mMetrics;
+    private int mMode = MODE_WORDS;
+    private int mNextId;
+
+    public TypingEcho(TextToSpeech tts) {
+        mTts = new GranularTextToSpeech.TextToSpeechWrapper(tts);
+    }
+
+    /**
+     * @param mode Either {@link #MODE_WORDS} or {@link #MODE_CHARACTERS}.
+     */
+    public void setMode(int mode) {
+        mMode = mode;
+    }
+
+    /**
+     * Sets the metrics to record key-to-audio latency and dropped echoes in.
+     *
+     * @param metrics The metrics to record in, or {@code null} for none.
+     */
+    public void setMetrics(SpeechMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Echoes a typed character, if necessary. The parameters match those of
+     * {@link android.text.TextWatcher#onTextChanged}.
+     */
+    public void onTextChanged(CharSequence s, int start, int before, int count) {
+        if ((before > 0) || (count != 1)) {
+            // Only echo typing, not deletions or pasted text.
+            return;
+        }
+
+        final String text;
+
+        if (mMode == MODE_CHARACTERS) {
+            final char c = s.charAt(start);
+            text = Character.isWhitespace(c) ? null : String.valueOf(c);
+        } else {
+            text = getWordBefore(s, start);
+        }
+
+        if (text != null) {
+            enqueue(new Echo(text, SystemClock.uptimeMillis()));
+        }
+    }
+
+    /**
+     * Stops speaking and discards queued echoes.
+     */
+    public void stop() {
+        if (!mInFlight.isEmpty()) {
+            mTts.stop();
+        }
+
+        mBacklog.clear();
+        mInFlight.clear();
+    }
+
+    /**
+     * Returns the word that ends at an inserted character, if the character
+     * is a word separator.
+     *
+     * @param s The text.
+     * @param position The position of the inserted character.
+     * @return The word before the character, or {@code null} if there isn't
+     *         one.
+     */
+    private static String getWordBefore(CharSequence s, int position) {
+        if (isWordCharacter(s, position)) {
+            return null;
+        }
+
+        final int limit = Math.max(0, position - MAX_WORD_LENGTH);
+        int wordStart = position;
+
+        while ((wordStart > limit) && isWordCharacter(s, wordStart - 1)) {
+            wordStart--;
+        }
+
+        if (wordStart == position) {
+            return null;
+        }
+
+        return s.subSequence(wordStart, position).toString();
+    }
+
+    private static boolean isWordCharacter(CharSequence s, int position) {
+        final char c = s.charAt(position);
+
+        if (Character.isLetterOrDigit(c) || Character.isHighSurrogate(c)
+                || Character.isLowSurrogate(c)) {
+            return true;
+        }
+
+        // Keep apostrophes within words, such as "don't".
+        return ((c == '\'') || (c == '\u2019')) && (position > 0)
+                && Character.isLetter(s.charAt(position - 1));
+    }
+
+    private void enqueue(Echo echo) {
+        mBacklog.addLast(echo);
+
+        // Drop the oldest echoes if typing is ahead of the engine.
+        while (mBacklog.size() > MAX_BACKLOG) {
+            mBacklog.removeFirst();
+
+            if (mMetrics != null) {
+                mMetrics.onEchoDropped();
+            }
+        }
+
+        sendBacklog();
+    }
+
+    private void sendBacklog() {
+        final long now = SystemClock.uptimeMillis();
+
+        if (!mInFlight.isEmpty() && ((now - mInFlight.getLast().sentTime) > MAX_ECHO_MILLIS)) {
+            // The engine won't report echoes that were flushed by someone else.
+            mInFlight.clear();
+        }
+
+        while (!mBacklog.isEmpty() && (mInFlight.size() < MAX_IN_FLIGHT)) {
+            final Echo echo = mBacklog.removeFirst();
+
+            if (mInFlight.isEmpty()) {
+                // Another user of the engine may have replaced the listeners.
+                mTts.setOnUtteranceCompletedListener(mCompletedListener);
+                mTts.setOnUtteranceStartedListener(mStartedListener);
+            }
+
+            echo.id = UTTERANCE_PREFIX + (mNextId++);
+            echo.sentTime = now;
+            mParams.put(Engine.KEY_PARAM_UTTERANCE_ID, echo.id);
+            mInFlight.addLast(echo);
+            mTts.speak(echo.text, TextToSpeech.QUEUE_ADD, mParams);
+        }
+    }
+
+    private void onUtteranceStarted(String utteranceId) {
+        final int index = indexOf(utteranceId);
+
+        if ((index >= 0) && (mMetrics != null)) {
+            final Echo echo = mInFlight.get(index);
+            mMetrics.keyToEcho.record(SystemClock.uptimeMillis() - echo.keyTime);
+        }
+    }
+
+    private void onUtteranceCompleted(String utteranceId) {
+        final int index = indexOf(utteranceId);
+
+        if (index < 0) {
+            // The echo was already discarded.
+            return;
+        }
+
+        // Completions arrive in order, so earlier echoes are done too.
+        for (int i = 0; i <= index; i++) {
+            mInFlight.removeFirst();
+        }
+
+        sendBacklog();
+    }
+
+    private int indexOf(String utteranceId) {
+        int index = 0;
+
+        for (Echo echo : mInFlight) {
+            if (echo.id.equals(utteranceId)) {
+                return index;
+            }
+
+            index++;
+        }
+
+        return -1;
+    }
+
+    private final OnUtteranceStartedListener mStartedListener = new OnUtteranceStartedListener() {
+        @Override
+        public void onUtteranceStarted(String utteranceId) {
+            if (utteranceId.startsWith(UTTERANCE_PREFIX)) {
+                mHandler.obtainMessage(EchoHandler.UTTERANCE_STARTED, utteranceId).sendToTarget();
+            }
+        }
+    };
+
+    private final OnUtteranceCompletedListener mCompletedListener = new OnUtteranceCompletedListener() {
+        @Override
+        public void onUtteranceCompleted(String utteranceId) {
+            if (utteranceId.startsWith(UTTERANCE_PREFIX)) {
+                mHandler.obtainMessage(EchoHandler.UTTERANCE_COMPLETED, utteranceId)
+                        .sendToTarget();
+            }
+        }
+    };
+
+    private static class Echo {
+        public final String text;
+
+        /** Time at which the key was typed, in uptime milliseconds. */
+        public final long keyTime;
+
+        public String id;
+
+        /** Time at which the echo was sent to the engine. */
+        public long sentTime;
+
+        public Echo(String text, long keyTime) {
+            this.text = text;
+            this.keyTime = keyTime;
+        }
+    }
+
+    /**
+     * Transfers engine callbacks to the main thread.
+     */
+    private static class EchoHandler extends ReferencedHandler<TypingEcho> {
+        private static final int UTTERANCE_STARTED = 1;
+        private static final int UTTERANCE_COMPLETED = 2;
+
+        public EchoHandler(TypingEcho parent) {
+            super(parent);
+        }
+
+        @Override
+        protected void handleMessage(Message msg, TypingEcho parent) {
+            switch (msg.what) {
+                case UTTERANCE_STARTED:
+                    parent.onUtteranceStarted((String) msg.obj);
+                    break;
+                case UTTERANCE_COMPLETED:
+                    parent.onUtteranceCompleted((String) msg.obj);
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.googamaphone.typeandspeak.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * The format and data location of a PCM WAV file, as written by speech
+ * engines.
+ */
+public class WavHeader {
+    private static final int RIFF = 0x52494646; // "RIFF"
+    private static final int WAVE = 0x57415645; // "WAVE"
+    private static final int FMT = 0x666d7420; // "fmt "
+    private static final int DATA = 0x64617461; // "data"
+
+    public final int sampleRate;
+    public final int channels;
+    public final int bitsPerSample;
+
+    /** Offset of the first byte of sample data. */
+    public final long dataOffset;
+
+    /** Length of the sample data, in bytes. */
+    public final long dataLength;
+
+    private WavHeader(int sampleRate, int channels, int bitsPerSample, long dataOffset,
+            long dataLength) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.bitsPerSample = bitsPerSample;
+        this.dataOffset = dataOffset;
+        this.dataLength = dataLength;
+    }
+
+    /**
+     * Reads the header from a WAV file.
+     *
+     * @param file The file to read.
+     * @return The header.
+     * @throws IOException If the file can't be read or isn't a PCM WAV file.
+     */
+    public static WavHeader read(File file) throws IOException {
+        final RandomAccessFile input = new RandomAccessFile(file, "r");
+
+        try {
+            return read(input);
+        } finally {
+            input.close();
+        }
+    }
+
+    private static WavHeader read(RandomAccessFile input) throws IOException {
+        if ((input.readInt() != RIFF) || (input.skipBytes(4) != 4) || (input.readInt() != WAVE)) {
+            throw new IOException("Not a WAV file");
+        }
+
+        int sampleRate = 0;
+        int channels = 0;
+        int bitsPerSample = 0;
+
+        while (input.getFilePointer() < input.length()) {
+            final int chunkId = input.readInt();
+            final long chunkLength = (Integer.reverseBytes(input.readInt()) & 0xFFFFFFFFL);
+            final long chunkStart = input.getFilePointer();
+
+            if (chunkId == FMT) {
+                input.skipBytes(2); // Audio format
+                channels = Short.reverseBytes(input.readShort());
+                sampleRate = Integer.reverseBytes(input.readInt());
+                input.skipBytes(6); // Byte rate and block align
+                bitsPerSample = Short.reverseBytes(input.readShort());
+            } else if (chunkId == DATA) {
+                if (sampleRate <= 0) {
+                    throw new IOException("Missing format chunk");
+                }
+
+                // Engines may leave the length unset while writing.
+                final long available = (input.length() - chunkStart);
+                final long dataLength = ((chunkLength == 0) || (chunkLength > available))
+                        ? available : chunkLength;
+
+                return new WavHeader(sampleRate, channels, bitsPerSample, chunkStart, dataLength);
+            }
+
+            // Chunks are padded to an even length.
+            input.seek(chunkStart + chunkLength + (chunkLength & 1));
+        }
+
+        throw new IOException("Missing data chunk");
+    }
+
+    /**
+     * @return The number of bytes in a single frame of samples.
+     */
+    public int getFrameSize() {
+        return (channels * (bitsPerSample / 8));
+    }
+
+    /**
+     * @return The duration of the audio, in milliseconds.
+     */
+    public long getDurationMillis() {
+        final long bytesPerSecond = ((long) sampleRate * getFrameSize());
+
+        if (bytesPerSecond <= 0) {
+            return 0;
+        }
+
+        return ((1000 * dataLength) / bytesPerSecond);
+    }
+}
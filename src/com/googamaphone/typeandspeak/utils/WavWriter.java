@@ -0,0 +1,127 @@
+package com.googamaphone.typeandspeak.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a PCM WAV file by concatenating the sample data from other WAV files.
+ * Sample data is copied between file channels, so memory use doesn't depend
+ * on the length of the audio. The header sizes are filled in by
+ * {@link #close()}.
+ */
+public class WavWriter implements AudioEncoder {
+    /** Length of the canonical header written by this class. */
+    private static final int HEADER_LENGTH = 44;
+
+    /** Offset of the RIFF chunk length. */
+    private static final int RIFF_LENGTH_OFFSET = 4;
+
+    /** Offset of the data chunk length. */
+    private static final int DATA_LENGTH_OFFSET = 40;
+
+    private final RandomAccessFile mOutput;
+
+    /** Format of the sample data, or {@code null} if nothing was written. */
+    private WavHeader mFormat;
+
+    private long mDataLength = 0;
+
+    /**
+     * @param file The file to write. Existing contents are replaced.
+     * @throws IOException If the file can't be opened.
+     */
+    public WavWriter(File file) throws IOException {
+        mOutput = new RandomAccessFile(file, "rw");
+        mOutput.setLength(0);
+    }
+
+    @Override
+    public void append(File file, WavHeader header) throws IOException {
+        if (mFormat == null) {
+            mFormat = header;
+            writeHeader();
+        } else if ((header.sampleRate != mFormat.sampleRate)
+                || (header.channels != mFormat.channels)
+                || (header.bitsPerSample != mFormat.bitsPerSample)) {
+            throw new IOException("Audio format changed between segments");
+        }
+
+        final FileInputStream input = new FileInputStream(file);
+
+        try {
+            final FileChannel in = input.getChannel();
+            final FileChannel out = mOutput.getChannel();
+            final long end = (header.dataOffset + header.dataLength);
+            long position = header.dataOffset;
+
+            out.position(HEADER_LENGTH + mDataLength);
+
+            while (position < end) {
+                final long transferred = in.transferTo(position, (end - position), out);
+
+                if (transferred <= 0) {
+                    break;
+                }
+
+                position += transferred;
+                mDataLength += transferred;
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * @return The number of bytes of sample data written so far.
+     */
+    public long getDataLength() {
+        return mDataLength;
+    }
+
+    @Override
+    public boolean hasData() {
+        return (mFormat != null);
+    }
+
+    /**
+     * Fills in the header sizes and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (mFormat != null) {
+                mOutput.seek(RIFF_LENGTH_OFFSET);
+                mOutput.writeInt(Integer.reverseBytes((int) (HEADER_LENGTH - 8 + mDataLength)));
+                mOutput.seek(DATA_LENGTH_OFFSET);
+                mOutput.writeInt(Integer.reverseBytes((int) mDataLength));
+            }
+        } finally {
+            mOutput.close();
+        }
+    }
+
+    /**
+     * Writes a canonical header with the sizes left as zero.
+     */
+    private void writeHeader() throws IOException {
+        final int frameSize = mFormat.getFrameSize();
+
+        mOutput.seek(0);
+        mOutput.writeBytes("RIFF");
+        mOutput.writeInt(0);
+        mOutput.writeBytes("WAVE");
+        mOutput.writeBytes("fmt ");
+        mOutput.writeInt(Integer.reverseBytes(16));
+        mOutput.writeShort(Short.reverseBytes((short) 1)); // PCM
+        mOutput.writeShort(Short.reverseBytes((short) mFormat.channels));
+        mOutput.writeInt(Integer.reverseBytes(mFormat.sampleRate));
+        mOutput.writeInt(Integer.reverseBytes(mFormat.sampleRate * frameSize));
+        mOutput.writeShort(Short.reverseBytes((short) frameSize));
+        mOutput.writeShort(Short.reverseBytes((short) mFormat.bitsPerSample));
+        mOutput.writeBytes("data");
+        mOutput.writeInt(0);
+    }
+}